@@ -0,0 +1,55 @@
+package com.fairmichael.fintan.websms.connector.fishtext;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Loads the recorded fishtext.com pages the build copies onto the class path.
+ *
+ * @author Fintan Fairmichael
+ */
+final class Fixtures {
+  private Fixtures() {
+  }
+
+  /**
+   * @param name
+   *          file name in the fixtures directory
+   * @return the page's bytes
+   */
+  static byte[] bytes(final String name) {
+    final InputStream in = Fixtures.class.getResourceAsStream("/fixtures/" + name);
+    if (in == null) {
+      throw new IllegalStateException("No fixture " + name);
+    }
+    try {
+      try {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+          out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+      } finally {
+        in.close();
+      }
+    } catch (IOException ioe) {
+      throw new IllegalStateException("Could not read fixture " + name, ioe);
+    }
+  }
+
+  /**
+   * @param name
+   *          file name in the fixtures directory
+   * @return the page, decoded like the connector decodes responses
+   */
+  static String page(final String name) {
+    try {
+      return new String(bytes(name), ConnectorFishtext.ENCODING);
+    } catch (java.io.UnsupportedEncodingException uee) {
+      throw new IllegalStateException(uee);
+    }
+  }
+}
@@ -0,0 +1,43 @@
+package com.fairmichael.fintan.websms.connector.fishtext;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * HtmlEntities against the two replaceAll calls currencyFix made before it,
+ * on what the balance and send paths decode: a balance, a cost without a
+ * reference and a send failure message.
+ *
+ * @author Fintan Fairmichael
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HtmlEntitiesBenchmark {
+  @Param({ "&pound;12.34", "0.08", "You don&#39;t have enough credit to send this message. Please top up &amp; try again." })
+  public String text;
+
+  @Benchmark
+  public String singlePass() {
+    return HtmlEntities.decode(this.text);
+  }
+
+  /** currencyFix as it was. */
+  @Benchmark
+  public String replaceAll() {
+    return this.text.replaceAll("&pound;", "\u00A3").replaceAll("&euro;", "\u20AC");
+  }
+}
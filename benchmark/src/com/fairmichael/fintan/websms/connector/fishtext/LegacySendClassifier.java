@@ -0,0 +1,51 @@
+package com.fairmichael.fintan.websms.connector.fishtext;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * How examineSendResponse classified send responses before SendResult: a
+ * contains() per marker and a separate regex per value. Kept to benchmark
+ * SendResult.parse against.
+ *
+ * @author Fintan Fairmichael
+ */
+final class LegacySendClassifier {
+  private static final Pattern COST_PATTERN = Pattern.compile("at a cost of (.*?)(\\d{1,}\\.\\d{1,})");
+  private static final Pattern INVALID_NUMBERS_PATTERN = Pattern.compile("invalid number\\(s\\) (.*?) skipped");
+  private static final Pattern SEND_FAILED_MESSAGE_PATTERN = Pattern.compile("<p>(.*)</p>");
+
+  private LegacySendClassifier() {
+  }
+
+  static SendResult classify(final String response) {
+    if (response.contains("Message sent")) {
+      final boolean sentToAll = response.contains("Your message was successfully sent to all recipients");
+      final boolean free = response.contains("sent free") || response.contains(", free.");
+      String cost = free ? SendResult.COST_FREE : SendResult.COST_UNKNOWN;
+      String currency = "";
+      final Matcher matcher = COST_PATTERN.matcher(response);
+      if (matcher.find()) {
+        cost = matcher.group(2);
+        currency = FishtextUtil.currencyFix(matcher.group(1));
+      }
+      String[] invalids = new String[0];
+      if (!sentToAll) {
+        final Matcher invalidMatcher = INVALID_NUMBERS_PATTERN.matcher(response);
+        if (invalidMatcher.find()) {
+          invalids = invalidMatcher.group(1).split(",");
+          for (int i = 0; i < invalids.length; i++) {
+            invalids[i] = invalids[i].trim();
+          }
+        }
+      }
+      return new SendResult(SendResult.Status.SENT, sentToAll, cost, currency, invalids, new String[0], new String[0], "");
+    } else if (response.contains("Send failed")) {
+      final Matcher matcher = SEND_FAILED_MESSAGE_PATTERN.matcher(response);
+      final String message = matcher.find() ? matcher.group(1) : "";
+      return new SendResult(SendResult.Status.FAILED, false, SendResult.COST_UNKNOWN, "", new String[0], new String[0], new String[0],
+          message);
+    }
+    return new SendResult(SendResult.Status.UNKNOWN, false, SendResult.COST_UNKNOWN, "", new String[0], new String[0], new String[0], "");
+  }
+}
@@ -0,0 +1,89 @@
+package com.fairmichael.fintan.websms.connector.fishtext;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The extractors and request building every send goes through, on recorded
+ * pages. Run with the GC profiler to see the allocation rate next to the
+ * throughput.
+ *
+ * @author Fintan Fairmichael
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParsingBenchmark {
+  private String balancePage;
+  private byte[] sendMessagePage;
+  private String settingsPage;
+  private List<String> numbers;
+
+  @Setup
+  public void setUp() {
+    this.balancePage = Fixtures.page("balance.html");
+    this.sendMessagePage = Fixtures.bytes("send_message_page.html");
+    this.settingsPage = Fixtures.page("settings_form.html");
+    this.numbers = new ArrayList<String>(BatchSender.CHUNK_SIZE);
+    for (int i = 0; i < BatchSender.CHUNK_SIZE; i++) {
+      this.numbers.add("3538612345" + (10 + i));
+    }
+  }
+
+  /** LOGGED_IN_BALANCE and the currency fix, as on every balance fetch. */
+  @Benchmark
+  public String balance() {
+    return ConnectorFishtext.parseBalance(this.balancePage);
+  }
+
+  /** MESSAGE_ID, scanned from the streamed send message page. */
+  @Benchmark
+  public String messageId() throws IOException {
+    final ResponseScanner scanner = new ResponseScanner().find("messageId", ConnectorFishtext.MESSAGE_ID);
+    scanner.scan(new ByteArrayInputStream(this.sendMessagePage), ConnectorFishtext.ENCODING);
+    return scanner.group("messageId", 1);
+  }
+
+  /** INPUT_PATTERN and the sendType and sendFrom selects. */
+  @Benchmark
+  public Map<String, String> settingsForm() {
+    return SettingsSync.parseSettingsForm(this.settingsPage);
+  }
+
+  @Benchmark
+  public String currencyFix() {
+    return FishtextUtil.currencyFix("&pound;12.34");
+  }
+
+  /** Joining a full chunk of recipients into RN. */
+  @Benchmark
+  public String appendWithSeparator() {
+    return FishtextUtil.appendWithSeparator(this.numbers, ",");
+  }
+
+  /** A send form like postMessage builds it, without the cached template. */
+  @Benchmark
+  public long postData() {
+    return PostDataBuilder.start().add("action", "Send").add("SA", "0").add("DR", "1").add("ST", "0")
+        .add("msg4f2a9c", "Running late, be there in 10 minutes. Sorry!").add("RN", "353861234567,447700900123").data()
+        .getContentLength();
+  }
+}
@@ -0,0 +1,49 @@
+package com.fairmichael.fintan.websms.connector.fishtext;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Classifying recorded send responses, SendResult's single pass against the
+ * marker-by-marker code it replaced.
+ *
+ * @author Fintan Fairmichael
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SendResultBenchmark {
+  @Param({ "send_sent_all.html", "send_sent_some.html", "send_sent_free.html", "send_failed.html" })
+  public String fixture;
+
+  private String response;
+
+  @Setup
+  public void setUp() {
+    this.response = Fixtures.page(this.fixture);
+  }
+
+  @Benchmark
+  public SendResult singlePass() {
+    return SendResult.parse(this.response);
+  }
+
+  @Benchmark
+  public SendResult legacy() {
+    return LegacySendClassifier.classify(this.response);
+  }
+}
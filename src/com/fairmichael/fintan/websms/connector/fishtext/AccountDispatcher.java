@@ -0,0 +1,126 @@
+package com.fairmichael.fintan.websms.connector.fishtext;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import android.content.Context;
+import de.ub0r.android.websms.connector.common.Log;
+
+/**
+ * Chooses the account a send goes out with. Accounts are picked at random,
+ * weighted by their remaining balance and how quickly fishtext has been
+ * answering for them, so that sends spread over the accounts and the fuller,
+ * faster ones take more. The others follow in order of weight, for failing
+ * over when a login is rejected.
+ *
+ * @author Fintan Fairmichael
+ */
+final class AccountDispatcher {
+  /** How long an account whose login was rejected is tried last, in ms. */
+  static final long LOGIN_FAILURE_HOLD = 15 * 60 * 1000L;
+
+  /** Weight of a balance of zero, as free sends may still go through. */
+  private static final double MIN_BALANCE = 0.05;
+
+  private static final Random RANDOM = new Random();
+
+  private AccountDispatcher() {
+  }
+
+  /**
+   * @param context
+   * @param subConnectorId
+   *          the subconnector chosen for the command, may be null
+   * @return the accounts to try, in order. Only the pinned account if the
+   *         subconnector is pinned to one.
+   */
+  static List<FishtextAccount> order(final Context context, final String subConnectorId) {
+    final FishtextAccount pinned = FishtextAccount.forSubConnector(subConnectorId);
+    if (pinned != null) {
+      return Collections.singletonList(pinned);
+    }
+    final List<FishtextAccount> accounts = FishtextAccount.configured(context);
+    if (accounts.size() <= 1) {
+      return accounts.isEmpty() ? Collections.singletonList(FishtextAccount.get(1)) : accounts;
+    }
+
+    final List<FishtextAccount> healthy = new ArrayList<FishtextAccount>(accounts.size());
+    final List<FishtextAccount> failed = new ArrayList<FishtextAccount>();
+    for (FishtextAccount account : accounts) {
+      if (account.session.loginFailedWithin(LOGIN_FAILURE_HOLD)) {
+        failed.add(account);
+      } else {
+        healthy.add(account);
+      }
+    }
+    final double[] weights = weights(healthy);
+    final List<FishtextAccount> ordered = new ArrayList<FishtextAccount>(accounts.size());
+    if (!healthy.isEmpty()) {
+      final FishtextAccount first = pick(healthy, weights);
+      ordered.add(first);
+      healthy.remove(first);
+      sortByWeight(healthy);
+      ordered.addAll(healthy);
+    }
+    ordered.addAll(failed);
+    Log.d(ConnectorFishtext.TAG, "Dispatching to " + ordered);
+    Metrics.count("account.dispatch." + ordered.get(0).number);
+    return ordered;
+  }
+
+  /**
+   * @param accounts
+   * @return the weight of each account: its balance per second of latency
+   */
+  private static double[] weights(final List<FishtextAccount> accounts) {
+    final double[] weights = new double[accounts.size()];
+    // Accounts with an unknown balance count as average
+    double knownTotal = 0;
+    int known = 0;
+    for (int i = 0; i < weights.length; i++) {
+      final BigDecimal amount = accounts.get(i).ledger.amount();
+      weights[i] = amount == null ? -1 : Math.max(MIN_BALANCE, amount.doubleValue());
+      if (amount != null) {
+        knownTotal += weights[i];
+        known++;
+      }
+    }
+    final double average = known == 0 ? 1 : knownTotal / known;
+    for (int i = 0; i < weights.length; i++) {
+      if (weights[i] < 0) {
+        weights[i] = average;
+      }
+      weights[i] /= Math.max(100, accounts.get(i).getAverageLatency()) / 1000.0;
+    }
+    return weights;
+  }
+
+  private static FishtextAccount pick(final List<FishtextAccount> accounts, final double[] weights) {
+    double total = 0;
+    for (double weight : weights) {
+      total += weight;
+    }
+    double r = RANDOM.nextDouble() * total;
+    for (int i = 0; i < weights.length; i++) {
+      r -= weights[i];
+      if (r < 0) {
+        return accounts.get(i);
+      }
+    }
+    return accounts.get(accounts.size() - 1);
+  }
+
+  private static void sortByWeight(final List<FishtextAccount> accounts) {
+    final double[] weights = weights(accounts);
+    final List<FishtextAccount> unsorted = new ArrayList<FishtextAccount>(accounts);
+    Collections.sort(accounts, new Comparator<FishtextAccount>() {
+      public int compare(final FishtextAccount a, final FishtextAccount b) {
+        return Double.compare(weights[unsorted.indexOf(b)], weights[unsorted.indexOf(a)]);
+      }
+    });
+  }
+}
@@ -0,0 +1,37 @@
+package com.fairmichael.fintan.websms.connector.fishtext;
+
+import android.content.SharedPreferences;
+
+/**
+ * Writes of string preferences the connector makes from several threads.
+ * SharedPreferences.Editor.apply() only arrived with API 9, so the commits
+ * happen under one lock shared by every writer in the process.
+ *
+ * @author Fintan Fairmichael
+ */
+final class AtomicPreferences {
+  private static final Object LOCK = new Object();
+
+  private AtomicPreferences() {
+  }
+
+  /**
+   * @param p
+   * @param key
+   * @param value
+   *          null to remove the preference
+   */
+  static void set(final SharedPreferences p, final String key, final String value) {
+    synchronized (LOCK) {
+      commit(p, key, value);
+    }
+  }
+
+  private static void commit(final SharedPreferences p, final String key, final String value) {
+    if (value == null) {
+      p.edit().remove(key).commit();
+    } else {
+      p.edit().putString(key, value).commit();
+    }
+  }
+}
@@ -0,0 +1,135 @@
+package com.fairmichael.fintan.websms.connector.fishtext;
+
+import java.math.BigDecimal;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import android.os.SystemClock;
+
+/**
+ * Keeps the balance up to date locally by taking the cost of each send off
+ * the last balance fetched from fishtext, so a send doesn't need another
+ * request to getBalance. Reconciles with the server now and again, and
+ * whenever the cost of a send isn't known. Each FishtextAccount has its own.
+ *
+ * @author Fintan Fairmichael
+ */
+final class BalanceLedger {
+  /** How long a local balance is trusted before fetching it again, in ms. */
+  static final long RECONCILE_INTERVAL = 30 * 60 * 1000L;
+
+  /** Splits a balance as shown into its text and amount. */
+  private static final Pattern BALANCE = Pattern.compile("^(.*?)(\\d{1,}\\.\\d{1,})$");
+
+  /** Whatever preceded the amount on the balance page, e.g. the currency. */
+  private String prefix = null;
+  /** The balance, null if not known. */
+  private BigDecimal amount = null;
+  /** When the balance was last fetched, 0 if never. */
+  private long fetched = 0;
+  /** Set when a charge couldn't be applied, so the balance can't be trusted. */
+  private boolean stale = true;
+
+  BalanceLedger() {
+  }
+
+  /**
+   * @return the ledger of the current account
+   */
+  static BalanceLedger get() {
+    return FishtextAccount.current().ledger;
+  }
+
+  /**
+   * Start again from a balance fetched from fishtext.
+   *
+   * @param balance
+   *          the balance as returned by ConnectorFishtext.parseBalance
+   */
+  synchronized void seed(final String balance) {
+    final Matcher matcher = BALANCE.matcher(balance);
+    if (matcher.find()) {
+      this.prefix = matcher.group(1);
+      this.amount = new BigDecimal(matcher.group(2));
+      this.fetched = SystemClock.elapsedRealtime();
+      this.stale = false;
+    } else {
+      this.reset();
+    }
+  }
+
+  /** Forget the balance, e.g. because a different account logged in. */
+  synchronized void reset() {
+    this.prefix = null;
+    this.amount = null;
+    this.fetched = 0;
+    this.stale = true;
+  }
+
+  /**
+   * Take the cost of a send off the balance.
+   *
+   * @param result
+   *          a send result
+   * @return the new balance for display, null if it isn't known anymore
+   */
+  synchronized String charge(final SendResult result) {
+    if (result.status != SendResult.Status.SENT || SendResult.COST_FREE.equals(result.cost)) {
+      // Nothing was charged
+      return this.display();
+    }
+    if (this.amount == null || SendResult.COST_UNKNOWN.equals(result.cost) || result.currency.length() == 0
+        || !this.prefix.endsWith(result.currency)) {
+      // An empty currency would match any prefix, so it is as good as unknown
+      Metrics.count("balance.charge_unknown");
+      this.stale = true;
+      return null;
+    }
+    this.amount = this.amount.subtract(new BigDecimal(result.cost));
+    if (this.amount.signum() < 0) {
+      // Can't be right, fishtext must have charged differently
+      this.stale = true;
+      return null;
+    }
+    return this.display();
+  }
+
+  /**
+   * @return the balance for display, null if it isn't known or can't be
+   *         trusted
+   */
+  synchronized String display() {
+    if (this.stale || this.amount == null) {
+      return null;
+    }
+    return this.prefix + this.amount.toPlainString();
+  }
+
+  /**
+   * @param maxAge
+   *          in ms
+   * @return the balance for display, null if it isn't known, can't be trusted
+   *         or was fetched longer than maxAge ago
+   */
+  synchronized String display(final long maxAge) {
+    if (SystemClock.elapsedRealtime() - this.fetched > maxAge) {
+      return null;
+    }
+    return this.display();
+  }
+
+  /**
+   * @return the amount of the balance, null if it isn't known or can't be
+   *         trusted
+   */
+  synchronized BigDecimal amount() {
+    return this.stale ? null : this.amount;
+  }
+
+  /**
+   * @return true if the balance should be fetched from fishtext again
+   */
+  synchronized boolean needsReconcile() {
+    return this.stale || SystemClock.elapsedRealtime() - this.fetched >= RECONCILE_INTERVAL;
+  }
+}
@@ -0,0 +1,149 @@
+package com.fairmichael.fintan.websms.connector.fishtext;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+import de.ub0r.android.websms.connector.common.Log;
+
+/**
+ * Fetches the balance for everyone who wants it. Callers arriving while a
+ * fetch is in flight wait for that one instead of making their own request,
+ * and the balance can be refreshed in the background at an interval. The
+ * result ends up in the BalanceLedger. Each FishtextAccount has its own.
+ *
+ * @author Fintan Fairmichael
+ */
+final class BalanceService {
+  /** Preference name for the background refresh interval, in minutes. */
+  static final String PREFS_BALANCE_REFRESH = "balance_refresh_fishtext";
+  /** Longest time a balance is shown without having been fetched again, in ms. */
+  static final long MAX_STALENESS = BalanceLedger.RECONCILE_INTERVAL;
+
+  private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+    public Thread newThread(final Runnable r) {
+      final Thread thread = new Thread(r, "fishtext-balance");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  private final FishtextAccount account;
+  /** The fetch in flight, null if none. */
+  private FutureTask<String> inFlight = null;
+  /** Epoch inFlight was started in. */
+  private int inFlightEpoch = 0;
+  /** Bumped on each login, as fetches from before it may show the wrong account. */
+  private int epoch = 0;
+  private ScheduledFuture<?> refresh = null;
+  private long refreshMillis = 0;
+
+  BalanceService(final FishtextAccount account) {
+    this.account = account;
+  }
+
+  /**
+   * @return the service of the current account
+   */
+  static BalanceService get() {
+    return FishtextAccount.current().balanceService;
+  }
+
+  /**
+   * Fetch the balance, or wait for the fetch already in flight.
+   *
+   * @param context
+   * @return the balance, null if there is no valid balance (not logged in) or
+   *         it could not be fetched
+   */
+  String fetch(final Context context) {
+    final FutureTask<String> task;
+    boolean owner = false;
+    synchronized (this) {
+      if (this.inFlight != null && this.inFlightEpoch == this.epoch) {
+        Metrics.count("balance.coalesced");
+        task = this.inFlight;
+      } else {
+        task = new FutureTask<String>(new Callable<String>() {
+          public String call() {
+            return ConnectorFishtext.fetchBalance(context);
+          }
+        });
+        this.inFlight = task;
+        this.inFlightEpoch = this.epoch;
+        owner = true;
+      }
+    }
+    if (owner) {
+      try {
+        task.run();
+      } finally {
+        synchronized (this) {
+          if (this.inFlight == task) {
+            this.inFlight = null;
+          }
+        }
+      }
+    }
+    try {
+      return task.get();
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      return null;
+    } catch (ExecutionException ee) {
+      if (ee.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) ee.getCause();
+      }
+      throw new IllegalStateException(ee.getCause());
+    }
+  }
+
+  /** A new login happened, so don't hand out fetches started before it. */
+  synchronized void loggedIn() {
+    this.epoch++;
+  }
+
+  /**
+   * Start, change or stop the background refresh to match the preference.
+   *
+   * @param context
+   */
+  synchronized void schedule(final Context context) {
+    final long millis = ConnectorConfig.get(context).balanceRefresh;
+    if (millis == this.refreshMillis) {
+      return;
+    }
+    if (this.refresh != null) {
+      this.refresh.cancel(false);
+      this.refresh = null;
+    }
+    this.refreshMillis = millis;
+    if (millis <= 0) {
+      return;
+    }
+    Log.d(ConnectorFishtext.TAG, "Refreshing the balance of " + this.account + " every " + millis + "ms");
+    final Context appContext = context.getApplicationContext();
+    this.refresh = SCHEDULER.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        final FishtextAccount account = BalanceService.this.account;
+        if (!account.session.isFresh() && account.ledger.display() == null) {
+          // Nothing worth refreshing, and we don't log in from the background
+          return;
+        }
+        Metrics.count("balance.background_refresh");
+        FishtextAccount.setCurrent(account);
+        try {
+          BalanceService.this.fetch(appContext);
+        } finally {
+          FishtextAccount.setCurrent(null);
+        }
+      }
+    }, millis, millis, TimeUnit.MILLISECONDS);
+  }
+}
@@ -0,0 +1,227 @@
+package com.fairmichael.fintan.websms.connector.fishtext;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import de.ub0r.android.websms.connector.common.Log;
+
+/**
+ * Sends one message to a long list of recipients as several smaller posts,
+ * a few of them at a time, all sharing the current session. Chunks whose post
+ * never reached fishtext are retried once and the per-chunk results are merged
+ * into one SendResult. Chunks that may or may not have been sent are never
+ * retried, their numbers are reported as unknown.
+ * 
+ * @author Fintan Fairmichael
+ */
+final class BatchSender {
+  /** Maximum number of recipients in one post. */
+  static final int CHUNK_SIZE = 50;
+  /** Maximum number of posts in flight at once. */
+  static final int MAX_PARALLEL_POSTS = 3;
+
+  /** Posts the message to one chunk of recipients. */
+  interface ChunkPoster {
+    SendResult post(List<String> numbers) throws IOException;
+  }
+
+  private BatchSender() {
+  }
+
+  /**
+   * Split a list into chunks of at most size elements.
+   * 
+   * @param items
+   * @param size
+   * @return the chunks
+   */
+  static <T> List<List<T>> chunk(final List<T> items, final int size) {
+    final List<List<T>> chunks = new ArrayList<List<T>>((items.size() + size - 1) / size);
+    for (int i = 0; i < items.size(); i += size) {
+      chunks.add(new ArrayList<T>(items.subList(i, Math.min(i + size, items.size()))));
+    }
+    return chunks;
+  }
+
+  /**
+   * Send to all numbers in chunks.
+   * 
+   * @param numbers
+   * @param poster
+   * @return the merged result
+   * @throws IOException
+   *           SendInDoubtException if no chunk is known to have been sent but
+   *           some may have been, otherwise an IOException if no chunk could
+   *           be sent because of one
+   */
+  static SendResult send(final List<String> numbers, final ChunkPoster poster) throws IOException {
+    final List<List<String>> chunks = chunk(numbers, CHUNK_SIZE);
+    final Object[] outcomes = new Object[chunks.size()];
+    final ExecutorService pool = Executors.newFixedThreadPool(Math.min(MAX_PARALLEL_POSTS, chunks.size()));
+    try {
+      postChunks(pool, poster, chunks, outcomes);
+      // Retry only the chunks that certainly did not reach fishtext
+      final List<List<String>> retryChunks = new ArrayList<List<String>>();
+      final List<Integer> retryIndexes = new ArrayList<Integer>();
+      for (int i = 0; i < outcomes.length; i++) {
+        if (isRetryable(outcomes[i])) {
+          retryChunks.add(chunks.get(i));
+          retryIndexes.add(i);
+        }
+      }
+      if (!retryChunks.isEmpty()) {
+        Log.d(ConnectorFishtext.TAG, "Retrying " + retryChunks.size() + " of " + chunks.size() + " chunks");
+        final Object[] retryOutcomes = new Object[retryChunks.size()];
+        postChunks(pool, poster, retryChunks, retryOutcomes);
+        for (int i = 0; i < retryOutcomes.length; i++) {
+          outcomes[retryIndexes.get(i)] = retryOutcomes[i];
+        }
+      }
+    } finally {
+      pool.shutdown();
+    }
+    return merge(chunks, outcomes);
+  }
+
+  /**
+   * Post the chunks on the pool, storing each chunk's SendResult or the
+   * Throwable it failed with in outcomes.
+   */
+  private static void postChunks(final ExecutorService pool, final ChunkPoster poster, final List<List<String>> chunks,
+      final Object[] outcomes) {
+    final List<Future<SendResult>> futures = new ArrayList<Future<SendResult>>(chunks.size());
+    for (final List<String> chunk : chunks) {
+      futures.add(pool.submit(new Callable<SendResult>() {
+        public SendResult call() throws IOException {
+          return poster.post(chunk);
+        }
+      }));
+    }
+    for (int i = 0; i < futures.size(); i++) {
+      try {
+        outcomes[i] = futures.get(i).get();
+      } catch (ExecutionException ee) {
+        Log.d(ConnectorFishtext.TAG, "Chunk " + i + " failed: " + ee.getCause());
+        outcomes[i] = ee.getCause();
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+        outcomes[i] = new IOException("Interrupted");
+      }
+    }
+  }
+
+  private static boolean isSent(final Object outcome) {
+    return outcome instanceof SendResult && ((SendResult) outcome).status == SendResult.Status.SENT;
+  }
+
+  /**
+   * @param outcome
+   *          of a chunk
+   * @return true if the chunk's post failed before it was sent, so it can be
+   *         posted again without sending the message twice
+   */
+  private static boolean isRetryable(final Object outcome) {
+    return outcome instanceof IOException && RetryPolicy.isRetryable((IOException) outcome, false);
+  }
+
+  /**
+   * @param outcome
+   *          of a chunk
+   * @return true if the chunk may or may not have been sent
+   */
+  private static boolean isInDoubt(final Object outcome) {
+    if (outcome instanceof SendResult) {
+      final SendResult.Status status = ((SendResult) outcome).status;
+      return status != SendResult.Status.SENT && status != SendResult.Status.FAILED;
+    }
+    return outcome instanceof SendInDoubtException;
+  }
+
+  /**
+   * Merge the outcomes of the chunks into one result.
+   * 
+   * @param chunks
+   * @param outcomes
+   *          the SendResult or Throwable of each chunk
+   * @return the merged result, sent if any chunk was sent
+   * @throws IOException
+   *           SendInDoubtException if no chunk was sent but some may have
+   *           been, as then none of the message can be sent again safely
+   */
+  private static SendResult merge(final List<List<String>> chunks, final Object[] outcomes) throws IOException {
+    boolean sentToAll = true;
+    BigDecimal cost = BigDecimal.ZERO;
+    boolean costKnown = true, allFree = true;
+    String currency = "";
+    final List<String> invalidNumbers = new ArrayList<String>();
+    final List<String> failedNumbers = new ArrayList<String>();
+    final List<String> unknownNumbers = new ArrayList<String>();
+    SendResult sent = null, failed = null;
+    SendInDoubtException doubt = null;
+    Throwable error = null;
+
+    for (int i = 0; i < outcomes.length; i++) {
+      if (isInDoubt(outcomes[i])) {
+        Log.d(ConnectorFishtext.TAG, "Chunk " + i + " may have been sent");
+        sentToAll = false;
+        // Whatever it cost, if anything, isn't known
+        costKnown = false;
+        unknownNumbers.addAll(chunks.get(i));
+        if (doubt == null) {
+          doubt = outcomes[i] instanceof SendInDoubtException ? (SendInDoubtException) outcomes[i] : new SendInDoubtException(
+              new IOException("Chunk " + i + " response not recognised"));
+        }
+      } else if (isSent(outcomes[i])) {
+        final SendResult result = (SendResult) outcomes[i];
+        sent = result;
+        sentToAll &= result.sentToAll;
+        for (String number : result.invalidNumbers) {
+          invalidNumbers.add(number);
+        }
+        if (SendResult.COST_UNKNOWN.equals(result.cost)) {
+          costKnown = false;
+        } else if (!SendResult.COST_FREE.equals(result.cost)) {
+          allFree = false;
+          cost = cost.add(new BigDecimal(result.cost));
+          currency = result.currency;
+        }
+      } else {
+        sentToAll = false;
+        failedNumbers.addAll(chunks.get(i));
+        if (outcomes[i] instanceof SendResult) {
+          if (((SendResult) outcomes[i]).status == SendResult.Status.FAILED) {
+            failed = (SendResult) outcomes[i];
+          }
+        } else {
+          error = (Throwable) outcomes[i];
+        }
+      }
+    }
+
+    if (sent == null) {
+      // Nothing is known to have gone through, report like a single send
+      if (doubt != null) {
+        throw doubt;
+      } else if (failed != null) {
+        return failed;
+      } else if (error instanceof IOException) {
+        throw (IOException) error;
+      } else if (error instanceof RuntimeException) {
+        throw (RuntimeException) error;
+      }
+      throw (Error) error;
+    }
+
+    final String totalCost = !costKnown ? SendResult.COST_UNKNOWN : allFree ? SendResult.COST_FREE : cost.toPlainString();
+    return new SendResult(SendResult.Status.SENT, sentToAll, totalCost, currency, invalidNumbers.toArray(new String[invalidNumbers.size()]),
+        failedNumbers.toArray(new String[failedNumbers.size()]), unknownNumbers.toArray(new String[unknownNumbers.size()]),
+        "");
+  }
+}
@@ -0,0 +1,130 @@
+package com.fairmichael.fintan.websms.connector.fishtext;
+
+import java.io.IOException;
+
+import android.os.SystemClock;
+import de.ub0r.android.websms.connector.common.Log;
+
+/**
+ * Stops requests to fishtext.com for a while once several in a row have
+ * failed, so commands fail fast (and sends are queued) instead of each holding
+ * a thread in connect timeouts. After the pause a single trial request is let
+ * through; if that fails too the pause is doubled.
+ *
+ * @author Fintan Fairmichael
+ */
+final class CircuitBreaker {
+  enum State {
+    /** Requests go through. */
+    CLOSED,
+    /** Requests are rejected. */
+    OPEN,
+    /** One trial request is in flight, others are rejected. */
+    HALF_OPEN
+  }
+
+  /** Consecutive failures that open the breaker. */
+  private static final int FAILURE_THRESHOLD = 3;
+  private static final long MIN_OPEN_MILLIS = 30 * 1000L;
+  private static final long MAX_OPEN_MILLIS = 10 * 60 * 1000L;
+
+  private static final CircuitBreaker INSTANCE = new CircuitBreaker(MIN_OPEN_MILLIS);
+
+  /** The first pause after the breaker opens, in ms. */
+  private final long minOpenMillis;
+  private State state = State.CLOSED;
+  private int failures = 0;
+  private long openedAt = 0;
+  private long openMillis;
+
+  /**
+   * @param minOpenMillis
+   *          the first pause after the breaker opens, in ms
+   */
+  CircuitBreaker(final long minOpenMillis) {
+    this.minOpenMillis = minOpenMillis;
+    this.openMillis = minOpenMillis;
+  }
+
+  static CircuitBreaker get() {
+    return INSTANCE;
+  }
+
+  /**
+   * Call before each request, and report its outcome with success() or
+   * failure() afterwards.
+   *
+   * @throws OpenException
+   *           if the request must not be made
+   */
+  synchronized void acquire() throws OpenException {
+    switch (this.state) {
+    case CLOSED:
+      return;
+    case OPEN:
+      final long remaining = this.openedAt + this.openMillis - SystemClock.elapsedRealtime();
+      if (remaining <= 0) {
+        Log.d(ConnectorFishtext.TAG, "Circuit breaker half open, letting a trial request through");
+        this.state = State.HALF_OPEN;
+        return;
+      }
+      Metrics.count("breaker.rejected");
+      throw new OpenException(remaining);
+    default:
+      Metrics.count("breaker.rejected");
+      throw new OpenException(0);
+    }
+  }
+
+  /** The request reached fishtext and got a sensible response. */
+  synchronized void success() {
+    if (this.state != State.CLOSED) {
+      Log.d(ConnectorFishtext.TAG, "Circuit breaker closed");
+      Metrics.count("breaker.closed");
+    }
+    this.state = State.CLOSED;
+    this.failures = 0;
+    this.openMillis = this.minOpenMillis;
+  }
+
+  /** The request failed to reach fishtext, or fishtext failed it. */
+  synchronized void failure() {
+    this.failures++;
+    if (this.state == State.HALF_OPEN) {
+      this.openMillis = Math.min(this.openMillis * 2, MAX_OPEN_MILLIS);
+      this.open();
+    } else if (this.state == State.CLOSED && this.failures >= FAILURE_THRESHOLD) {
+      this.open();
+    }
+  }
+
+  private void open() {
+    Log.d(ConnectorFishtext.TAG, "Circuit breaker open for " + this.openMillis + "ms after " + this.failures + " failures");
+    Metrics.count("breaker.opened");
+    this.state = State.OPEN;
+    this.openedAt = SystemClock.elapsedRealtime();
+  }
+
+  synchronized State getState() {
+    return this.state;
+  }
+
+  /**
+   * @return the state and failure count, for the metrics dump
+   */
+  synchronized String getStats() {
+    return "state=" + this.state + ", consecutive failures=" + this.failures + ", open for ms=" + this.openMillis;
+  }
+
+  /**
+   * Thrown instead of making a request while the breaker is open. The request
+   * was never sent.
+   */
+  static final class OpenException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    OpenException(final long remaining) {
+      super("fishtext.com is unavailable, not trying again for " + remaining + "ms");
+    }
+  }
+}
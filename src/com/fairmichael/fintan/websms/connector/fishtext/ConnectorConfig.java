@@ -0,0 +1,160 @@
+package com.fairmichael.fintan.websms.connector.fishtext;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
+import android.content.pm.ApplicationInfo;
+import android.preference.PreferenceManager;
+import de.ub0r.android.websms.connector.common.Log;
+
+/**
+ * The connector's preferences, read once into final fields. A listener
+ * replaces the snapshot whenever a preference changes, so commands read
+ * plain fields instead of looking each preference up in SharedPreferences.
+ *
+ * @author Fintan Fairmichael
+ */
+final class ConnectorConfig {
+  private static volatile ConnectorConfig current = null;
+  /**
+   * SharedPreferences only keeps weak references to its listeners, so this
+   * one is held here for the life of the process.
+   */
+  private static OnSharedPreferenceChangeListener listener = null;
+
+  final boolean enabled;
+  /** Login of each account by number - 1, empty if not set. The main account's is the sender. */
+  private final String[] logins = new String[FishtextAccount.MAX_ACCOUNTS];
+  /** Password of each account by number - 1, empty if not set. */
+  private final String[] passwords = new String[FishtextAccount.MAX_ACCOUNTS];
+  final boolean loginWithDefault;
+  /** How long a confirmed session is trusted, in ms. */
+  final long sessionTtl;
+  /** The send for free preference as set, SEND_FREE_NOT_SET if it isn't. */
+  final String sendFree;
+  /** The ST parameter of a send. */
+  final String sendType;
+  /** What messages are sent from, one of the SettingsSync.SEND_FROM_ values. */
+  final String sendFrom;
+  /** Name and email address to set on fishtext.com, empty if not set. */
+  final String firstName;
+  final String lastName;
+  final String emailAddress;
+  final boolean notifySuccessfulSend;
+  final boolean queueFailedSends;
+  /** How long to collect sends before flushing them, in ms. 0 to send now. */
+  final long deferSends;
+  /** Interval of the background balance refresh, in ms. 0 for none. */
+  final long balanceRefresh;
+  final FishtextUrls urls;
+  /** Whether the platform's trust store may accept certificates that are not pinned. */
+  final boolean platformCertificates;
+
+  private ConnectorConfig(final SharedPreferences p, final boolean debuggable) {
+    this.enabled = p.getBoolean(Preferences.PREFS_ENABLED, false);
+    for (int i = 0; i < FishtextAccount.MAX_ACCOUNTS; i++) {
+      final int number = i + 1;
+      this.logins[i] = number == 1 ? "" : p.getString(FishtextAccount.PREFS_LOGIN + number, "").trim();
+      this.passwords[i] = p.getString(number == 1 ? Preferences.PREFS_PASSWORD : FishtextAccount.PREFS_PASSWORD + number, "");
+    }
+    this.loginWithDefault = p.getBoolean(ConnectorFishtext.PREFS_LOGIN_WTIH_DEFAULT, false);
+    this.sessionTtl = minutes(p, ConnectorFishtext.PREFS_SESSION_TTL, FishtextSession.DEFAULT_TTL);
+    this.sendFree = p.getString(ConnectorFishtext.SEND_FREE, ConnectorFishtext.SEND_FREE_NOT_SET);
+    this.sendType = this.sendFree.equals(ConnectorFishtext.SEND_FREE_NOT_SET) ? ConnectorFishtext.SEND_FREE_FALSE : this.sendFree;
+    this.sendFrom = p.getString(SettingsSync.PREFS_SEND_FROM, SettingsSync.SEND_FROM_NOT_SET);
+    this.firstName = p.getString(SettingsSync.PREFS_FIRST_NAME, "").trim();
+    this.lastName = p.getString(SettingsSync.PREFS_LAST_NAME, "").trim();
+    this.emailAddress = p.getString(SettingsSync.PREFS_EMAIL_ADDRESS, "").trim();
+    this.notifySuccessfulSend = p.getBoolean(ConnectorFishtext.SUCCESSFUL_SEND_NOTIFICATION_PREFERENCE_ID, true);
+    this.queueFailedSends = p.getBoolean(OutboundQueue.PREFS_QUEUE_FAILED_SENDS, true);
+    this.deferSends = minutes(p, OutboundQueue.PREFS_DEFER_SENDS, 0);
+    this.balanceRefresh = minutes(p, BalanceService.PREFS_BALANCE_REFRESH, 0);
+    this.urls = FishtextUrls.forBase(p.getString(FishtextUrls.PREFS_BASE_URL, "").trim(), debuggable);
+    this.platformCertificates = p.getBoolean(FishtextHttpClient.PREFS_PLATFORM_CERTIFICATES, false);
+  }
+
+  /**
+   * @param context
+   * @return the current snapshot
+   */
+  static ConnectorConfig get(final Context context) {
+    final ConnectorConfig config = current;
+    return config != null ? config : load(context);
+  }
+
+  private static synchronized ConnectorConfig load(final Context context) {
+    if (current == null) {
+      final SharedPreferences p = PreferenceManager.getDefaultSharedPreferences(context);
+      final boolean debuggable = (context.getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0;
+      if (listener == null) {
+        final Context appContext = context.getApplicationContext();
+        listener = new OnSharedPreferenceChangeListener() {
+          public void onSharedPreferenceChanged(final SharedPreferences sp, final String key) {
+            if (isState(key)) {
+              return;
+            }
+            final ConnectorConfig previous = current;
+            current = new ConnectorConfig(sp, debuggable);
+            Log.d(ConnectorFishtext.TAG, "Preference " + key + " changed, config now " + current);
+            if (previous != null && !previous.urls.base.equals(current.urls.base)) {
+              // Nothing learned from one server applies to another
+              FishtextAccount.resetAll(appContext);
+            }
+          }
+        };
+        p.registerOnSharedPreferenceChangeListener(listener);
+      }
+      current = new ConnectorConfig(p, debuggable);
+    }
+    return current;
+  }
+
+  /**
+   * @param key
+   * @return true for preferences the connector keeps its own state in, rather
+   *         than settings
+   */
+  private static boolean isState(final String key) {
+    return key.startsWith(SettingsSync.PREFS_SNAPSHOT) || key.startsWith(RecipientNormaliser.PREFS_INVALID_NUMBERS);
+  }
+
+  private static long minutes(final SharedPreferences p, final String key, final long defaultMillis) {
+    try {
+      return Long.parseLong(p.getString(key, "")) * 60 * 1000L;
+    } catch (NumberFormatException nfe) {
+      return defaultMillis;
+    }
+  }
+
+  /**
+   * @param number
+   *          of an account, from 2
+   * @return its login, empty if not set
+   */
+  String getLogin(final int number) {
+    return this.logins[number - 1];
+  }
+
+  /**
+   * @param number
+   *          of an account, from 1
+   * @return its password, empty if not set
+   */
+  String getPassword(final int number) {
+    return this.passwords[number - 1];
+  }
+
+  @Override
+  public String toString() {
+    final StringBuilder sb = new StringBuilder();
+    sb.append("enabled=").append(this.enabled).append(", accounts=");
+    for (int i = 0; i < this.passwords.length; i++) {
+      sb.append(this.passwords[i].length() > 0 ? '+' : '-');
+    }
+    sb.append(", sessionTtl=").append(this.sessionTtl).append(", sendFree=").append(this.sendFree).append(", sendFrom=")
+        .append(this.sendFrom).append(", notify=").append(this.notifySuccessfulSend).append(", queue=").append(this.queueFailedSends).append(", defer=").append(this.deferSends)
+        .append(", balanceRefresh=").append(this.balanceRefresh).append(", base=").append(this.urls.base)
+        .append(", platformCertificates=").append(this.platformCertificates);
+    return sb.toString();
+  }
+}
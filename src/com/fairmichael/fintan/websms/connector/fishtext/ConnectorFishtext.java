@@ -18,22 +18,21 @@
  */
 package com.fairmichael.fintan.websms.connector.fishtext;
 
-import static com.fairmichael.fintan.websms.connector.fishtext.FishtextUtil.http;
-import static com.fairmichael.fintan.websms.connector.fishtext.FishtextUtil.parametersMapToParametersArray;
-
 import java.io.IOException;
+import java.math.BigDecimal;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import org.apache.http.message.BasicNameValuePair;
-
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
-import android.preference.PreferenceManager;
 import android.widget.Toast;
 import de.ub0r.android.websms.connector.common.BasicSMSLengthCalculator;
 import de.ub0r.android.websms.connector.common.Connector;
@@ -60,17 +59,8 @@ public class ConnectorFishtext extends Connector {
       + "Windows NT 5.1; ko; rv:1.9.2.3) Gecko/20100401 Firefox/3.6.3 (.NET CLR 3.5.30729)";
   /** Preference name for using default number as login. */
   public static final String PREFS_LOGIN_WTIH_DEFAULT = "login_with_default";
-
-  /** Login URL. */
-  private static final String LOGIN_URL = "https://www.fishtext.com/cgi-bin/mobi/account";
-  /** Login Referrer */
-  private static final String LOGIN_REFERRER = "https://www.fishtext.com/cgi-bin/mobi/account";
-  /** Get Balance URL */
-  private static final String GET_BALANCE_URL = "https://www.fishtext.com/cgi-bin/mobi/getBalance.cgi";
-  /** Send message page URL */
-  private static final String SEND_MESSAGE_PAGE_URL = "https://www.fishtext.com/cgi-bin/mobi/sendMessage.cgi";
-  /** Send SMS URL */
-  private static final String SEND_SMS_URL = "https://www.fishtext.com/SendSMS/SendSMS";
+  /** Preference name for how long a confirmed session is trusted, in minutes. */
+  public static final String PREFS_SESSION_TTL = "session_ttl_fishtext";
 
   /** Used encoding. */
   static final String ENCODING = "ISO-8859-15";
@@ -78,16 +68,25 @@ public class ConnectorFishtext extends Connector {
   /** Pattern for extracting the balance from getBalance response */
   private static final Pattern LOGGED_IN_BALANCE = Pattern.compile("^(.*?)(\\d{1,}\\.\\d{1,})");
   /** Pattern for extracting the message id from the send message page */
-  private static final Pattern MESSAGE_ID = Pattern.compile("<textarea class=\"messagelargeinput\" name=\"(\\w+)\" id=\"message\"");
+  static final Pattern MESSAGE_ID = Pattern.compile("<textarea class=\"messagelargeinput\" name=\"(\\w+)\" id=\"message\"");
+  /** Pattern for recognising a successful login response */
+  private static final Pattern LOGGED_IN = Pattern.compile("Welcome back");
+
+  /** Constant fields of the login form, encoded once. */
+  private static final byte[] REMEMBER_SESSION = FormEncoder.encodeConstant("rememberSession", "yes");
+  private static final byte[] ERROR_JS_OFF = FormEncoder.encodeConstant("_sp_errorJS", "0");
+  private static final byte[] TOOLTIP_INIT_ON = FormEncoder.encodeConstant("_sp_tooltip_init", "1");
 
   /** Preference identifier for notifying on successful send */
-  private static final String SUCCESSFUL_SEND_NOTIFICATION_PREFERENCE_ID = "successful_send_notification_fishtext";
+  static final String SUCCESSFUL_SEND_NOTIFICATION_PREFERENCE_ID = "successful_send_notification_fishtext";
 
-  private static final int MAXIMUM_MESSAGE_LENGTH = 459;
+  /** Longest text taken, split by the SendPlanner into posts fishtext accepts. */
+  private static final int MAXIMUM_MESSAGE_LENGTH = SendPlanner.MAXIMUM_MESSAGE_LENGTH * SendPlanner.MAXIMUM_PARTS;
 
   @Override
   public final ConnectorSpec initSpec(final Context context) {
-    Log.d(TAG, "Initing spec: " + PreferenceManager.getDefaultSharedPreferences(context).getAll());
+    final ConnectorConfig config = ConnectorConfig.get(context);
+    Log.d(TAG, "Initing spec: " + config);
     final String name = context.getString(R.string.connector_fishtext_name);
     ConnectorSpec c = new ConnectorSpec(name);
     c.setAuthor(context.getString(R.string.connector_fishtext_author));
@@ -96,16 +95,33 @@ public class ConnectorFishtext extends Connector {
     c.setSMSLengthCalculator(new BasicSMSLengthCalculator(new int[] { 160, 146, 153 }));
     c.setBalance(null);
     c.setCapabilities(ConnectorSpec.CAPABILITIES_UPDATE | ConnectorSpec.CAPABILITIES_SEND | ConnectorSpec.CAPABILITIES_PREFS);
-    c.addSubConnector("fishtext", c.getName(), SubConnectorSpec.FEATURE_MULTIRECIPIENTS);
+    final int features = SubConnectorSpec.FEATURE_MULTIRECIPIENTS | SubConnectorSpec.FEATURE_SENDLATER;
+    c.addSubConnector(FishtextAccount.SUBCONNECTOR_AUTO, c.getName(), features);
+    final List<FishtextAccount> accounts = FishtextAccount.configured(context);
+    if (accounts.size() > 1) {
+      // Let the user pin a send to one of the accounts
+      for (FishtextAccount account : accounts) {
+        final String accountName = account.number == 1 ? context.getString(R.string.account_main_fishtext) : config.getLogin(account.number);
+        c.addSubConnector(account.getSubConnectorId(), context.getString(R.string.account_fishtext, name, accountName), features);
+      }
+    }
     return c;
   }
 
   @Override
   public final ConnectorSpec updateSpec(final Context context, final ConnectorSpec connectorSpec) {
-    final SharedPreferences p = PreferenceManager.getDefaultSharedPreferences(context);
-    if (p.getBoolean(Preferences.PREFS_ENABLED, false)) {
-      if (p.getString(Preferences.PREFS_PASSWORD, "").length() > 0) {
+    if (ConnectorConfig.get(context).enabled) {
+      final List<FishtextAccount> accounts = FishtextAccount.configured(context);
+      if (!accounts.isEmpty()) {
         connectorSpec.setReady();
+        // Show what we know without a request, if it is recent enough
+        final String balance = FishtextAccount.displayBalances(context, BalanceService.MAX_STALENESS);
+        if (balance != null) {
+          connectorSpec.setBalance(balance);
+        }
+        for (FishtextAccount account : accounts) {
+          account.balanceService.schedule(context);
+        }
       } else {
         connectorSpec.setStatus(ConnectorSpec.STATUS_ENABLED);
       }
@@ -122,34 +138,104 @@ public class ConnectorFishtext extends Connector {
    * @return
    */
   public static boolean checkLoginAndGetBalance(final Context context, final ConnectorSpec spec) {
+    final String balance = BalanceService.get().fetch(context);
+    showBalance(context, spec, balance);
+    return balance != null;
+  }
+
+  /**
+   * Show the current account's new balance, along with the other accounts'.
+   * 
+   * @param context
+   * @param spec
+   *          may be null
+   * @param balance
+   *          may be null
+   */
+  private static void showBalance(final Context context, final ConnectorSpec spec, final String balance) {
+    if (spec != null && balance != null) {
+      final String balances = FishtextAccount.displayBalances(context, Long.MAX_VALUE);
+      spec.setBalance(balances == null ? balance : balances);
+    }
+  }
+
+  /**
+   * Load getBalance. Use BalanceService.fetch, which shares the request
+   * between concurrent callers, rather than calling this directly.
+   * 
+   * @param context
+   * @return the balance, null if the response had none or failed
+   */
+  static String fetchBalance(final Context context) {
     // Load checkBalance, use regexp
+    final FishtextUrls urls = FishtextUrls.get(context);
     try {
-      String response = FishtextUtil.http(context, GET_BALANCE_URL);
-
-      final Matcher matcher = LOGGED_IN_BALANCE.matcher(response);
-      if (matcher.find()) {
-        String balance = matcher.group(0);
-        balance = FishtextUtil.currencyFix(balance);
+      final String response = FishtextUtil.httpHedged(context, urls.getBalance);
+      final long parseStart = System.nanoTime();
+      final String balance = parseBalance(response);
+      Metrics.time("parse.balance", parseStart);
+      if (balance != null) {
         Log.d(TAG, "Balance: " + balance);
-        if (spec != null) {
-          spec.setBalance(balance);
-        }
-        return true;
+        BalanceLedger.get().seed(balance);
+        FishtextSession.get().validBalance();
+        return balance;
       } else {
         Log.d(TAG, "Get balance did not have a valid balance.");
-        return false;
+        FishtextSession.get().invalidate();
+        return null;
       }
 
     } catch (IOException ioe) {
-      Log.d(TAG, "IOException when loading " + GET_BALANCE_URL);
-      return false;
+      Log.d(TAG, "IOException when loading " + urls.getBalance);
+      return null;
+    }
+  }
+
+  /**
+   * Extract the balance from a getBalance response.
+   * 
+   * @param response
+   * @return the balance with the currency symbol fixed, null if the response
+   *         had no valid balance
+   */
+  static String parseBalance(final String response) {
+    final Matcher matcher = LOGGED_IN_BALANCE.matcher(response);
+    if (matcher.find()) {
+      return FishtextUtil.currencyFix(matcher.group(0));
+    }
+    return null;
+  }
+
+  public static void doLogin(final Context context, final String login) {
+    try {
+      login(context, login);
+    } catch (IOException ioe) {
+      Log.d(TAG, "An IOException occurred during login. " + ioe);
+      throw new WebSMSException(context, R.string.error_http);
     }
   }
 
-  public static void doLogin(final Context context, String login) {
-    final SharedPreferences p = PreferenceManager.getDefaultSharedPreferences(context);
+  /**
+   * Like doLogin, but leaves IOExceptions to the caller.
+   * 
+   * @param context
+   * @param login
+   * @throws IOException
+   */
+  private static void login(final Context context, final String login) throws IOException {
+    final FishtextSession session = FishtextSession.get();
+    session.lockLogin();
+    try {
+      loginLocked(context, session, login);
+    } finally {
+      session.unlockLogin();
+    }
+  }
 
-    Utils.clearCookies();
+  private static void loginLocked(final Context context, final FishtextSession session, String login) throws IOException {
+    session.clearCookies();
+    BalanceLedger.get().reset();
+    BalanceService.get().loggedIn();
     Log.d(TAG, "Cleared cookies as we're about to login");
 
     if (login.startsWith("+")) {
@@ -157,36 +243,74 @@ public class ConnectorFishtext extends Connector {
     } else if (login.startsWith("00")) {
       login = login.substring(2);
     }
-    Log.d(TAG, "Login: " + login);
+    final FishtextAccount account = FishtextAccount.current();
+    Log.d(TAG, "Login: " + login + " (" + account + ")");
+    Metrics.count("login.attempts");
 
-    ArrayList<BasicNameValuePair> postData = PostDataBuilder.start().add("mobile", login)
-        .add("password", p.getString(Preferences.PREFS_PASSWORD, "")).add("rememberSession", "yes").add("_sp_errorJS", "0")
-        .add("_sp_tooltip_init", "1").data();
+    final FormEncoder postData = PostDataBuilder.start().add("mobile", login).add("password", account.getPassword(context))
+        .add(REMEMBER_SESSION).add(ERROR_JS_OFF).add(TOOLTIP_INIT_ON).data();
     // Log.d(TAG, "Post data (WARNING PASSWORD VISIBLE!): " + postData);
 
-    try {
-      String loginResponse = FishtextUtil.http(context, LOGIN_URL, postData, LOGIN_REFERRER);
-
-      if (!loginResponse.contains("Welcome back")) {
-        Utils.clearCookies();
-        Log.d(TAG, "Login did not succeed. Cleared cookies.");
-        throw new WebSMSException(context, R.string.error_pw);
-      }
+    final FishtextUrls urls = FishtextUrls.get(context);
+    final ResponseScanner loginResponse = FishtextUtil.scan(context, urls.login, postData, urls.loginReferrer,
+        new ResponseScanner().find("loggedIn", LOGGED_IN));
+
+    if (!loginResponse.found("loggedIn")) {
+      session.clearCookies();
+      session.saveCookies(context);
+      session.loginFailed();
+      Metrics.count("login.failed");
+      Log.d(TAG, "Login did not succeed. Cleared cookies.");
+      throw new WebSMSException(context, R.string.error_pw);
+    }
+    session.loggedIn(context);
+  }
 
+  public static void ensureLoggedIn(final Context context, final ConnectorSpec spec, final String login, final boolean updateBalance) {
+    try {
+      checkLogin(context, spec, login, updateBalance);
     } catch (IOException ioe) {
       Log.d(TAG, "An IOException occurred during login. " + ioe);
       throw new WebSMSException(context, R.string.error_http);
     }
   }
 
-  public static void ensureLoggedIn(final Context context, final ConnectorSpec spec, final String login, final boolean updateBalance) {
+  /**
+   * Like ensureLoggedIn, but leaves IOExceptions from the login to the caller.
+   * 
+   * @param context
+   * @param spec
+   * @param login
+   * @param updateBalance
+   * @throws IOException
+   */
+  static void checkLogin(final Context context, final ConnectorSpec spec, final String login, final boolean updateBalance)
+      throws IOException {
     Log.d(TAG, "Ensuring logged in.");
+    final FishtextSession session = FishtextSession.get();
+    session.setTtl(ConnectorConfig.get(context).sessionTtl);
+    if (!updateBalance && session.isFresh()) {
+      Log.d(TAG, "Session was confirmed recently, skipping login check.");
+      Metrics.count("login.check_skipped");
+      return;
+    }
+    final int logins = session.getLogins();
     if (!ConnectorFishtext.checkLoginAndGetBalance(context, spec)) {
-      Log.d(TAG, "Not logged in, so doing login.");
-
-      ConnectorFishtext.doLogin(context, login);
-      // If we reach here without throwing an exception then we're logged in
-      Log.d(TAG, "Should now be logged in");
+      session.lockLogin();
+      try {
+        if (session.getLogins() != logins) {
+          // Another send logged in while we were checking or waiting
+          Log.d(TAG, "Logged in by another command meanwhile.");
+          Metrics.count("login.shared");
+        } else {
+          Log.d(TAG, "Not logged in, so doing login.");
+          ConnectorFishtext.loginLocked(context, session, login);
+          // If we reach here without throwing an exception then we're logged in
+          Log.d(TAG, "Should now be logged in");
+        }
+      } finally {
+        session.unlockLogin();
+      }
       if (updateBalance) {
         // The aim was to update the balance, so do that now we're logged in
         ConnectorFishtext.checkLoginAndGetBalance(context, spec);
@@ -194,141 +318,318 @@ public class ConnectorFishtext extends Connector {
     }
   }
 
-  private void doSend(final Context context, final ConnectorCommand command) {
-    // Prepare recipients
-    final String[] recipients = command.getRecipients();
-    final String[] recipientsProcessed = new String[recipients.length];
-    // Map from processed recipient to original
-    final Map<String, String> recipientMap = new HashMap<String, String>();
-
-    for (int i = 0; i < recipients.length; i++) {
-      final String number = Utils.getRecipientsNumber(recipients[i]);
-      String recipientProcessed = Utils.national2international(command.getDefPrefix(), number);
-      if (recipientProcessed.charAt(0) == '+') {
-        // To be on the safe side, only do this if we're certain the first
-        // character is a '+'
-        recipientProcessed = recipientProcessed.substring(1);
+  /**
+   * @param context
+   * @param command
+   * @return when to send the command's message, 0 to send it now
+   */
+  private static long getDeferUntil(final Context context, final ConnectorCommand command) {
+    final long now = System.currentTimeMillis();
+    if (command.getSendLater() > now) {
+      return command.getSendLater();
+    }
+    final long collectFor = ConnectorConfig.get(context).deferSends;
+    if (collectFor <= 0) {
+      return 0;
+    }
+    // Join the messages already waiting, or start collecting, but never wait
+    // longer than collectFor
+    final long next = OutboundQueue.get(context).nextFlush();
+    return next > now ? Math.min(next, now + collectFor) : now + collectFor;
+  }
+
+  /**
+   * Log in if necessary, sync the settings and post the message, in chunks if
+   * it has many recipients. The cost is taken off the local balance.
+   * 
+   * @param context
+   * @param spec
+   *          may be null
+   * @param message
+   * @return the result
+   * @throws IOException
+   *           SendInDoubtException if the message may have been sent
+   */
+  static SendResult send(final Context context, final ConnectorSpec spec, final OutboundMessage message) throws IOException {
+    // Ensure logged in
+    ConnectorFishtext.checkLogin(context, spec, message.login, false);
+
+    // Set send preferences on fishtext if anything has changed or we have not
+    // set before. Done while the message id is fetched, but finished before
+    // posting.
+    final long deadline = RetryPolicy.deadline();
+    final FishtextAccount account = FishtextAccount.current();
+    final Future<?> settingsUpdate = FishtextUtil.background().submit(new Runnable() {
+      public void run() {
+        RetryPolicy.setDeadline(deadline);
+        FishtextAccount.setCurrent(account);
+        try {
+          ConnectorFishtext.updateSettingsIfNecessary(context, message.login);
+        } finally {
+          RetryPolicy.setDeadline(0);
+          FishtextAccount.setCurrent(null);
+        }
       }
-      recipientMap.put(recipientProcessed, recipients[i]);
-      recipientsProcessed[i] = recipientProcessed;
-      Log.d(TAG, "Input: " + recipients[i] + ", number: " + number + ", processed: " + recipientProcessed);
+    });
+    try {
+      getMessageId(context, message.login);
+    } finally {
+      FishtextUtil.await(settingsUpdate);
     }
-    final String recipientsProcessedString = FishtextUtil.appendWithSeparator(recipientMap.keySet(), ",");
-    Log.d(TAG, "Recipients string: " + recipientsProcessedString);
-    Log.d(TAG, "Recipients map: " + recipientMap);
 
     // if (true) {
     // Log.d(TAG, "Not sending for testing!");
     // return;
     // }
 
-    try {
-      final String sendMessagePage = FishtextUtil.http(context, SEND_MESSAGE_PAGE_URL);
-      final Matcher matcher = MESSAGE_ID.matcher(sendMessagePage);
-      if (!matcher.find()) {
-        Log.d(TAG, "Could not find message id in send message page.");
-        throw new WebSMSException(context, R.string.error_service);
-      }
-      final String messageId = matcher.group(1);
-      Log.d(TAG, "MessageID: " + messageId);
-      final String messageText = command.getText();
-      final SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
-      String sendForFreePreference = sp.getString(SEND_FREE, SEND_FREE_FALSE);
-      if (sendForFreePreference.equals(SEND_FREE_NOT_SET)) {
-        sendForFreePreference = SEND_FREE_FALSE;
+    final SendResult result;
+    if (message.numbers.size() <= BatchSender.CHUNK_SIZE) {
+      result = postMessage(context, message.login, message.sendType, message.text, message.numbers);
+    } else {
+      Log.d(TAG, "Sending to " + message.numbers.size() + " recipients in chunks");
+      result = BatchSender.send(message.numbers, new BatchSender.ChunkPoster() {
+        public SendResult post(final List<String> chunk) throws IOException {
+          // Chunks are posted from the batch's own threads
+          RetryPolicy.setDeadline(deadline);
+          FishtextAccount.setCurrent(account);
+          try {
+            return postMessage(context, message.login, message.sendType, message.text, chunk);
+          } finally {
+            RetryPolicy.setDeadline(0);
+            FishtextAccount.setCurrent(null);
+          }
+        }
+      });
+    }
+
+    SendPlanner.learnPrice(SendPlanner.segments(message.text), result, message.numbers.size());
+    // Keep the balance current from the cost rather than fetching it again
+    final String balance = BalanceLedger.get().charge(result);
+    Log.d(TAG, "Balance after send: " + balance);
+    showBalance(context, spec, balance);
+    return result;
+  }
+
+  /**
+   * Post the message to the given numbers in one request.
+   * 
+   * @param context
+   * @param login
+   * @param sendType
+   *          the ST parameter, whether to attempt sending for free
+   * @param messageText
+   * @param numbers
+   *          processed numbers
+   * @return the result, SENT or FAILED
+   * @throws IOException
+   *           SendInDoubtException if the post itself failed or its response
+   *           was not recognised
+   */
+  private static SendResult postMessage(final Context context, final String login, final String sendType, final String messageText,
+      final List<String> numbers) throws IOException {
+    final FishtextUrls urls = FishtextUrls.get(context);
+    final String recipientsProcessedString = FishtextUtil.appendWithSeparator(numbers, ",");
+    Log.d(TAG, "Recipients string: " + recipientsProcessedString);
+
+    // Everything but the recipients is encoded once per text
+    final SendTemplate template = SendTemplate.get(messageText);
+    String messageId = getMessageId(context, login);
+    FormEncoder postData = PostDataBuilder.start().add(template.form(FishtextAccount.current(), messageId, sendType)).add("RN", recipientsProcessedString).data();
+    SendResult result = postSend(context, urls.sendSms, postData);
+    if (result.status == SendResult.Status.FORM) {
+      // The form came back instead of a result, so the cached message field
+      // name may have gone stale. Only post again if it really has changed.
+      Log.d(TAG, "Send form shown again, refetching message id.");
+      FishtextSession.get().setMessageId(null);
+      final String staleMessageId = messageId;
+      messageId = getMessageId(context, login);
+      if (messageId.equals(staleMessageId)) {
+        // fishtext recognised the page and refused the message without
+        // saying why, so it was not sent
+        Metrics.count("send.form_refused");
+        return new SendResult(SendResult.Status.FAILED, false, SendResult.COST_FREE, "", new String[0], new String[0], new String[0],
+            context.getString(R.string.form_shown_fishtext));
       }
-      final ArrayList<BasicNameValuePair> postData = PostDataBuilder.start().add("action", "Send").add("SA", "0").add("DR", "1")
-          .add("ST", sendForFreePreference).add(messageId, messageText).add("RN", recipientsProcessedString).data();
-      Log.d(TAG, "Post data: " + postData);
-      final String sentResponseText = FishtextUtil.http(context, SEND_SMS_URL, postData);
-      this.examineSendResponse(context, sentResponseText, recipientMap);
+      Metrics.count("send.stale_message_id");
+      postData = PostDataBuilder.start().add(template.form(FishtextAccount.current(), messageId, sendType)).add("RN", recipientsProcessedString).data();
+      result = postSend(context, urls.sendSms, postData);
+    }
+    if (result.status != SendResult.Status.SENT && result.status != SendResult.Status.FAILED) {
+      // Not knowing the outcome is not the same as it not having been sent
+      Log.d(TAG, "Send response not recognised: " + result.status);
+      FishtextSession.get().invalidate();
+      throw new SendInDoubtException(new IOException("Send response not recognised"));
+    }
+    return result;
+  }
 
+  private static SendResult postSend(final Context context, final String url, final FormEncoder postData)
+      throws IOException {
+    try {
+      final String response = FishtextUtil.http(context, url, postData);
+      final long parseStart = System.nanoTime();
+      final SendResult result = SendResult.parse(response);
+      Metrics.time("parse.send", parseStart);
+      return result;
     } catch (IOException ioe) {
-      Log.d(TAG, "IOException occurred during send. " + ioe.toString());
-      throw new WebSMSException(context, R.string.error_http);
+      throw SendInDoubtException.wrap(ioe);
     }
   }
 
-  private static Pattern COST_PATTERN = Pattern.compile("at a cost of (.*?)(\\d{1,}\\.\\d{1,})");
-  private static String COST_FREE = "free";
-  private static String COST_UNKNOWN = "unknown";
-  private static Pattern INVALID_NUMBERS_PATTERN = Pattern.compile("invalid number\\(s\\) (.*?) skipped");
+  /**
+   * Get the name of the message field of the send form. It is cached for the
+   * current session, otherwise the send message page is loaded.
+   * 
+   * @param context
+   * @param login
+   * @return the message field name
+   * @throws IOException
+   */
+  private static String getMessageId(final Context context, final String login) throws IOException {
+    final FishtextUrls urls = FishtextUrls.get(context);
+    final FishtextSession session = FishtextSession.get();
+    final String cachedMessageId = session.getMessageId();
+    if (cachedMessageId != null) {
+      Log.d(TAG, "Cached MessageID: " + cachedMessageId);
+      return cachedMessageId;
+    }
 
-  private void examineSendResponse(final Context context, final String response, final Map<String, String> recipientMap) {
-    if (response.contains("Message sent")) {
-      this.examineSuccessSendResponse(context, response, recipientMap);
-    } else if (response.contains("Send failed")) {
-      this.examineFailedSendResponse(context, response, recipientMap);
-    } else {
-      Log.d(TAG, "Send response didn't have Message Sent or Send Failed in it!");
-      throw new WebSMSException(context, R.string.unexpected_error_fishtext);
+    ResponseScanner sendMessagePage = FishtextUtil.scanHedged(context, urls.sendMessagePage,
+        new ResponseScanner().find("messageId", MESSAGE_ID));
+    if (!sendMessagePage.found("messageId")) {
+      // The login check may have been skipped on the strength of the cached
+      // session, so this could be a logged-out page. Log in and try again.
+      Log.d(TAG, "Could not find message id in send message page, checking login.");
+      session.invalidate();
+      ConnectorFishtext.checkLogin(context, null, login, false);
+      sendMessagePage = FishtextUtil.scanHedged(context, urls.sendMessagePage, new ResponseScanner().find("messageId", MESSAGE_ID));
+      if (!sendMessagePage.found("messageId")) {
+        Log.d(TAG, "Could not find message id in send message page.");
+        throw new WebSMSException(context, R.string.error_service);
+      }
     }
+    final String messageId = sendMessagePage.group("messageId", 1);
+    Log.d(TAG, "MessageID: " + messageId);
+    session.setMessageId(messageId);
+    return messageId;
   }
 
-  private static final Pattern SEND_FAILED_MESSAGE_PATTERN = Pattern.compile("<p>(.*)</p>");
+  /**
+   * Report the outcome of all the parts of a plan, once.
+   * 
+   * @param context
+   * @param results
+   *          of the parts posted, in order, all but the last SENT
+   * @param plan
+   * @param recipients
+   */
+  private void examineSendResponse(final Context context, final List<SendResult> results, final SendPlanner.Plan plan,
+      final RecipientNormaliser.Recipients recipients) {
+    final SendResult last = results.get(results.size() - 1);
+    switch (last.status) {
+    case SENT:
+      final SendResult result = combine(results);
+      Metrics.count("send.invalid_numbers", result.invalidNumbers.length);
+      Metrics.count("send.failed_numbers", result.failedNumbers.length);
+      this.examineSuccessSendResponse(context, result, recipients);
+      break;
+    case FAILED:
+      throw partsNotSent(context, results.size() - 1, plan, context.getString(R.string.failed_send_fishtext, last.failureMessage));
+    default:
+      Log.d(TAG, "Send response didn't have Message Sent or Send Failed in it!");
+      FishtextSession.get().invalidate();
+      throw partsNotSent(context, results.size() - 1, plan, context.getString(R.string.unexpected_error_fishtext));
+    }
+  }
 
-  private void examineFailedSendResponse(final Context context, final String response, final Map<String, String> recipientMap) {
-    Matcher matcher = SEND_FAILED_MESSAGE_PATTERN.matcher(response);
-    if (matcher.find()) {
-      throw new WebSMSException(context.getString(R.string.failed_send_fishtext, matcher.group(1)));
-    } else {
-      throw new WebSMSException(context.getString(R.string.failed_send_fishtext, ""));
+  /**
+   * @param context
+   * @param sent
+   *          number of parts that were sent
+   * @param plan
+   * @param reason
+   *          why the next part wasn't
+   * @return the exception to report it with
+   */
+  private static WebSMSException partsNotSent(final Context context, final int sent, final SendPlanner.Plan plan, final String reason) {
+    if (sent == 0) {
+      return new WebSMSException(reason);
     }
+    return new WebSMSException(context.getString(R.string.parts_not_sent_fishtext, sent, plan.parts.length, reason));
   }
 
-  private void examineSuccessSendResponse(final Context context, final String response, final Map<String, String> recipientMap) {
-    boolean sentToAll = response.contains("Your message was successfully sent to all recipients");
-    String cost, costUnit;
-    boolean free = response.contains("sent free") || response.contains(", free.");
-    if (free) {
-      cost = COST_FREE;
+  /**
+   * @param results
+   *          SENT results of the parts of one message, to the same recipients
+   * @return one result for the message, with the costs added up
+   */
+  static SendResult combine(final List<SendResult> results) {
+    if (results.size() == 1) {
+      return results.get(0);
     }
-    Matcher matcher = COST_PATTERN.matcher(response);
-    if (matcher.find()) {
-      cost = matcher.group(2);
-      costUnit = FishtextUtil.currencyFix(matcher.group(1));
-    } else {
-      cost = COST_UNKNOWN;
-      costUnit = "";
+    boolean sentToAll = true, costKnown = true, allFree = true;
+    BigDecimal cost = BigDecimal.ZERO;
+    String currency = "";
+    final Set<String> invalidNumbers = new LinkedHashSet<String>();
+    final Set<String> failedNumbers = new LinkedHashSet<String>();
+    final Set<String> unknownNumbers = new LinkedHashSet<String>();
+    for (SendResult result : results) {
+      sentToAll &= result.sentToAll;
+      invalidNumbers.addAll(Arrays.asList(result.invalidNumbers));
+      failedNumbers.addAll(Arrays.asList(result.failedNumbers));
+      unknownNumbers.addAll(Arrays.asList(result.unknownNumbers));
+      if (SendResult.COST_UNKNOWN.equals(result.cost)) {
+        costKnown = false;
+      } else if (!SendResult.COST_FREE.equals(result.cost)) {
+        allFree = false;
+        cost = cost.add(new BigDecimal(result.cost));
+        currency = result.currency;
+      }
     }
+    final String totalCost = !costKnown ? SendResult.COST_UNKNOWN : allFree ? SendResult.COST_FREE : cost.toPlainString();
+    return new SendResult(SendResult.Status.SENT, sentToAll, totalCost, currency, invalidNumbers.toArray(new String[invalidNumbers
+        .size()]), failedNumbers.toArray(new String[failedNumbers.size()]), unknownNumbers.toArray(new String[unknownNumbers
+        .size()]), "");
+  }
 
-    if (sentToAll) {
+  private void examineSuccessSendResponse(final Context context, final SendResult result, final RecipientNormaliser.Recipients recipients) {
+    final String cost = result.currency + result.cost;
+
+    if (result.sentToAll && result.failedNumbers.length == 0 && result.unknownNumbers.length == 0 && recipients.rejected.length == 0) {
       // Sent to all successfully, just notify with the price
-      final SharedPreferences p = PreferenceManager.getDefaultSharedPreferences(context);
-      final boolean notifySend = p.getBoolean(SUCCESSFUL_SEND_NOTIFICATION_PREFERENCE_ID, true);
-      if (notifySend) {
-        final String notification = context.getString(R.string.successful_send_notification_fishtext_notification, costUnit + cost);
+      if (ConnectorConfig.get(context).notifySuccessfulSend) {
+        final String notification = context.getString(R.string.successful_send_notification_fishtext_notification, cost);
         Log.d(TAG, "Notifying on successful send: " + notification);
         FishtextUtil.toastNotifyOnMain(context, notification, Toast.LENGTH_SHORT);
       } else {
         Log.d(TAG, "Not notifying on successful send");
       }
     } else {
-      // Process invalids
-      String invalids = "";
-      int invalidCount = 0;
-      Matcher invalidMatcher = INVALID_NUMBERS_PATTERN.matcher(response);
-      if (invalidMatcher.find()) {
-        Log.d(TAG, "Matched invalids " + invalidMatcher.group() + " - " + invalidMatcher.group(1));
-        invalids = invalidMatcher.group(1);
-
-        String[] parts = invalids.split(",");
-        for (int i = 0; i < parts.length; i++) {
-          parts[i] = recipientMap.get(parts[i].trim());
-        }
-
-        invalids = FishtextUtil.appendWithSeparator(parts, ", ");
-        invalidCount = parts.length;
-      }
-      int successfulCount = recipientMap.size() - invalidCount;
-
-      if (successfulCount > 0) {
+      // Process invalids, both those reported by fishtext and those skipped
+      final String[] reported = recipients.originals(result.invalidNumbers);
+      final String invalids = FishtextUtil.appendWithSeparator(reported, ", ")
+          + (reported.length > 0 && recipients.rejected.length > 0 ? ", " : "") + FishtextUtil.appendWithSeparator(recipients.rejected, ", ");
+      final int successfulCount = recipients.count - reported.length - recipients.rejected.length - result.failedNumbers.length
+          - result.unknownNumbers.length;
+
+      if (result.unknownNumbers.length > 0) {
+        // Some chunks of a batch may or may not have been sent
+        String errorMessage = context.getString(R.string.unsuccessful_send_unknown_fishtext, successfulCount, cost, invalids,
+            FishtextUtil.appendWithSeparator(recipients.originals(result.failedNumbers), ", "), FishtextUtil.appendWithSeparator(
+                recipients.originals(result.unknownNumbers), ", "));
+        throw new WebSMSException(errorMessage);
+      } else if (result.failedNumbers.length > 0) {
+        // Some chunks of a batch could not be sent at all
+        String errorMessage = context.getString(R.string.unsuccessful_send_batch_fishtext, successfulCount, cost, invalids,
+            FishtextUtil.appendWithSeparator(recipients.originals(result.failedNumbers), ", "));
+        throw new WebSMSException(errorMessage);
+      } else if (successfulCount > 0) {
         // Sent to some
-        String errorMessage = context.getString(R.string.unsuccessful_send_some_fishtext, successfulCount, costUnit + cost, invalids);
+        String errorMessage = context.getString(R.string.unsuccessful_send_some_fishtext, successfulCount, cost, invalids);
         throw new WebSMSException(errorMessage);
       } else {
         // Sent to none
-        String errorMessage = context.getString(R.string.unsuccessful_send_all_fishtext, recipientMap.size(), invalids);
+        String errorMessage = context.getString(R.string.unsuccessful_send_all_fishtext, recipients.count, invalids);
         throw new WebSMSException(errorMessage);
       }
 
@@ -336,145 +637,22 @@ public class ConnectorFishtext extends Connector {
   }
 
   public static final String SEND_FREE = "send_free_fishtext";
-  public static final String SEND_FREE_LAST_SET = "send_free_fishtext_last_set";
   public static final String SEND_FREE_NOT_SET = "-1";
   public static final String SEND_FREE_TRUE = "1";
   public static final String SEND_FREE_FALSE = "0";
 
-  private static final String SETTINGS_URL = "https://www.fishtext.com/cgi-bin/ajax/settings.cgi";
-
-  private static final Pattern INPUT_PATTERN = Pattern.compile("\\<input .*?value=\"(.*?)\".*?name=\"(.*?)\"");
-  private static final Pattern SEND_TYPE_SELECT_PATTERN = Pattern.compile("<select class=\"selectSettings\" id=\"sendType\"(.*?)<\\/select>",
-      Pattern.DOTALL);
-  private static final Pattern SELECTED_OPTION_PATTERN = Pattern.compile("<option value=\"([^\"]*?)\" selected");
-  private static final Pattern OPTION_PATTERN = Pattern.compile("<option value=\"([^\"]*?)\"");
-  private static final Pattern SEND_FROM_SELECT_PATTERN = Pattern.compile("<select class=\"selectSettings\" id=\"sendFrom\"(.*?)<\\/select>",
-      Pattern.DOTALL);
-
-  private static final String[] REQUIRED_SETTINGS = new String[] { "sendFrom", "sendType", "firstName", "lastName", "emailAddress" };
-
-  // TODO should generalise to taking a Map<String,String> of new settings so we
-  // can reuse for other settings (sender, for example)
-  private static void updateSettingsIfNecessary(final Context context) {
-    // Check send preference and what was last set.
-    final SharedPreferences p = PreferenceManager.getDefaultSharedPreferences(context);
-
-    String sendForFreePreference = p.getString(SEND_FREE, SEND_FREE_NOT_SET);
-    Log.d(TAG, "sendForFreePreference=" + sendForFreePreference);
-
-    if (sendForFreePreference.equals(SEND_FREE_NOT_SET)) {
-      Log.d(TAG, "Not set, so just setting last set to that.");
-      p.edit().putString(SEND_FREE_LAST_SET, SEND_FREE_NOT_SET).commit();
-      return;
-    } else {
-      String lastSet = p.getString(SEND_FREE_LAST_SET, SEND_FREE_NOT_SET);
-      Log.d(TAG, "lastSet=" + lastSet);
-      if (!sendForFreePreference.equals(lastSet)) {
-        // We need to update. Update if possible. On success, update lastSet. On
-        // failure update to NOT_SET so it will be tried next time
-
-        boolean success = false;
-
-        // Load settings page
-
-        try {
-          // Post to settings url, no/empty postdata
-          final String settingsPage = FishtextUtil.http(context, SETTINGS_URL, new ArrayList<BasicNameValuePair>(0));
-          Log.d(TAG, "Loaded settings page, getting values we need");
-
-          // Extract the inputs
-          final Matcher inputMatcher = INPUT_PATTERN.matcher(settingsPage);
-          final Map<String, String> formMap = new HashMap<String, String>();
-          while (inputMatcher.find()) {
-            formMap.put(inputMatcher.group(2), inputMatcher.group(1));
-          }
-
-          // Get selected sendType
-          final Matcher sendTypeMatcher = SEND_TYPE_SELECT_PATTERN.matcher(settingsPage);
-          if (sendTypeMatcher.find()) {
-            String selectText = sendTypeMatcher.group();
-            final Matcher actualSendTypeMatcher = SELECTED_OPTION_PATTERN.matcher(selectText);
-            if (actualSendTypeMatcher.find()) {
-              Log.d(TAG, "Found the sendType as " + actualSendTypeMatcher.group(1));
-              formMap.put("sendType", actualSendTypeMatcher.group(1));
-            } else {
-              Log.d(TAG, "Nothing selected, using the first option");
-              Matcher optionMatcher = OPTION_PATTERN.matcher(selectText);
-              if (optionMatcher.find()) {
-                formMap.put("sendType", optionMatcher.group());
-              }
-            }
-          }
-
-          // Get selected sendFrom
-          final Matcher sendFromMatcher = SEND_FROM_SELECT_PATTERN.matcher(settingsPage);
-          if (sendFromMatcher.find()) {
-            String selectText = sendFromMatcher.group();
-            final Matcher actualSendFromMatcher = SELECTED_OPTION_PATTERN.matcher(selectText);
-            if (actualSendFromMatcher.find()) {
-              Log.d(TAG, "Found the sendFrom as " + actualSendFromMatcher.group(1));
-              formMap.put("sendFrom", actualSendFromMatcher.group(1));
-            } else {
-              Log.d(TAG, "Nothing selected, using the first option");
-              Matcher optionMatcher = OPTION_PATTERN.matcher(selectText);
-              if (optionMatcher.find()) {
-                formMap.put("sendFrom", optionMatcher.group());
-              }
-            }
-          }
-
-          Log.d(TAG, "Got the following from the settings page: " + formMap);
-
-          String existingSendType = formMap.get("sendType");
-          if (sendForFreePreference.equals(existingSendType)) {
-            Log.d(TAG, "Send type is already set to what we want it to be (" + sendForFreePreference + ")");
-            success = true;
-          } else {
-            final Map<String, String> updatedFormMap = new HashMap<String, String>();
-            for (String requiredSetting : REQUIRED_SETTINGS) {
-              updatedFormMap.put(requiredSetting, formMap.get(requiredSetting));
-            }
-
-            Log.d(TAG, "Extracted what we needed: " + updatedFormMap);
-
-            updatedFormMap.put("sendType", sendForFreePreference);
-            updatedFormMap.put("action", "saveSettings");
-            updatedFormMap.put("_sp_errorJS", "0");
-            updatedFormMap.put("_sp_tooltip_init", "0");
-
-            Log.d(TAG, "Added a few params: " + updatedFormMap);
-
-            final String sentSettingsPage = http(context, SETTINGS_URL, parametersMapToParametersArray(updatedFormMap));
-            if (sentSettingsPage.contains("Your details have been updated")) {
-              Log.d(TAG, "Successfully updated the settings. Yay!");
-              success = true;
-            } else {
-              Log.d(TAG, "Received settings update response, but no confirmation contained within");
-            }
-          }
-
-        } catch (IOException ioe) {
-          Log.d(TAG, "IOException during get/set settings. Send preference not set");
-        }
-
-        if (success) {
-          Log.d(TAG, "Success on setting preference, setting last set to " + sendForFreePreference);
-          p.edit().putString(SEND_FREE_LAST_SET, sendForFreePreference).commit();
-        } else {
-          Log.d(TAG, "Failed to set preference, so setting last set to not set (" + SEND_FREE_NOT_SET + ")");
-          p.edit().putString(SEND_FREE_LAST_SET, SEND_FREE_NOT_SET).commit();
-        }
-
-      } else {
-        Log.d(TAG, "Last set is the same as what we're trying to set. No action required.");
-      }
-    }
-
+  private static void updateSettingsIfNecessary(final Context context, final String login) {
+    SettingsSync.sync(context, login);
   }
 
-  private static String getLogin(final Context context, final ConnectorCommand command) {
-    final SharedPreferences p = PreferenceManager.getDefaultSharedPreferences(context);
-    final String login = p.getBoolean(PREFS_LOGIN_WTIH_DEFAULT, false) ? command.getDefSender() : Utils.getSender(context, command.getDefSender());
+  /**
+   * @param context
+   * @param command
+   * @return the main account's login, the sender's number
+   */
+  static String getLogin(final Context context, final ConnectorCommand command) {
+    final String login = ConnectorConfig.get(context).loginWithDefault ? command.getDefSender() : Utils.getSender(context,
+        command.getDefSender());
     return login;
   }
 
@@ -482,23 +660,173 @@ public class ConnectorFishtext extends Connector {
   protected final void doUpdate(final Context context, final Intent intent) {
     final ConnectorSpec spec = this.getSpec(context);
     final ConnectorCommand command = new ConnectorCommand(intent);
-    ConnectorFishtext.ensureLoggedIn(context, spec, getLogin(context, command), true);
+    List<FishtextAccount> accounts = FishtextAccount.configured(context);
+    if (accounts.isEmpty()) {
+      // Let the login fail as usual
+      accounts = Collections.singletonList(FishtextAccount.get(1));
+    }
+    WebSMSException failure = null;
+    for (FishtextAccount account : accounts) {
+      FishtextAccount.setCurrent(account);
+      RetryPolicy.startCommand();
+      try {
+        ConnectorFishtext.ensureLoggedIn(context, spec, account.getLogin(context, command), true);
+      } catch (WebSMSException wse) {
+        // Still update the other accounts
+        Log.d(TAG, "Could not update " + account + ": " + wse.getMessage());
+        if (failure == null) {
+          failure = wse;
+        }
+      } finally {
+        RetryPolicy.endCommand();
+        FishtextAccount.setCurrent(null);
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+    // A good time to retry anything left over from earlier
+    OutboundQueue.get(context).drain();
   }
 
   @Override
   protected final void doSend(final Context context, final Intent intent) {
     final ConnectorSpec spec = this.getSpec(context);
     final ConnectorCommand command = new ConnectorCommand(intent);
-    // Ensure logged in
-    ConnectorFishtext.ensureLoggedIn(context, spec, getLogin(context, command), false);
+    final Iterator<FishtextAccount> accounts = AccountDispatcher.order(context, command.getSelectedSubConnector()).iterator();
+    FishtextAccount account = accounts.next();
+    RecipientNormaliser.Recipients recipients = recipientsFor(context, command, account);
+
+    // Sort out the text before spending any requests on it
+    final SendPlanner.Plan plan = SendTemplate.get(command.getText()).plan();
+    Log.d(TAG, "Send plan: " + plan + ", predicted cost " + SendPlanner.predictCost(plan, recipients.numbers.size()));
+    if (plan.tooLong) {
+      throw new WebSMSException(context.getString(R.string.too_long_fishtext, SendPlanner.MAXIMUM_PARTS
+          * SendPlanner.MAXIMUM_MESSAGE_LENGTH));
+    }
+    if (plan.unencodable.length() > 0) {
+      FishtextUtil.toastNotifyOnMain(context, context.getString(R.string.unencodable_fishtext, plan.unencodable), Toast.LENGTH_LONG);
+    }
+    Metrics.count("send.segments", (long) plan.segments * recipients.numbers.size());
+    final String sendType = ConnectorConfig.get(context).sendType;
+
+    final long deferUntil = getDeferUntil(context, command);
+    if (deferUntil > 0) {
+      final String login = account.getLogin(context, command);
+      final boolean scheduled = deferUntil == command.getSendLater();
+      for (String text : plan.parts) {
+        OutboundQueue.get(context).defer(new OutboundMessage(login, sendType, text, recipients.numbers), deferUntil, scheduled);
+      }
+      FishtextUtil.toastNotifyOnMain(context, context.getString(R.string.deferred_send_fishtext), Toast.LENGTH_SHORT);
+      return;
+    }
 
-    // Set send preferences on fishtext if anything has changed or we have not
-    // set before.
-    ConnectorFishtext.updateSettingsIfNecessary(context);
+    // Do actual send, one post per part, all through the same account. Each
+    // part is posted once the previous one was sent.
+    RetryPolicy.startCommand();
+    final List<SendResult> results = new ArrayList<SendResult>(plan.parts.length);
+    try {
+      while (results.size() < plan.parts.length) {
+        FishtextAccount.setCurrent(account);
+        final int loginFailures = account.session.getLoginFailures();
+        final OutboundMessage message = new OutboundMessage(account.getLogin(context, command), sendType,
+            plan.parts[results.size()], recipients.numbers);
+        final SendResult result;
+        try {
+          result = ConnectorFishtext.send(context, spec, message);
+        } catch (WebSMSException wse) {
+          if (!results.isEmpty() || account.session.getLoginFailures() == loginFailures || !accounts.hasNext()) {
+            throw wse;
+          }
+          // The login was rejected, so nothing was posted. Try the next account.
+          account = accounts.next();
+          Log.d(TAG, "Login rejected, failing over to " + account);
+          Metrics.count("account.failover");
+          // The numbers known to be invalid are the new account's own
+          recipients = recipientsFor(context, command, account);
+          continue;
+        }
+        Log.d(TAG, "Send result of part " + (results.size() + 1) + ": " + result);
+        Metrics.count("send." + result.status.name().toLowerCase());
+        results.add(result);
+        if (result.status != SendResult.Status.SENT) {
+          break;
+        }
+        RecipientNormaliser.learnInvalid(context, result.invalidNumbers);
+      }
+    } catch (SendInDoubtException side) {
+      // The message may have reached fishtext, so it must not be sent again
+      Log.d(TAG, "IOException occurred during send. " + side.getCause());
+      Metrics.count("send.in_doubt");
+      // The parts already sent were charged as they went, but what the part
+      // in doubt cost isn't known, so start again from fishtext's balance
+      account.ledger.reset();
+      reconcileBalance(context, spec, account);
+      throw partsNotSent(context, results.size(), plan, context.getString(R.string.error_http));
+    } catch (IOException ioe) {
+      Log.d(TAG, "IOException occurred before the message was sent. " + ioe.toString());
+      if (!OutboundQueue.isEnabled(context)) {
+        throw partsNotSent(context, results.size(), plan, context.getString(R.string.error_http));
+      }
+      Metrics.count("send.queued");
+      final String login = account.getLogin(context, command);
+      for (int part = results.size(); part < plan.parts.length; part++) {
+        OutboundQueue.get(context).add(new OutboundMessage(login, sendType, plan.parts[part], recipients.numbers));
+      }
+      FishtextUtil.toastNotifyOnMain(context, context.getString(R.string.queued_send_fishtext), Toast.LENGTH_LONG);
+      return;
+    } catch (WebSMSException wse) {
+      throw partsNotSent(context, results.size(), plan, wse.getMessage());
+    } finally {
+      RetryPolicy.endCommand();
+      FishtextAccount.setCurrent(null);
+    }
+    // Before examining, which throws if not every recipient was sent to
+    reconcileBalance(context, spec, account);
+    this.examineSendResponse(context, results, plan, recipients);
+  }
 
-    // Do actual send
-    this.doSend(context, command);
-    // Update balance
-    ConnectorFishtext.checkLoginAndGetBalance(context, spec);
+  /**
+   * @param context
+   * @param command
+   * @param account
+   *          the account the command will be sent with
+   * @return the recipients of the command
+   * @throws WebSMSException
+   *           if every recipient is known to be invalid to the account
+   */
+  private static RecipientNormaliser.Recipients recipientsFor(final Context context, final ConnectorCommand command,
+      final FishtextAccount account) {
+    final RecipientNormaliser.Recipients recipients = RecipientNormaliser.normalise(context, command, account);
+    if (recipients.numbers.isEmpty()) {
+      // Every recipient is known to be invalid, don't bother fishtext
+      throw new WebSMSException(context.getString(R.string.unsuccessful_send_all_fishtext, recipients.count,
+          FishtextUtil.appendWithSeparator(recipients.rejected, ", ")));
+    }
+    return recipients;
+  }
+
+  /**
+   * Fetch the balance of the account in the background if its ledger can't be
+   * trusted anymore, after the send result has gone back to WebSMS.
+   * 
+   * @param context
+   * @param spec
+   * @param account
+   */
+  private static void reconcileBalance(final Context context, final ConnectorSpec spec, final FishtextAccount account) {
+    if (!account.ledger.needsReconcile()) {
+      return;
+    }
+    FishtextUtil.background().execute(new Runnable() {
+      public void run() {
+        FishtextAccount.setCurrent(account);
+        try {
+          ConnectorFishtext.checkLoginAndGetBalance(context, spec);
+        } finally {
+          FishtextAccount.setCurrent(null);
+        }
+      }
+    });
   }
 }
@@ -0,0 +1,21 @@
+package com.fairmichael.fintan.websms.connector.fishtext;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import de.ub0r.android.websms.connector.common.Log;
+
+/**
+ * Woken by the alarm the OutboundQueue sets for the next flush of deferred
+ * messages or retry of queued ones. The queue holds a wake lock while it
+ * drains.
+ * 
+ * @author Fintan Fairmichael
+ */
+public final class DeferredSendReceiver extends BroadcastReceiver {
+  @Override
+  public void onReceive(final Context context, final Intent intent) {
+    Log.d(ConnectorFishtext.TAG, "Deferred send alarm");
+    OutboundQueue.get(context).drain();
+  }
+}
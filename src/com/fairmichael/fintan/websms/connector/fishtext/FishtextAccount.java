@@ -0,0 +1,260 @@
+package com.fairmichael.fintan.websms.connector.fishtext;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import de.ub0r.android.websms.connector.common.ConnectorCommand;
+import de.ub0r.android.websms.connector.common.Log;
+
+/**
+ * One of the fishtext.com accounts the connector sends with, with its own
+ * session, cookies and balance. Account 1 is the one set up in the main
+ * preferences, whose login is the sender's number; accounts 2 and up have a
+ * login and password of their own.
+ *
+ * Like the RetryPolicy deadline, the account a command works for is bound to
+ * the thread, and FishtextSession.get(), BalanceLedger.get() and
+ * BalanceService.get() return that account's. Threads working on behalf of a
+ * command must carry it over with setCurrent().
+ *
+ * @author Fintan Fairmichael
+ */
+final class FishtextAccount {
+  /** Most accounts that can be configured, including the main one. */
+  static final int MAX_ACCOUNTS = 3;
+  /** Preference name prefix for the login of accounts 2 and up. */
+  static final String PREFS_LOGIN = "login_fishtext_";
+  /** Preference name prefix for the password of accounts 2 and up. */
+  static final String PREFS_PASSWORD = Preferences.PREFS_PASSWORD + "_";
+  /** Subconnector id that lets the AccountDispatcher pick the account. */
+  static final String SUBCONNECTOR_AUTO = "fishtext";
+
+  /** Weight given to a moving average latency sample. */
+  private static final double LATENCY_WEIGHT = 0.2;
+
+  private static final FishtextAccount[] ACCOUNTS = new FishtextAccount[MAX_ACCOUNTS];
+  static {
+    for (int i = 0; i < MAX_ACCOUNTS; i++) {
+      ACCOUNTS[i] = new FishtextAccount(i + 1);
+    }
+  }
+
+  /** Account of the command running on this thread, null for the main one. */
+  private static final ThreadLocal<FishtextAccount> CURRENT = new ThreadLocal<FishtextAccount>();
+
+  /** From 1. */
+  final int number;
+  final FishtextSession session;
+  final BalanceLedger ledger = new BalanceLedger();
+  final BalanceService balanceService = new BalanceService(this);
+
+  /** Moving average of request latencies, in ms. */
+  private volatile long averageLatency = 1000;
+  /**
+   * Numbers fishtext reported as invalid to this account, see
+   * RecipientNormaliser. Null until loaded, guarded by RecipientNormaliser.class.
+   */
+  Map<String, Long> invalidNumbers = null;
+  /** Where the account's state is persisted, null until first used. */
+  private volatile SharedPreferences state = null;
+
+  private FishtextAccount(final int number) {
+    this.number = number;
+    this.session = new FishtextSession(this);
+  }
+
+  /**
+   * @param number
+   *          from 1 to MAX_ACCOUNTS
+   * @return the account
+   */
+  static FishtextAccount get(final int number) {
+    return ACCOUNTS[number - 1];
+  }
+
+  /**
+   * @return the account the command on this thread works for, the main one if
+   *         none was set
+   */
+  static FishtextAccount current() {
+    final FishtextAccount account = CURRENT.get();
+    return account == null ? ACCOUNTS[0] : account;
+  }
+
+  /**
+   * Bind the account to this thread, for a command or on its behalf.
+   *
+   * @param account
+   *          null to go back to the main account
+   */
+  static void setCurrent(final FishtextAccount account) {
+    if (account == null) {
+      CURRENT.remove();
+    } else {
+      CURRENT.set(account);
+    }
+  }
+
+  /**
+   * @param context
+   * @return the accounts with a password, the main one first
+   */
+  static List<FishtextAccount> configured(final Context context) {
+    final ConnectorConfig config = ConnectorConfig.get(context);
+    final List<FishtextAccount> accounts = new ArrayList<FishtextAccount>(MAX_ACCOUNTS);
+    for (FishtextAccount account : ACCOUNTS) {
+      if (account.isConfigured(config)) {
+        accounts.add(account);
+      }
+    }
+    return accounts;
+  }
+
+  /**
+   * Forget every account's session, cookies, settings snapshot and balance,
+   * e.g. because they came from another server.
+   *
+   * @param context
+   */
+  static void resetAll(final Context context) {
+    for (FishtextAccount account : ACCOUNTS) {
+      account.session.reset(context);
+      account.ledger.reset();
+    }
+    Log.d(ConnectorFishtext.TAG, "Reset the sessions of all accounts");
+  }
+
+  /**
+   * @param subConnectorId
+   *          the id of a subconnector, may be null
+   * @return the account the subconnector is pinned to, null if it lets the
+   *         dispatcher choose
+   */
+  static FishtextAccount forSubConnector(final String subConnectorId) {
+    for (FishtextAccount account : ACCOUNTS) {
+      if (account.getSubConnectorId().equals(subConnectorId)) {
+        return account;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Find the account a stored message was meant for.
+   *
+   * @param context
+   * @param login
+   * @return the configured account with that login, the main one if none
+   */
+  static FishtextAccount forLogin(final Context context, final String login) {
+    final ConnectorConfig config = ConnectorConfig.get(context);
+    for (int i = 1; i < MAX_ACCOUNTS; i++) {
+      if (ACCOUNTS[i].isConfigured(config) && login.equals(config.getLogin(i + 1))) {
+        return ACCOUNTS[i];
+      }
+    }
+    return ACCOUNTS[0];
+  }
+
+  /**
+   * @param context
+   * @param maxAge
+   *          in ms
+   * @return the balance of each configured account for display, null if none
+   *         is known
+   */
+  static String displayBalances(final Context context, final long maxAge) {
+    final List<FishtextAccount> accounts = configured(context);
+    if (accounts.size() <= 1) {
+      return current().ledger.display(maxAge);
+    }
+    final StringBuilder sb = new StringBuilder();
+    boolean known = false;
+    for (FishtextAccount account : accounts) {
+      final String balance = account.ledger.display(maxAge);
+      known |= balance != null;
+      if (sb.length() > 0) {
+        sb.append(" | ");
+      }
+      sb.append(balance == null ? "?" : balance);
+    }
+    return known ? sb.toString() : null;
+  }
+
+  String getSubConnectorId() {
+    return SUBCONNECTOR_AUTO + "_" + this.number;
+  }
+
+  /**
+   * @param context
+   * @param command
+   *          gives the sender, which is the main account's login
+   * @return the login
+   */
+  String getLogin(final Context context, final ConnectorCommand command) {
+    if (this.number == 1) {
+      return ConnectorFishtext.getLogin(context, command);
+    }
+    return ConnectorConfig.get(context).getLogin(this.number);
+  }
+
+  String getPassword(final Context context) {
+    return ConnectorConfig.get(context).getPassword(this.number);
+  }
+
+  boolean isConfigured(final ConnectorConfig config) {
+    if (config.getPassword(this.number).length() == 0) {
+      return false;
+    }
+    return this.number == 1 || config.getLogin(this.number).length() > 0;
+  }
+
+  /**
+   * @param millis
+   *          latency of a request made for this account
+   */
+  void recordLatency(final long millis) {
+    this.averageLatency += (long) ((millis - this.averageLatency) * LATENCY_WEIGHT);
+  }
+
+  /**
+   * @return moving average of request latencies, in ms
+   */
+  long getAverageLatency() {
+    return this.averageLatency;
+  }
+
+  /**
+   * The account's state, its settings snapshot and invalid numbers, is read
+   * from here once and kept in memory. Changes are written back with
+   * AtomicPreferences.
+   *
+   * @param context
+   * @return the preferences the account's state is persisted in
+   */
+  SharedPreferences getState(final Context context) {
+    SharedPreferences p = this.state;
+    if (p == null) {
+      p = PreferenceManager.getDefaultSharedPreferences(context);
+      this.state = p;
+    }
+    return p;
+  }
+
+  /**
+   * @param key
+   * @return the account's own preference or file name for key
+   */
+  String suffix(final String key) {
+    return this.number == 1 ? key : key + "_" + this.number;
+  }
+
+  @Override
+  public String toString() {
+    return "account " + this.number;
+  }
+}
@@ -0,0 +1,161 @@
+package com.fairmichael.fintan.websms.connector.fishtext;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpConnection;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.CookieStore;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.protocol.ClientContext;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * The connector's own HTTP client. Connections to fishtext.com are pooled and
+ * kept alive between requests and commands and TLS sessions are resumed. The
+ * cookies belong to the FishtextSession each request is made for.
+ * 
+ * @author Fintan Fairmichael
+ */
+final class FishtextHttpClient {
+  private static final String[] FISHTEXT_SSL_FINGERPRINTS = { "5F:24:86:FC:CD:00:2A:92:65:47:50:91:2A:AE:D7:6C:D2:61:C4:83" };
+  /**
+   * Preference name for letting the platform's trust store accept a
+   * certificate that is not pinned, for when fishtext.com changes it.
+   */
+  static final String PREFS_PLATFORM_CERTIFICATES = "platform_certificates_fishtext";
+
+  private static final int CONNECTION_TIMEOUT = 30 * 1000;
+  private static final int SO_TIMEOUT = 60 * 1000;
+  private static final int MAX_CONNECTIONS = 4;
+
+  private static FishtextHttpClient instance = null;
+
+  private final DefaultHttpClient client;
+  private final PinnedSSLSocketFactory sslSocketFactory;
+  private final SchemeRegistry schemes = new SchemeRegistry();
+  /** Whether plain http is registered, only ever for a stand-in server. */
+  private boolean cleartext = false;
+  private final AtomicLong requests = new AtomicLong();
+  /** Requests sent over a connection that had already been used. */
+  private final AtomicLong reused = new AtomicLong();
+
+  private FishtextHttpClient() throws GeneralSecurityException {
+    final HttpParams params = new BasicHttpParams();
+    HttpConnectionParams.setConnectionTimeout(params, CONNECTION_TIMEOUT);
+    HttpConnectionParams.setSoTimeout(params, SO_TIMEOUT);
+    HttpProtocolParams.setUserAgent(params, ConnectorFishtext.USER_AGENT);
+    ConnManagerParams.setMaxTotalConnections(params, MAX_CONNECTIONS);
+    ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(MAX_CONNECTIONS));
+
+    this.sslSocketFactory = new PinnedSSLSocketFactory(FISHTEXT_SSL_FINGERPRINTS);
+    this.schemes.register(new Scheme("https", this.sslSocketFactory, 443));
+
+    this.client = new DefaultHttpClient(new ThreadSafeClientConnManager(params, this.schemes), params);
+    this.client.addRequestInterceptor(new HttpRequestInterceptor() {
+      public void process(final HttpRequest request, final HttpContext context) {
+        // Runs once the connection is chosen, before the request is sent on it
+        final HttpConnection connection = (HttpConnection) context.getAttribute(ExecutionContext.HTTP_CONNECTION);
+        if (connection != null && connection.getMetrics().getRequestCount() > 0) {
+          FishtextHttpClient.this.reused.incrementAndGet();
+        }
+      }
+    });
+  }
+
+  static synchronized FishtextHttpClient get() {
+    if (instance == null) {
+      try {
+        instance = new FishtextHttpClient();
+      } catch (GeneralSecurityException gse) {
+        throw new IllegalStateException("Could not set up SSL: " + gse);
+      }
+    }
+    return instance;
+  }
+
+  /**
+   * @param platformFallback
+   *          whether certificates that are not pinned may be accepted by the
+   *          platform's trust store
+   */
+  void setPlatformFallback(final boolean platformFallback) {
+    this.sslSocketFactory.setPlatformFallback(platformFallback);
+  }
+
+  /**
+   * @param cleartext
+   *          whether plain http may be used, see FishtextUrls
+   */
+  synchronized void setCleartext(final boolean cleartext) {
+    if (cleartext == this.cleartext) {
+      return;
+    }
+    this.cleartext = cleartext;
+    if (cleartext) {
+      this.schemes.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+    } else {
+      this.schemes.unregister("http");
+    }
+  }
+
+  /**
+   * Execute a request. The caller must consume or abort the response's entity
+   * so that the connection goes back to the pool.
+   * 
+   * @param url
+   * @param postData
+   *          form to post, null to GET
+   * @param referrer
+   *          may be null
+   * @param cookies
+   *          the session's cookies
+   * @return the response
+   * @throws IOException
+   */
+  HttpResponse execute(final String url, final FormEncoder postData, final String referrer, final CookieStore cookies)
+      throws IOException {
+    final HttpUriRequest request;
+    if (postData == null) {
+      request = new HttpGet(url);
+    } else {
+      final HttpPost post = new HttpPost(url);
+      post.setEntity(postData);
+      request = post;
+    }
+    if (referrer != null) {
+      request.setHeader("Referer", referrer);
+    }
+    final HttpContext httpContext = new BasicHttpContext();
+    httpContext.setAttribute(ClientContext.COOKIE_STORE, cookies);
+    this.requests.incrementAndGet();
+    return this.client.execute(request, httpContext);
+  }
+
+  /**
+   * @return requests made, how many of them reused a pooled connection, TLS
+   *         connections opened and time spent in their handshakes
+   */
+  String getStats() {
+    return "requests=" + this.requests.get() + ", reused=" + this.reused.get() + ", new TLS connections="
+        + this.sslSocketFactory.connections.get() + ", handshake ms=" + this.sslSocketFactory.handshakeMillis.get();
+  }
+}
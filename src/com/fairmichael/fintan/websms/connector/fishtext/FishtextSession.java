@@ -0,0 +1,256 @@
+package com.fairmichael.fintan.websms.connector.fishtext;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.http.client.CookieStore;
+
+import android.content.Context;
+import android.os.SystemClock;
+import de.ub0r.android.websms.connector.common.Log;
+
+/**
+ * The fishtext.com session: its cookies, when it was last confirmed to be
+ * logged in (so that the getBalance probe can be skipped while the session is
+ * fresh), state that is only valid for one session like the message field
+ * name, and the snapshot of the account settings. Each FishtextAccount has
+ * its own. The cookies outlive the process, so a restored session is used
+ * without logging in again, and checked like any other once it goes stale.
+ * 
+ * Sends run concurrently against the session. The only lock held across
+ * requests is the login lock, taken around a re-login; everything else is
+ * short synchronized state changes.
+ * 
+ * @author Fintan Fairmichael
+ */
+final class FishtextSession {
+  /** Default time a confirmed session is trusted without checking, in ms. */
+  static final long DEFAULT_TTL = 10 * 60 * 1000L;
+  /** Name of the file in the app's files the cookies are kept in. */
+  private static final String COOKIES_FILE = "fishtext_cookies";
+
+  /** How long a confirmed session is trusted, in ms. 0 disables the cache. */
+  private long ttl = DEFAULT_TTL;
+  /** Time of the last successful login, 0 if none. */
+  private long lastLogin = 0;
+  /** Time of the last response containing a valid balance, 0 if none. */
+  private long lastValidBalance = 0;
+  /** Name of the message field on the send form, null if not known. */
+  private String messageId = null;
+  /** Number of logins so far, to tell whether another thread logged in. */
+  private int logins = 0;
+  /** Number of logins rejected by fishtext so far. */
+  private int loginFailures = 0;
+  /** Time of the last rejected login, 0 if none. */
+  private long lastLoginFailure = 0;
+  /** The settings form as last seen or set, null if not known. */
+  private SettingsSync.Snapshot settings = null;
+  private boolean settingsLoaded = false;
+  private final FishtextAccount account;
+  /** Preference name the settings snapshot is persisted under. */
+  private final String snapshotKey;
+
+  private final PersistentCookieStore cookies;
+  private final ReentrantLock loginLock = new ReentrantLock();
+
+  FishtextSession(final FishtextAccount account) {
+    this.account = account;
+    this.snapshotKey = account.suffix(SettingsSync.PREFS_SNAPSHOT);
+    this.cookies = new PersistentCookieStore(account.suffix(COOKIES_FILE));
+  }
+
+  /**
+   * @return the session of the current account
+   */
+  static FishtextSession get() {
+    return FishtextAccount.current().session;
+  }
+
+  synchronized void setTtl(final long ttl) {
+    this.ttl = ttl;
+  }
+
+  /**
+   * @param context
+   * @return the cookies, restored from an earlier process on first use
+   */
+  CookieStore getCookies(final Context context) {
+    final long savedAt = this.cookies.load(context, this.account.getPassword(context));
+    if (savedAt > 0) {
+      Metrics.count("session.restored");
+      this.restored(System.currentTimeMillis() - savedAt);
+    }
+    return this.cookies;
+  }
+
+  /**
+   * Persist the cookies if a response changed them.
+   * 
+   * @param context
+   */
+  void saveCookies(final Context context) {
+    this.cookies.saveIfChanged(context, this.account.getPassword(context));
+  }
+
+  void clearCookies() {
+    this.cookies.clear();
+  }
+
+  /**
+   * Take the login lock. Hold it only while checking and redoing the login.
+   */
+  void lockLogin() {
+    this.loginLock.lock();
+  }
+
+  void unlockLogin() {
+    this.loginLock.unlock();
+  }
+
+  /**
+   * @return the number of logins so far
+   */
+  synchronized int getLogins() {
+    return this.logins;
+  }
+
+  /**
+   * Record a successful login. The settings may have been changed on the site
+   * while we were logged out, so the settings snapshot is dropped and the next
+   * sync loads the settings form again.
+   * 
+   * @param context
+   */
+  synchronized void loggedIn(final Context context) {
+    this.lastLogin = SystemClock.elapsedRealtime();
+    this.lastLoginFailure = 0;
+    this.messageId = null;
+    this.logins++;
+    if (this.getSettings(context) != null) {
+      this.settings = null;
+      AtomicPreferences.set(this.account.getState(context), this.snapshotKey, null);
+    }
+  }
+
+  /**
+   * Cookies of an earlier process were restored. They were good when they were
+   * written, so trust them for what is left of the ttl.
+   * 
+   * @param age
+   *          time since they were written, in ms
+   */
+  private synchronized void restored(final long age) {
+    final long confirmed = SystemClock.elapsedRealtime() - age;
+    if (age >= 0 && confirmed > 0) {
+      this.lastValidBalance = Math.max(this.lastValidBalance, confirmed);
+    }
+  }
+
+  /** Record a login fishtext rejected, e.g. for a wrong password. */
+  synchronized void loginFailed() {
+    this.invalidate();
+    this.lastLoginFailure = SystemClock.elapsedRealtime();
+    this.loginFailures++;
+  }
+
+  /**
+   * @return the number of rejected logins so far
+   */
+  synchronized int getLoginFailures() {
+    return this.loginFailures;
+  }
+
+  /**
+   * @param within
+   *          in ms
+   * @return true if a login was rejected within the given time
+   */
+  synchronized boolean loginFailedWithin(final long within) {
+    return this.lastLoginFailure > 0 && SystemClock.elapsedRealtime() - this.lastLoginFailure < within;
+  }
+
+  /** Record a response that showed a valid balance, i.e. we were logged in. */
+  synchronized void validBalance() {
+    this.lastValidBalance = SystemClock.elapsedRealtime();
+  }
+
+  /**
+   * Forget the session, e.g. because a response looked like a logged-out page.
+   * The next command will check the login again.
+   */
+  synchronized void invalidate() {
+    this.lastLogin = 0;
+    this.lastValidBalance = 0;
+    this.messageId = null;
+  }
+
+  /**
+   * Forget the session along with its cookies and settings snapshot, here and
+   * in storage, e.g. because they belong to another server.
+   * 
+   * @param context
+   */
+  synchronized void reset(final Context context) {
+    this.invalidate();
+    this.cookies.delete(context);
+    this.settings = null;
+    this.settingsLoaded = true;
+    AtomicPreferences.set(this.account.getState(context), this.snapshotKey, null);
+  }
+
+  synchronized String getMessageId() {
+    return this.messageId;
+  }
+
+  synchronized void setMessageId(final String messageId) {
+    this.messageId = messageId;
+  }
+
+  /**
+   * @param context
+   * @return the settings snapshot, null if not known. Only the first call reads
+   *         it from the preferences.
+   */
+  synchronized SettingsSync.Snapshot getSettings(final Context context) {
+    if (!this.settingsLoaded) {
+      final String encoded = this.account.getState(context).getString(this.snapshotKey, null);
+      if (encoded != null) {
+        try {
+          this.settings = SettingsSync.Snapshot.decode(encoded);
+        } catch (Exception e) {
+          Log.w(ConnectorFishtext.TAG, "Dropping bad settings snapshot " + encoded);
+        }
+      }
+      this.settingsLoaded = true;
+    }
+    return this.settings;
+  }
+
+  /**
+   * Replace the settings snapshot, unless another thread replaced it since it
+   * was read.
+   * 
+   * @param context
+   * @param expected
+   *          the snapshot the update was based on
+   * @param updated
+   *          null to forget the snapshot
+   * @return true if the snapshot was replaced
+   */
+  synchronized boolean compareAndSetSettings(final Context context, final SettingsSync.Snapshot expected,
+      final SettingsSync.Snapshot updated) {
+    if (this.getSettings(context) != expected) {
+      return false;
+    }
+    this.settings = updated;
+    AtomicPreferences.set(this.account.getState(context), this.snapshotKey, updated == null ? null : updated.encode());
+    return true;
+  }
+
+  /**
+   * @return true if the session was confirmed within the ttl
+   */
+  synchronized boolean isFresh() {
+    final long last = Math.max(this.lastLogin, this.lastValidBalance);
+    return last > 0 && SystemClock.elapsedRealtime() - last < this.ttl;
+  }
+}
@@ -0,0 +1,93 @@
+package com.fairmichael.fintan.websms.connector.fishtext;
+
+import android.content.Context;
+import de.ub0r.android.websms.connector.common.Log;
+
+/**
+ * The fishtext.com urls the connector uses. The base url can be overridden
+ * with the hidden PREFS_BASE_URL preference to run against a local stand-in
+ * for the site, e.g. for offline load testing. A stand-in has to use plain
+ * http, as https connections are pinned to fishtext.com's certificate, so
+ * plain http is only accepted in a debuggable build.
+ * 
+ * @author Fintan Fairmichael
+ */
+final class FishtextUrls {
+  /** Preference name for overriding the base url, empty for the default. */
+  static final String PREFS_BASE_URL = "base_url_fishtext";
+  static final String DEFAULT_BASE_URL = "https://www.fishtext.com";
+
+  final String base;
+  /** Whether the base url is plain http, which only a stand-in may use. */
+  final boolean cleartext;
+  /** Login URL. */
+  final String login;
+  /** Login Referrer */
+  final String loginReferrer;
+  /** Get Balance URL */
+  final String getBalance;
+  /** Send message page URL */
+  final String sendMessagePage;
+  /** Send SMS URL */
+  final String sendSms;
+  /** Settings URL */
+  final String settings;
+
+  FishtextUrls(final String base) {
+    this.base = base;
+    this.cleartext = base.startsWith("http:");
+    this.login = base + "/cgi-bin/mobi/account";
+    this.loginReferrer = base + "/cgi-bin/mobi/account";
+    this.getBalance = base + "/cgi-bin/mobi/getBalance.cgi";
+    this.sendMessagePage = base + "/cgi-bin/mobi/sendMessage.cgi";
+    this.sendSms = base + "/SendSMS/SendSMS";
+    this.settings = base + "/cgi-bin/ajax/settings.cgi";
+  }
+
+  /**
+   * @param url
+   * @return a short name for the page, for metrics
+   */
+  String nameOf(final String url) {
+    if (url.equals(this.login)) {
+      return "login";
+    } else if (url.equals(this.getBalance)) {
+      return "balance";
+    } else if (url.equals(this.sendMessagePage)) {
+      return "message_page";
+    } else if (url.equals(this.sendSms)) {
+      return "send";
+    } else if (url.equals(this.settings)) {
+      return "settings";
+    }
+    return "other";
+  }
+
+  /**
+   * @param context
+   * @return the urls for the configured base url
+   */
+  static FishtextUrls get(final Context context) {
+    return ConnectorConfig.get(context).urls;
+  }
+
+  /**
+   * @param base
+   *          the base url preference, empty for the default
+   * @param debuggable
+   *          whether this is a debuggable build, which may use plain http
+   * @return the urls for it, the default ones if it may not be used
+   */
+  static FishtextUrls forBase(final String base, final boolean debuggable) {
+    if (base.length() == 0) {
+      return new FishtextUrls(DEFAULT_BASE_URL);
+    } else if (!base.startsWith("https://") && !(debuggable && base.startsWith("http://"))) {
+      // Never send the login and password in the clear
+      Log.w(ConnectorFishtext.TAG, "Ignoring base url " + base + ", only https is allowed");
+      return new FishtextUrls(DEFAULT_BASE_URL);
+    } else if (base.endsWith("/")) {
+      return new FishtextUrls(base.substring(0, base.length() - 1));
+    }
+    return new FishtextUrls(base);
+  }
+}
@@ -1,26 +1,74 @@
 package com.fairmichael.fintan.websms.connector.fishtext;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.HttpURLConnection;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.http.HttpResponse;
-import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.conn.ConnectionReleaseTrigger;
 
 import android.content.Context;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.widget.Toast;
 import de.ub0r.android.websms.connector.common.Log;
 import de.ub0r.android.websms.connector.common.Utils;
-import de.ub0r.android.websms.connector.common.Utils.HttpOptions;
 import de.ub0r.android.websms.connector.common.WebSMSException;
 
 public class FishtextUtil {
-  private static String[] FISHTEXT_SSL_FINGERPRINTS = { "5F:24:86:FC:CD:00:2A:92:65:47:50:91:2A:AE:D7:6C:D2:61:C4:83" };
+  /**
+   * Responses shorter than this are read to the end after a scan finished
+   * early, so the connection can be reused. Longer ones are aborted.
+   */
+  private static final long SCAN_DRAIN_LIMIT = 8 * 1024;
+  /** Log every response in full. Only for debugging, it is expensive. */
+  private static final boolean LOG_RESPONSES = false;
+
+  /** Threads for work done alongside or after a command. */
+  private static final ExecutorService BACKGROUND = Executors.newCachedThreadPool(new ThreadFactory() {
+    public Thread newThread(final Runnable r) {
+      final Thread thread = new Thread(r, "fishtext-background");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  public static ExecutorService background() {
+    return BACKGROUND;
+  }
+
+  /**
+   * Wait for a task, rethrowing anything it threw.
+   * 
+   * @param future
+   */
+  public static void await(final Future<?> future) {
+    try {
+      future.get();
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException ee) {
+      if (ee.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) ee.getCause();
+      }
+      throw new IllegalStateException(ee.getCause());
+    }
+  }
 
   public static String appendWithSeparator(final Collection<?> items, final String sep) {
     return appendWithSeparator(items, sep, false);
@@ -46,36 +94,201 @@ public class FishtextUtil {
     return appendWithSeparator(Arrays.asList(items), sep);
   }
 
-  public static String http(final Context context, final String url, final ArrayList<BasicNameValuePair> postData, final String referrer) throws IOException {
-
-    final HttpOptions options = new HttpOptions(ConnectorFishtext.ENCODING);
-    options.url = url;
-    options.userAgent = ConnectorFishtext.USER_AGENT;
-    options.referer = referrer;
-    options.addFormParameter(postData);
-    options.knownFingerprints = FISHTEXT_SSL_FINGERPRINTS;
-    final HttpResponse response = Utils.getHttpClient(options);
+  /**
+   * Execute a request through the circuit breaker, retrying failures the
+   * RetryPolicy allows.
+   * 
+   * @param context
+   * @param url
+   * @param postData
+   * @param referrer
+   * @return a response with status 200
+   * @throws IOException
+   */
+  private static HttpResponse execute(final Context context, final String url, final FormEncoder postData,
+      final String referrer) throws IOException {
+    final FishtextUrls urls = FishtextUrls.get(context);
+    // Everything but the send can be repeated without harm
+    final boolean idempotent = !url.equals(urls.sendSms);
+    final CircuitBreaker breaker = CircuitBreaker.get();
+    final FishtextSession session = FishtextSession.get();
+    final long deadline = RetryPolicy.deadlineFor(SystemClock.elapsedRealtime());
+    for (int attempt = 1;; attempt++) {
+      breaker.acquire();
+      final long start = System.nanoTime();
+      final HttpResponse response;
+      try {
+        final FishtextHttpClient client = FishtextHttpClient.get();
+        client.setPlatformFallback(ConnectorConfig.get(context).platformCertificates);
+        client.setCleartext(urls.cleartext);
+        response = client.execute(url, postData, referrer, session.getCookies(context));
+      } catch (IOException ioe) {
+        breaker.failure();
+        if (RetryPolicy.isRetryable(ioe, idempotent) && retryAllowed(url, attempt, deadline, ioe.toString())) {
+          continue;
+        }
+        throw ioe;
+      } catch (RuntimeException re) {
+        breaker.failure();
+        throw re;
+      }
+      Metrics.time("http." + urls.nameOf(url), start);
+      // Keep any cookies the response set for the next process
+      session.saveCookies(context);
 
-    final int responseCode = response.getStatusLine().getStatusCode();
-    if (responseCode != HttpURLConnection.HTTP_OK) {
+      final int responseCode = response.getStatusLine().getStatusCode();
+      if (responseCode == HttpURLConnection.HTTP_OK) {
+        breaker.success();
+        final long latency = (System.nanoTime() - start) / 1000000;
+        FishtextAccount.current().recordLatency(latency);
+        if (postData == null) {
+          RetryPolicy.recordLatency(latency);
+        }
+        return response;
+      }
       Log.d(ConnectorFishtext.TAG, "Received non-ok status code when attempting to load " + url);
-      throw new WebSMSException(context, R.string.error_http, "" + responseCode);
+      Metrics.count("http.errors." + responseCode);
+      if (responseCode >= HttpURLConnection.HTTP_INTERNAL_ERROR) {
+        breaker.failure();
+      } else {
+        breaker.success();
+      }
+      if (response.getEntity() != null) {
+        response.getEntity().consumeContent();
+      }
+      if (!RetryPolicy.isRetryable(responseCode, idempotent) || !retryAllowed(url, attempt, deadline, "status " + responseCode)) {
+        throw new WebSMSException(context, R.string.error_http, "" + responseCode);
+      }
     }
+  }
+
+  /**
+   * Wait before another attempt, if there is attempts and time left for one.
+   * 
+   * @param url
+   * @param attempt
+   *          the attempt that failed, from 1
+   * @param deadline
+   *          elapsedRealtime by which the request must be done
+   * @param reason
+   *          why the attempt failed
+   * @return true if the request should be made again
+   */
+  private static boolean retryAllowed(final String url, final int attempt, final long deadline, final String reason) {
+    if (attempt >= RetryPolicy.MAX_ATTEMPTS) {
+      return false;
+    }
+    final long delay = RetryPolicy.backoff(attempt);
+    if (SystemClock.elapsedRealtime() + delay >= deadline) {
+      Metrics.count("http.retry_budget_exhausted");
+      return false;
+    }
+    Log.d(ConnectorFishtext.TAG, "Retrying " + url + " in " + delay + "ms after " + reason);
+    Metrics.count("http.retries");
+    try {
+      Thread.sleep(delay);
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Run a GET, and if it hasn't answered within the usual latency run the same
+   * GET a second time alongside it. Whichever answers first is used.
+   * 
+   * @param url
+   * @param primary
+   * @param backup
+   *          the same request
+   * @return the first result
+   * @throws IOException
+   *           if both failed
+   */
+  private static <T> T hedged(final String url, final Callable<T> primary, final Callable<T> backup) throws IOException {
+    final long deadline = RetryPolicy.deadline();
+    final FishtextAccount account = FishtextAccount.current();
+    final CompletionService<T> completion = new ExecutorCompletionService<T>(BACKGROUND);
+    completion.submit(onBehalf(primary, deadline, account));
+    int pending = 1;
+    Future<T> backupFuture = null;
+    try {
+      Future<T> done = completion.poll(RetryPolicy.hedgeDelay(), TimeUnit.MILLISECONDS);
+      if (done == null && CircuitBreaker.get().getState() == CircuitBreaker.State.CLOSED) {
+        Log.d(ConnectorFishtext.TAG, "No response for " + url + " yet, sending it again");
+        Metrics.count("http.hedged");
+        backupFuture = completion.submit(onBehalf(backup, deadline, account));
+        pending++;
+      }
+      Throwable failure = null;
+      while (pending > 0) {
+        if (done == null) {
+          done = completion.take();
+        }
+        pending--;
+        try {
+          final T result = done.get();
+          if (done == backupFuture) {
+            Metrics.count("http.hedge_won");
+          }
+          return result;
+        } catch (ExecutionException ee) {
+          if (failure == null) {
+            failure = ee.getCause();
+          }
+        }
+        done = null;
+      }
+      if (failure instanceof IOException) {
+        throw (IOException) failure;
+      } else if (failure instanceof RuntimeException) {
+        throw (RuntimeException) failure;
+      }
+      throw new IllegalStateException(failure);
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting for " + url);
+    }
+  }
+
+  /**
+   * Run the task with the deadline and account of the command it works for.
+   */
+  private static <T> Callable<T> onBehalf(final Callable<T> task, final long deadline, final FishtextAccount account) {
+    return new Callable<T>() {
+      public T call() throws Exception {
+        RetryPolicy.setDeadline(deadline);
+        FishtextAccount.setCurrent(account);
+        try {
+          return task.call();
+        } finally {
+          RetryPolicy.setDeadline(0);
+          FishtextAccount.setCurrent(null);
+        }
+      }
+    };
+  }
 
+  public static String http(final Context context, final String url, final FormEncoder postData, final String referrer) throws IOException {
+    final HttpResponse response = execute(context, url, postData, referrer);
     final String pageHtml = Utils.stream2str(response.getEntity().getContent());
-    Log.d(ConnectorFishtext.TAG, "----START HTTP RESPONSE for " + url + "---");
-    Log.d(ConnectorFishtext.TAG, pageHtml);
-    Log.d(ConnectorFishtext.TAG, "----END HTTP RESPONSE---");
+    Metrics.count("bytes." + FishtextUrls.get(context).nameOf(url), pageHtml.length());
+    if (LOG_RESPONSES) {
+      Log.d(ConnectorFishtext.TAG, "----START HTTP RESPONSE for " + url + "---");
+      Log.d(ConnectorFishtext.TAG, pageHtml);
+      Log.d(ConnectorFishtext.TAG, "----END HTTP RESPONSE---");
+    }
 
     return pageHtml;
   }
 
-  public static String http(final Context context, final String url, final ArrayList<BasicNameValuePair> postData) throws IOException {
+  public static String http(final Context context, final String url, final FormEncoder postData) throws IOException {
     return http(context, url, postData, null);
   }
 
   public static String http(final Context context, final String url) throws IOException {
-    return http(context, url, (ArrayList<BasicNameValuePair>) null);
+    return http(context, url, (FormEncoder) null);
   }
 
   public static String http(final Context context, final String url, final String referrer) throws IOException {
@@ -83,13 +296,119 @@ public class FishtextUtil {
   }
 
   /**
-   * Fix html currency symbols to the unicode equivalent
+   * GET the url, hedging the request if it is slow.
+   * 
+   * @param context
+   * @param url
+   * @return the response
+   * @throws IOException
+   */
+  public static String httpHedged(final Context context, final String url) throws IOException {
+    final Callable<String> get = new Callable<String>() {
+      public String call() throws IOException {
+        return http(context, url);
+      }
+    };
+    return hedged(url, get, get);
+  }
+
+  /**
+   * Like http, but instead of reading the whole response into a String, feed it
+   * through the scanner. Once the scanner has found everything it looks for the
+   * rest of a long response is not read and the connection is released.
+   * 
+   * @param context
+   * @param url
+   * @param postData
+   * @param referrer
+   * @param scanner
+   * @return the scanner
+   * @throws IOException
+   */
+  public static ResponseScanner scan(final Context context, final String url, final FormEncoder postData,
+      final String referrer, final ResponseScanner scanner) throws IOException {
+    final HttpResponse response = execute(context, url, postData, referrer);
+    final long length = response.getEntity().getContentLength();
+    final InputStream in = response.getEntity().getContent();
+    final CountingInputStream counter = new CountingInputStream(in);
+    try {
+      if (scanner.scan(counter, ConnectorFishtext.ENCODING) && (length < 0 || length > SCAN_DRAIN_LIMIT)
+          && in instanceof ConnectionReleaseTrigger) {
+        // Don't let close() read the rest of a long page, it is cheaper to
+        // open a new connection
+        ((ConnectionReleaseTrigger) in).abortConnection();
+      }
+    } finally {
+      in.close();
+      Metrics.count("bytes." + FishtextUrls.get(context).nameOf(url), counter.count);
+    }
+    Log.d(ConnectorFishtext.TAG, "Scanned response for " + url + ", found " + scanner);
+    return scanner;
+  }
+
+  public static ResponseScanner scan(final Context context, final String url, final ResponseScanner scanner) throws IOException {
+    return scan(context, url, null, null, scanner);
+  }
+
+  /**
+   * Scan a GET of the url, hedging the request if it is slow. The results may
+   * be in a copy of the scanner, so use the returned one.
+   * 
+   * @param context
+   * @param url
+   * @param scanner
+   * @return the scanner with the results
+   * @throws IOException
+   */
+  public static ResponseScanner scanHedged(final Context context, final String url, final ResponseScanner scanner) throws IOException {
+    final ResponseScanner backupScanner = scanner.copy();
+    return hedged(url, new Callable<ResponseScanner>() {
+      public ResponseScanner call() throws IOException {
+        return scan(context, url, scanner);
+      }
+    }, new Callable<ResponseScanner>() {
+      public ResponseScanner call() throws IOException {
+        return scan(context, url, backupScanner);
+      }
+    });
+  }
+
+  /** Counts the bytes read through it. */
+  private static final class CountingInputStream extends FilterInputStream {
+    long count = 0;
+
+    CountingInputStream(final InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      final int b = super.read();
+      if (b >= 0) {
+        this.count++;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+      final int n = super.read(buffer, offset, length);
+      if (n > 0) {
+        this.count += n;
+      }
+      return n;
+    }
+  }
+
+  /**
+   * Fix html currency symbols, and any other entities, to the unicode
+   * equivalent
    * 
    * @param string
    * @return
    */
   public static String currencyFix(final String string) {
-    return string.replaceAll("&pound;", "\u00A3").replaceAll("&euro;", "\u20AC");
+    return HtmlEntities.decode(string);
   }
 
   /**
@@ -117,17 +436,4 @@ public class FishtextUtil {
     }.start();
   }
 
-  /**
-   * Helper for building parameter arrays.
-   * 
-   * @param map
-   * @return
-   */
-  public static ArrayList<BasicNameValuePair> parametersMapToParametersArray(final Map<String, String> map) {
-    final ArrayList<BasicNameValuePair> paramArray = new ArrayList<BasicNameValuePair>(map.size());
-    for (Map.Entry<String, String> entry : map.entrySet()) {
-      paramArray.add(new BasicNameValuePair(entry.getKey(), entry.getValue()));
-    }
-    return paramArray;
-  }
 }
@@ -0,0 +1,220 @@
+package com.fairmichael.fintan.websms.connector.fishtext;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+/**
+ * Encodes form parameters as application/x-www-form-urlencoded in
+ * ISO-8859-15 straight into a byte buffer, which doubles as the request
+ * entity. Each thread has one encoder that is reused for every request, so a
+ * form must be sent before the thread starts building the next one.
+ * 
+ * @author Fintan Fairmichael
+ */
+final class FormEncoder extends AbstractHttpEntity {
+  private static final byte[] HEX = "0123456789ABCDEF".getBytes();
+
+  /** Characters that need no escaping, the others up to 0x7f are escaped. */
+  private static final boolean[] UNRESERVED = new boolean[0x80];
+
+  static {
+    for (char c = 'a'; c <= 'z'; c++) {
+      UNRESERVED[c] = true;
+    }
+    for (char c = 'A'; c <= 'Z'; c++) {
+      UNRESERVED[c] = true;
+    }
+    for (char c = '0'; c <= '9'; c++) {
+      UNRESERVED[c] = true;
+    }
+    UNRESERVED['.'] = true;
+    UNRESERVED['-'] = true;
+    UNRESERVED['*'] = true;
+    UNRESERVED['_'] = true;
+  }
+
+  private static final ThreadLocal<FormEncoder> POOL = new ThreadLocal<FormEncoder>() {
+    @Override
+    protected FormEncoder initialValue() {
+      return new FormEncoder();
+    }
+  };
+
+  private byte[] buffer = new byte[512];
+  private int length = 0;
+
+  private FormEncoder() {
+    this.setContentType("application/x-www-form-urlencoded");
+  }
+
+  /**
+   * @return this thread's encoder, emptied
+   */
+  static FormEncoder obtain() {
+    final FormEncoder encoder = POOL.get();
+    encoder.length = 0;
+    return encoder;
+  }
+
+  /**
+   * Encode fields whose names and values never change once, to be added with
+   * add(byte[]).
+   * 
+   * @param namesAndValues
+   *          name, value, name, value...
+   * @return the encoded fields
+   */
+  static byte[] encodeConstant(final String... namesAndValues) {
+    final FormEncoder encoder = new FormEncoder();
+    for (int i = 0; i + 1 < namesAndValues.length; i += 2) {
+      encoder.add(namesAndValues[i], namesAndValues[i + 1]);
+    }
+    final byte[] encoded = new byte[encoder.length];
+    System.arraycopy(encoder.buffer, 0, encoded, 0, encoder.length);
+    return encoded;
+  }
+
+  FormEncoder add(final String name, final String value) {
+    this.separator();
+    this.encode(name);
+    this.put((byte) '=');
+    this.encode(value);
+    return this;
+  }
+
+  /**
+   * @param field
+   *          from encodeConstant
+   * @return this
+   */
+  FormEncoder add(final byte[] field) {
+    this.separator();
+    this.ensure(field.length);
+    System.arraycopy(field, 0, this.buffer, this.length, field.length);
+    this.length += field.length;
+    return this;
+  }
+
+  FormEncoder addAll(final Map<String, String> fields) {
+    for (Map.Entry<String, String> entry : fields.entrySet()) {
+      this.add(entry.getKey(), entry.getValue());
+    }
+    return this;
+  }
+
+  private void separator() {
+    if (this.length > 0) {
+      this.put((byte) '&');
+    }
+  }
+
+  private void encode(final String s) {
+    if (s == null) {
+      return;
+    }
+    final int n = s.length();
+    // Worst case every char becomes %XX
+    this.ensure(n * 3);
+    final byte[] b = this.buffer;
+    int pos = this.length;
+    for (int i = 0; i < n; i++) {
+      final char c = s.charAt(i);
+      if (c < 0x80 && UNRESERVED[c]) {
+        b[pos++] = (byte) c;
+      } else if (c == ' ') {
+        b[pos++] = '+';
+      } else {
+        final int latin9 = c < 0x80 ? c : toLatin9(c);
+        b[pos++] = '%';
+        b[pos++] = HEX[(latin9 >> 4) & 0xf];
+        b[pos++] = HEX[latin9 & 0xf];
+      }
+    }
+    this.length = pos;
+  }
+
+  /**
+   * @param c
+   *          a non-ASCII char
+   * @return its ISO-8859-15 code, or '?' if it has none
+   */
+  static int toLatin9(final char c) {
+    switch (c) {
+    case '\u20AC': // Euro sign
+      return 0xA4;
+    case '\u0160':
+      return 0xA6;
+    case '\u0161':
+      return 0xA8;
+    case '\u017D':
+      return 0xB4;
+    case '\u017E':
+      return 0xB8;
+    case '\u0152':
+      return 0xBC;
+    case '\u0153':
+      return 0xBD;
+    case '\u0178':
+      return 0xBE;
+    case '\u00A4':
+    case '\u00A6':
+    case '\u00A8':
+    case '\u00B4':
+    case '\u00B8':
+    case '\u00BC':
+    case '\u00BD':
+    case '\u00BE':
+      // Replaced by the above in ISO-8859-15
+      return '?';
+    default:
+      return c <= 0xFF ? c : '?';
+    }
+  }
+
+  private void put(final byte b) {
+    this.ensure(1);
+    this.buffer[this.length++] = b;
+  }
+
+  private void ensure(final int extra) {
+    if (this.length + extra > this.buffer.length) {
+      final byte[] bigger = new byte[Math.max(this.buffer.length * 2, this.length + extra)];
+      System.arraycopy(this.buffer, 0, bigger, 0, this.length);
+      this.buffer = bigger;
+    }
+  }
+
+  public boolean isRepeatable() {
+    return true;
+  }
+
+  public long getContentLength() {
+    return this.length;
+  }
+
+  public InputStream getContent() {
+    return new ByteArrayInputStream(this.buffer, 0, this.length);
+  }
+
+  public void writeTo(final OutputStream out) throws IOException {
+    out.write(this.buffer, 0, this.length);
+  }
+
+  public boolean isStreaming() {
+    return false;
+  }
+
+  @Override
+  public String toString() {
+    try {
+      return new String(this.buffer, 0, this.length, "ISO-8859-1");
+    } catch (java.io.UnsupportedEncodingException uee) {
+      return super.toString();
+    }
+  }
+}
@@ -0,0 +1,129 @@
+package com.fairmichael.fintan.websms.connector.fishtext;
+
+/**
+ * Decodes the HTML character references found in fishtext pages in a single
+ * pass, without regular expressions. Named entities are looked up in a small
+ * table indexed by their first letter.
+ *
+ * @author Fintan Fairmichael
+ */
+final class HtmlEntities {
+  /** Longest entity name in the table. */
+  private static final int MAX_NAME_LENGTH = 6;
+
+  private static final String[] NAMES = { "amp", "lt", "gt", "quot", "apos", "nbsp", "pound", "euro", "cent", "yen", "copy", "reg",
+      "trade", "deg", "hellip", "ndash", "mdash", "lsquo", "rsquo", "ldquo", "rdquo", "bull", "middot", "eacute", "aacute", "iacute",
+      "oacute", "uacute", "Eacute", "Aacute", "Iacute", "Oacute", "Uacute" };
+  private static final char[] CHARS = { '&', '<', '>', '"', '\'', '\u00A0', '\u00A3', '\u20AC', '\u00A2', '\u00A5', '\u00A9', '\u00AE',
+      '\u2122', '\u00B0', '\u2026', '\u2013', '\u2014', '\u2018', '\u2019', '\u201C', '\u201D', '\u2022', '\u00B7', '\u00E9', '\u00E1',
+      '\u00ED', '\u00F3', '\u00FA', '\u00C9', '\u00C1', '\u00CD', '\u00D3', '\u00DA' };
+
+  /** For each ASCII letter, the indexes into NAMES of the names starting with it. */
+  private static final int[][] BY_FIRST = new int[128][];
+
+  static {
+    for (int i = 0; i < NAMES.length; i++) {
+      final char first = NAMES[i].charAt(0);
+      final int[] old = BY_FIRST[first];
+      final int[] indexes = new int[old == null ? 1 : old.length + 1];
+      if (old != null) {
+        System.arraycopy(old, 0, indexes, 0, old.length);
+      }
+      indexes[indexes.length - 1] = i;
+      BY_FIRST[first] = indexes;
+    }
+  }
+
+  private HtmlEntities() {
+  }
+
+  /**
+   * @param s
+   * @return s with its character references decoded, s itself if it has none.
+   *         Unknown or malformed references are left as they are.
+   */
+  static String decode(final String s) {
+    int amp = s.indexOf('&');
+    if (amp < 0) {
+      return s;
+    }
+    final int length = s.length();
+    StringBuilder sb = null;
+    int copied = 0;
+    while (amp >= 0) {
+      final int semicolon = s.indexOf(';', amp + 1);
+      if (semicolon < 0) {
+        break;
+      }
+      final int decoded = decodeReference(s, amp + 1, semicolon);
+      if (decoded >= 0) {
+        if (sb == null) {
+          sb = new StringBuilder(length);
+        }
+        sb.append(s, copied, amp);
+        if (decoded > 0xFFFF) {
+          sb.append(Character.toChars(decoded));
+        } else {
+          sb.append((char) decoded);
+        }
+        copied = semicolon + 1;
+        amp = s.indexOf('&', copied);
+      } else {
+        amp = s.indexOf('&', amp + 1);
+      }
+    }
+    if (sb == null) {
+      return s;
+    }
+    return sb.append(s, copied, length).toString();
+  }
+
+  /**
+   * @param s
+   * @param start
+   *          first character after the '&'
+   * @param end
+   *          index of the ';'
+   * @return the code point, -1 if not a known reference
+   */
+  private static int decodeReference(final String s, final int start, final int end) {
+    final int nameLength = end - start;
+    if (nameLength < 2) {
+      return -1;
+    }
+    final char first = s.charAt(start);
+    if (first == '#') {
+      return decodeNumber(s, start + 1, end);
+    }
+    if (nameLength > MAX_NAME_LENGTH || first >= 128 || BY_FIRST[first] == null) {
+      return -1;
+    }
+    for (int index : BY_FIRST[first]) {
+      final String name = NAMES[index];
+      if (name.length() == nameLength && s.regionMatches(start, name, 0, nameLength)) {
+        return CHARS[index];
+      }
+    }
+    return -1;
+  }
+
+  private static int decodeNumber(final String s, int start, final int end) {
+    int radix = 10;
+    if (start < end && (s.charAt(start) == 'x' || s.charAt(start) == 'X')) {
+      radix = 16;
+      start++;
+    }
+    if (start == end || end - start > 7) {
+      return -1;
+    }
+    int value = 0;
+    for (int i = start; i < end; i++) {
+      final int digit = Character.digit(s.charAt(i), radix);
+      if (digit < 0) {
+        return -1;
+      }
+      value = value * radix + digit;
+    }
+    return value > Character.MAX_CODE_POINT || value == 0 ? -1 : value;
+  }
+}
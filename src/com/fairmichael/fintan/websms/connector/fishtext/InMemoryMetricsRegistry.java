@@ -0,0 +1,97 @@
+package com.fairmichael.fintan.websms.connector.fishtext;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Default MetricsRegistry: keeps counters and fixed-bucket histograms in
+ * memory. Recording is lock-free once a name has been seen.
+ * 
+ * @author Fintan Fairmichael
+ */
+final class InMemoryMetricsRegistry implements MetricsRegistry {
+  /** Upper bounds of the histogram buckets in microseconds, the last is open. */
+  private static final long[] BUCKETS = { 100, 500, 1000, 5000, 10000, 50000, 100000, 250000, 500000, 1000000, 2000000, 5000000,
+      10000000, 30000000 };
+
+  private static final class Histogram {
+    final AtomicLongArray counts = new AtomicLongArray(BUCKETS.length + 1);
+    final AtomicLong total = new AtomicLong();
+    final AtomicLong max = new AtomicLong();
+
+    void add(final long micros) {
+      int bucket = 0;
+      while (bucket < BUCKETS.length && micros > BUCKETS[bucket]) {
+        bucket++;
+      }
+      this.counts.incrementAndGet(bucket);
+      this.total.addAndGet(micros);
+      long currentMax;
+      while (micros > (currentMax = this.max.get()) && !this.max.compareAndSet(currentMax, micros)) {
+        // retry
+      }
+    }
+
+    @Override
+    public String toString() {
+      long n = 0;
+      final StringBuilder sb = new StringBuilder();
+      for (int i = 0; i < this.counts.length(); i++) {
+        final long count = this.counts.get(i);
+        if (count > 0) {
+          n += count;
+          sb.append(i < BUCKETS.length ? "<=" + formatMicros(BUCKETS[i]) : ">" + formatMicros(BUCKETS[BUCKETS.length - 1]));
+          sb.append(':').append(count).append(' ');
+        }
+      }
+      return "n=" + n + " avg=" + formatMicros(n == 0 ? 0 : this.total.get() / n) + " max=" + formatMicros(this.max.get()) + " ["
+          + sb.toString().trim() + "]";
+    }
+  }
+
+  private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+  private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+
+  public void time(final String name, final long micros) {
+    Histogram histogram = this.histograms.get(name);
+    if (histogram == null) {
+      final Histogram created = new Histogram();
+      histogram = this.histograms.putIfAbsent(name, created);
+      if (histogram == null) {
+        histogram = created;
+      }
+    }
+    histogram.add(micros);
+  }
+
+  public void count(final String name, final long delta) {
+    AtomicLong counter = this.counters.get(name);
+    if (counter == null) {
+      final AtomicLong created = new AtomicLong();
+      counter = this.counters.putIfAbsent(name, created);
+      if (counter == null) {
+        counter = created;
+      }
+    }
+    counter.addAndGet(delta);
+  }
+
+  public String dump() {
+    final StringBuilder sb = new StringBuilder();
+    for (Map.Entry<String, Histogram> entry : new TreeMap<String, Histogram>(this.histograms).entrySet()) {
+      sb.append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+    }
+    for (Map.Entry<String, AtomicLong> entry : new TreeMap<String, AtomicLong>(this.counters).entrySet()) {
+      sb.append(entry.getKey()).append(": ").append(entry.getValue().get()).append('\n');
+    }
+    return sb.toString();
+  }
+
+  private static String formatMicros(final long micros) {
+    return micros < 1000 ? micros + "us" : micros < 1000000 ? micros / 1000 + "ms" : micros / 1000000 + "s";
+  }
+}
@@ -0,0 +1,43 @@
+package com.fairmichael.fintan.websms.connector.fishtext;
+
+/**
+ * Timings and counters of the connector's hot paths: request latency per
+ * page, parse time, bytes downloaded, logins and send outcomes. Recorded into
+ * a pluggable MetricsRegistry, by default an in-memory one that can be dumped
+ * with MetricsReceiver.
+ * 
+ * @author Fintan Fairmichael
+ */
+final class Metrics {
+  private static volatile MetricsRegistry registry = new InMemoryMetricsRegistry();
+
+  private Metrics() {
+  }
+
+  static void setRegistry(final MetricsRegistry newRegistry) {
+    registry = newRegistry;
+  }
+
+  /**
+   * Record the time since start.
+   * 
+   * @param name
+   * @param startNanos
+   *          from System.nanoTime()
+   */
+  static void time(final String name, final long startNanos) {
+    registry.time(name, (System.nanoTime() - startNanos) / 1000);
+  }
+
+  static void count(final String name) {
+    registry.count(name, 1);
+  }
+
+  static void count(final String name, final long delta) {
+    registry.count(name, delta);
+  }
+
+  static String dump() {
+    return registry.dump();
+  }
+}
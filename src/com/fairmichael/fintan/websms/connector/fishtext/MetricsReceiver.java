@@ -0,0 +1,29 @@
+package com.fairmichael.fintan.websms.connector.fishtext;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import de.ub0r.android.websms.connector.common.Log;
+
+/**
+ * Dumps the connector's metrics to the log and, for ordered broadcasts, into
+ * the result data. E.g.
+ * <code>adb shell am broadcast -a com.fairmichael.fintan.websms.connector.fishtext.DUMP_METRICS</code>
+ * Senders need android.permission.DUMP, which the shell has but other apps
+ * can't get, as the dump shows how the connector is used.
+ * 
+ * @author Fintan Fairmichael
+ */
+public final class MetricsReceiver extends BroadcastReceiver {
+  public static final String ACTION_DUMP_METRICS = "com.fairmichael.fintan.websms.connector.fishtext.DUMP_METRICS";
+
+  @Override
+  public void onReceive(final Context context, final Intent intent) {
+    final String dump = Metrics.dump() + "http client: " + FishtextHttpClient.get().getStats() + "\ncircuit breaker: "
+        + CircuitBreaker.get().getStats() + "\n";
+    Log.i(ConnectorFishtext.TAG, "Metrics:\n" + dump);
+    if (this.isOrderedBroadcast()) {
+      this.setResultData(dump);
+    }
+  }
+}
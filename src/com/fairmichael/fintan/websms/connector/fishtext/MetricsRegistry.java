@@ -0,0 +1,29 @@
+package com.fairmichael.fintan.websms.connector.fishtext;
+
+/**
+ * Receives the connector's timings and counters. See Metrics.
+ * 
+ * @author Fintan Fairmichael
+ */
+interface MetricsRegistry {
+  /**
+   * Record a duration.
+   * 
+   * @param name
+   * @param micros
+   */
+  void time(String name, long micros);
+
+  /**
+   * Add to a counter.
+   * 
+   * @param name
+   * @param delta
+   */
+  void count(String name, long delta);
+
+  /**
+   * @return human readable summary of everything recorded
+   */
+  String dump();
+}
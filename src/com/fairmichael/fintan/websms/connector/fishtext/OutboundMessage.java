@@ -0,0 +1,38 @@
+package com.fairmichael.fintan.websms.connector.fishtext;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * A message ready to be posted: everything a send needs once the command has
+ * been processed, so that it can also be stored and sent later.
+ * 
+ * @author Fintan Fairmichael
+ */
+final class OutboundMessage {
+  /** Unique id, used as idempotency key in the outbound queue. */
+  final String id;
+  final String login;
+  /** The ST parameter, whether to attempt sending for free. */
+  final String sendType;
+  final String text;
+  /** Processed numbers, without leading '+'. */
+  final List<String> numbers;
+
+  OutboundMessage(final String login, final String sendType, final String text, final List<String> numbers) {
+    this(UUID.randomUUID().toString(), login, sendType, text, numbers);
+  }
+
+  OutboundMessage(final String id, final String login, final String sendType, final String text, final List<String> numbers) {
+    this.id = id;
+    this.login = login;
+    this.sendType = sendType;
+    this.text = text;
+    this.numbers = numbers;
+  }
+
+  @Override
+  public String toString() {
+    return this.id + " to " + this.numbers;
+  }
+}
@@ -0,0 +1,556 @@
+package com.fairmichael.fintan.websms.connector.fishtext;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.os.PowerManager;
+import android.widget.Toast;
+import de.ub0r.android.websms.connector.common.Log;
+import de.ub0r.android.websms.connector.common.WebSMSException;
+
+/**
+ * Messages that could not be sent because fishtext could not be reached. They
+ * are kept in an append-only journal in the app's files and retried in the
+ * background with exponential backoff.
+ * 
+ * Before a queued message is posted a record is written to the journal. If the
+ * process dies after that and before the outcome is journalled, the message
+ * may or may not have been sent, and it is dropped with a notification rather
+ * than risk sending it twice.
+ * 
+ * Messages that aren't urgent are deferred: they wait in the queue until a set
+ * time, or until enough have gathered, and are then flushed together. Deferred
+ * messages with the same text are sent as one post to all their recipients,
+ * and all posts of a flush share one login check, settings sync and message id
+ * lookup. Messages the user scheduled for later are flushed along with the
+ * others once they are due, but are never sent early.
+ * 
+ * The queue is only drained while something is due. Whatever is waiting, a
+ * retry or a flush, has an alarm set for it, and a partial wake lock is held
+ * while the messages are posted.
+ * 
+ * @author Fintan Fairmichael
+ */
+final class OutboundQueue {
+  /** Preference name for queueing sends that failed to reach fishtext. */
+  static final String PREFS_QUEUE_FAILED_SENDS = "queue_failed_sends_fishtext";
+  /** Preference name for how long to collect sends before flushing them, in minutes. */
+  static final String PREFS_DEFER_SENDS = "defer_sends_fishtext";
+
+  private static final String JOURNAL_NAME = "fishtext_outbox.journal";
+  private static final String CHARSET = "UTF-8";
+
+  /** Journal record: message queued. */
+  private static final String QUEUED = "Q";
+  /** Journal record: about to post the message. */
+  private static final String POSTING = "P";
+  /** Journal record: attempt failed before posting, retry later. */
+  private static final String RETRY = "R";
+  /** Journal record: message delivered to fishtext or given up on. */
+  private static final String DONE = "D";
+  /** Journal record: message deferred until the given time. */
+  private static final String DEFERRED = "L";
+  /** Journal record: message scheduled by the user for the given time. */
+  private static final String SCHEDULED = "S";
+
+  private static final long INITIAL_BACKOFF = 30 * 1000L;
+  private static final long MAXIMUM_BACKOFF = 30 * 60 * 1000L;
+  private static final int MAXIMUM_ATTEMPTS = 10;
+  /** Compact the journal when it has this many more records than needed. */
+  private static final int COMPACT_THRESHOLD = 50;
+  /** Flush deferred messages early once this many are waiting. */
+  private static final int FLUSH_MESSAGES = 20;
+  /** Flush deferred messages early once they have this many recipients. */
+  private static final int FLUSH_RECIPIENTS = 200;
+  /** Deferred messages due within this time are flushed along with a due one. */
+  private static final long FLUSH_WINDOW = 60 * 1000L;
+
+  private static OutboundQueue instance = null;
+
+  private static final class Entry {
+    final OutboundMessage message;
+    int attempts = 0;
+    long nextAttempt = 0;
+    boolean posting = false;
+    /** Waiting to be flushed, rather than to be retried. */
+    boolean deferred = false;
+    /** Deferred to a time the user chose, so it must not be flushed early. */
+    boolean scheduled = false;
+
+    Entry(final OutboundMessage message) {
+      this.message = message;
+    }
+  }
+
+  private final Context context;
+  private final File journal;
+  /** Held while the queue is drained, so the device doesn't sleep mid-send. */
+  private final PowerManager.WakeLock wakeLock;
+  private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+  private int journalRecords = 0;
+  private boolean draining = false;
+
+  private OutboundQueue(final Context context) {
+    this.context = context;
+    this.journal = new File(context.getFilesDir(), JOURNAL_NAME);
+    this.wakeLock = ((PowerManager) context.getSystemService(Context.POWER_SERVICE)).newWakeLock(PowerManager.PARTIAL_WAKE_LOCK,
+        "fishtext-outbox");
+    this.wakeLock.setReferenceCounted(false);
+  }
+
+  /**
+   * @param context
+   * @return the queue, with the journal replayed on first use
+   */
+  static synchronized OutboundQueue get(final Context context) {
+    if (instance == null) {
+      instance = new OutboundQueue(context.getApplicationContext());
+      instance.replay();
+    }
+    return instance;
+  }
+
+  static boolean isEnabled(final Context context) {
+    return ConnectorConfig.get(context).queueFailedSends;
+  }
+
+  /**
+   * Queue a message and start draining the queue in the background.
+   * 
+   * @param message
+   */
+  synchronized void add(final OutboundMessage message) {
+    final Entry entry = new Entry(message);
+    entry.nextAttempt = System.currentTimeMillis() + INITIAL_BACKOFF;
+    this.entries.put(message.id, entry);
+    this.append(QUEUED, message.id, message.login, message.sendType, message.text, FishtextUtil.appendWithSeparator(message.numbers, ","));
+    Log.d(ConnectorFishtext.TAG, "Queued message " + message);
+    this.scheduleAlarm();
+    this.drain();
+  }
+
+  /**
+   * Hold a message back until the given time. Unless the user scheduled it
+   * for that time, it is sent earlier once enough deferred messages have
+   * gathered.
+   * 
+   * @param message
+   * @param due
+   *          System.currentTimeMillis() time to send at
+   * @param scheduled
+   *          true if the user asked for the message to be sent at due
+   */
+  synchronized void defer(final OutboundMessage message, final long due, final boolean scheduled) {
+    final Entry entry = new Entry(message);
+    entry.deferred = true;
+    entry.scheduled = scheduled;
+    entry.nextAttempt = due;
+    this.entries.put(message.id, entry);
+    this.append(QUEUED, message.id, message.login, message.sendType, message.text, FishtextUtil.appendWithSeparator(message.numbers, ","));
+    this.append(scheduled ? SCHEDULED : DEFERRED, message.id, "" + due);
+    Log.d(ConnectorFishtext.TAG, (scheduled ? "Scheduled message " : "Deferred message ") + message + " until " + due);
+    Metrics.count(scheduled ? "deferred.scheduled" : "deferred.messages");
+
+    int messages = 0, recipients = 0;
+    for (Entry e : this.entries.values()) {
+      if (e.deferred && !e.scheduled) {
+        messages++;
+        recipients += e.message.numbers.size();
+      }
+    }
+    if (messages >= FLUSH_MESSAGES || recipients >= FLUSH_RECIPIENTS) {
+      Log.d(ConnectorFishtext.TAG, messages + " deferred messages to " + recipients + " recipients, flushing now");
+      final long now = System.currentTimeMillis();
+      for (Entry e : this.entries.values()) {
+        if (e.deferred && !e.scheduled) {
+          e.nextAttempt = now;
+        }
+      }
+    }
+    this.scheduleAlarm();
+    this.drain();
+  }
+
+  /**
+   * @return when the messages collected for flushing are next due, 0 if there
+   *         are none. Scheduled messages are left out.
+   */
+  synchronized long nextFlush() {
+    long next = 0;
+    for (Entry entry : this.entries.values()) {
+      if (entry.deferred && !entry.scheduled && (next == 0 || entry.nextAttempt < next)) {
+        next = entry.nextAttempt;
+      }
+    }
+    return next;
+  }
+
+  /**
+   * Set an alarm for the next retry or flush, so queued messages go even if
+   * the process has been stopped or the device is asleep.
+   */
+  private void scheduleAlarm() {
+    long next = 0;
+    for (Entry entry : this.entries.values()) {
+      if (next == 0 || entry.nextAttempt < next) {
+        next = entry.nextAttempt;
+      }
+    }
+    final AlarmManager alarms = (AlarmManager) this.context.getSystemService(Context.ALARM_SERVICE);
+    final PendingIntent flush = PendingIntent.getBroadcast(this.context, 0, new Intent(this.context, DeferredSendReceiver.class), 0);
+    if (next == 0) {
+      alarms.cancel(flush);
+    } else {
+      alarms.set(AlarmManager.RTC_WAKEUP, next, flush);
+    }
+  }
+
+  /**
+   * Start a background thread sending the queued messages that are due,
+   * unless there are none or one is already running. The wake lock is taken
+   * here, so a caller woken by the alarm can return straight away.
+   */
+  synchronized void drain() {
+    if (this.draining || this.nextDue() == null) {
+      return;
+    }
+    this.draining = true;
+    this.wakeLock.acquire();
+    final Thread drainer = new Thread("fishtext-outbox") {
+      @Override
+      public void run() {
+        OutboundQueue.this.drainLoop();
+      }
+    };
+    drainer.setDaemon(true);
+    drainer.start();
+  }
+
+  private void drainLoop() {
+    try {
+      this.drainDue();
+    } finally {
+      synchronized (this) {
+        this.draining = false;
+        this.scheduleAlarm();
+        this.wakeLock.release();
+      }
+    }
+  }
+
+  /**
+   * Post queued messages until none is due.
+   */
+  private void drainDue() {
+    while (true) {
+      final List<Entry> batch = new ArrayList<Entry>();
+      synchronized (this) {
+        final Entry entry = this.nextDue();
+        if (entry == null) {
+          return;
+        }
+        if (entry.deferred) {
+          // Take every deferred message that is due about now, scheduled
+          // ones only once their time has come
+          final long now = System.currentTimeMillis();
+          for (Entry e : this.entries.values()) {
+            if (e.deferred && e.nextAttempt <= (e.scheduled ? now : now + FLUSH_WINDOW)) {
+              batch.add(e);
+            }
+          }
+        } else {
+          batch.add(entry);
+        }
+        for (Entry e : batch) {
+          e.posting = true;
+          this.append(POSTING, e.message.id);
+        }
+      }
+      if (batch.get(0).deferred) {
+        this.flush(batch);
+      } else {
+        this.attempt(batch, batch.get(0).message);
+      }
+    }
+  }
+
+  /**
+   * Send deferred messages, one post per distinct text.
+   * 
+   * @param batch
+   */
+  private void flush(final List<Entry> batch) {
+    Log.d(ConnectorFishtext.TAG, "Flushing " + batch.size() + " deferred messages");
+    Metrics.count("deferred.flushes");
+    final Map<String, List<Entry>> groups = new LinkedHashMap<String, List<Entry>>();
+    for (Entry entry : batch) {
+      final OutboundMessage message = entry.message;
+      final String key = message.login + '\n' + message.sendType + '\n' + message.text;
+      List<Entry> group = groups.get(key);
+      if (group == null) {
+        group = new ArrayList<Entry>();
+        groups.put(key, group);
+      }
+      group.add(entry);
+    }
+    for (List<Entry> group : groups.values()) {
+      final OutboundMessage first = group.get(0).message;
+      final LinkedHashSet<String> numbers = new LinkedHashSet<String>();
+      for (Entry entry : group) {
+        numbers.addAll(entry.message.numbers);
+      }
+      Metrics.count("deferred.posts");
+      this.attempt(group, new OutboundMessage(first.login, first.sendType, first.text, new ArrayList<String>(numbers)));
+    }
+  }
+
+  /**
+   * @return the entry that is due first, null if none is due yet
+   */
+  private synchronized Entry nextDue() {
+    Entry first = null;
+    for (Entry entry : this.entries.values()) {
+      if (first == null || entry.nextAttempt < first.nextAttempt) {
+        first = entry;
+      }
+    }
+    return first != null && first.nextAttempt <= System.currentTimeMillis() ? first : null;
+  }
+
+  /**
+   * Post a message on behalf of queued entries, and record the outcome for all
+   * of them.
+   * 
+   * @param batch
+   *          the entries, already journalled as posting
+   * @param message
+   *          the message to post, the entries' message or their combination
+   */
+  private void attempt(final List<Entry> batch, final OutboundMessage message) {
+    Log.d(ConnectorFishtext.TAG, "Sending queued message " + message + ", attempt " + (batch.get(0).attempts + 1));
+    FishtextAccount.setCurrent(FishtextAccount.forLogin(this.context, message.login));
+    try {
+      final SendResult result = ConnectorFishtext.send(this.context, null, message);
+      Log.d(ConnectorFishtext.TAG, "Queued message result: " + result);
+      if (result.status == SendResult.Status.SENT) {
+        RecipientNormaliser.learnInvalid(this.context, result.invalidNumbers);
+        this.toast(this.context.getString(R.string.queued_send_sent_fishtext, message.numbers.size() - result.invalidNumbers.length
+            - result.failedNumbers.length - result.unknownNumbers.length));
+      } else {
+        this.toast(this.context.getString(R.string.queued_send_failed_fishtext, result.failureMessage));
+      }
+      this.done(batch);
+    } catch (SendInDoubtException side) {
+      Log.d(ConnectorFishtext.TAG, "Queued message may have been sent, not retrying. " + side.getCause());
+      this.toast(this.context.getString(R.string.queued_send_in_doubt_fishtext));
+      this.done(batch);
+    } catch (IOException ioe) {
+      Log.d(ConnectorFishtext.TAG, "IOException sending queued message. " + ioe);
+      for (Entry entry : batch) {
+        this.retryLater(entry);
+      }
+    } catch (WebSMSException wse) {
+      Log.d(ConnectorFishtext.TAG, "Queued message failed. " + wse.getMessage());
+      this.toast(this.context.getString(R.string.queued_send_failed_fishtext, wse.getMessage()));
+      this.done(batch);
+    } finally {
+      FishtextAccount.setCurrent(null);
+    }
+  }
+
+  private synchronized void retryLater(final Entry entry) {
+    entry.posting = false;
+    entry.deferred = false;
+    entry.scheduled = false;
+    entry.attempts++;
+    if (entry.attempts >= MAXIMUM_ATTEMPTS) {
+      this.toast(this.context.getString(R.string.queued_send_failed_fishtext, ""));
+      this.done(Collections.singletonList(entry));
+      return;
+    }
+    final long backoff = Math.min(INITIAL_BACKOFF << entry.attempts, MAXIMUM_BACKOFF);
+    entry.nextAttempt = System.currentTimeMillis() + backoff;
+    this.append(RETRY, entry.message.id, "" + entry.attempts, "" + entry.nextAttempt);
+  }
+
+  private synchronized void done(final List<Entry> batch) {
+    for (Entry entry : batch) {
+      this.entries.remove(entry.message.id);
+      this.append(DONE, entry.message.id);
+    }
+    this.compactIfNecessary();
+  }
+
+  private void toast(final String message) {
+    FishtextUtil.toastNotifyOnMain(this.context, message, Toast.LENGTH_LONG);
+  }
+
+  /**
+   * Append a record to the journal and sync it to storage.
+   */
+  private void append(final String... fields) {
+    try {
+      final FileOutputStream out = new FileOutputStream(this.journal, true);
+      try {
+        out.write(encode(fields).getBytes(CHARSET));
+        out.getFD().sync();
+      } finally {
+        out.close();
+      }
+      this.journalRecords++;
+    } catch (IOException ioe) {
+      Log.e(ConnectorFishtext.TAG, "Could not write outbox journal", ioe);
+    }
+  }
+
+  /**
+   * Rewrite the journal with just the live entries once it has grown well
+   * beyond them, or delete it when there are none.
+   */
+  private void compactIfNecessary() {
+    if (this.entries.isEmpty()) {
+      this.journal.delete();
+      this.journalRecords = 0;
+      return;
+    }
+    if (this.journalRecords < this.entries.size() * 2 + COMPACT_THRESHOLD) {
+      return;
+    }
+    final File compacted = new File(this.journal.getPath() + ".tmp");
+    try {
+      final FileOutputStream out = new FileOutputStream(compacted);
+      try {
+        final StringBuilder sb = new StringBuilder();
+        for (Entry entry : this.entries.values()) {
+          final OutboundMessage message = entry.message;
+          sb.append(encode(QUEUED, message.id, message.login, message.sendType, message.text,
+              FishtextUtil.appendWithSeparator(message.numbers, ",")));
+          if (entry.deferred) {
+            sb.append(encode(entry.scheduled ? SCHEDULED : DEFERRED, message.id, "" + entry.nextAttempt));
+          } else {
+            sb.append(encode(RETRY, message.id, "" + entry.attempts, "" + entry.nextAttempt));
+          }
+        }
+        out.write(sb.toString().getBytes(CHARSET));
+        out.getFD().sync();
+      } finally {
+        out.close();
+      }
+      if (compacted.renameTo(this.journal)) {
+        this.journalRecords = this.entries.size() * 2;
+        Log.d(ConnectorFishtext.TAG, "Compacted outbox journal");
+      }
+    } catch (IOException ioe) {
+      Log.e(ConnectorFishtext.TAG, "Could not compact outbox journal", ioe);
+    }
+  }
+
+  /**
+   * Rebuild the queue from the journal. Messages that were being posted when
+   * the process died are dropped, as they may have been sent.
+   */
+  private synchronized void replay() {
+    if (!this.journal.exists()) {
+      return;
+    }
+    try {
+      final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(this.journal), CHARSET));
+      try {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          this.journalRecords++;
+          try {
+            this.replay(decode(line));
+          } catch (RuntimeException re) {
+            // Most likely a record cut short by a crash
+            Log.w(ConnectorFishtext.TAG, "Skipping bad outbox journal record: " + line);
+          }
+        }
+      } finally {
+        reader.close();
+      }
+    } catch (IOException ioe) {
+      Log.e(ConnectorFishtext.TAG, "Could not read outbox journal", ioe);
+    }
+
+    for (Iterator<Entry> it = this.entries.values().iterator(); it.hasNext();) {
+      final Entry entry = it.next();
+      if (entry.posting) {
+        Log.d(ConnectorFishtext.TAG, "Queued message " + entry.message + " was being posted, dropping it");
+        this.toast(this.context.getString(R.string.queued_send_in_doubt_fishtext));
+        it.remove();
+        this.append(DONE, entry.message.id);
+      }
+    }
+    Log.d(ConnectorFishtext.TAG, "Replayed outbox journal, " + this.entries.size() + " messages queued");
+    this.compactIfNecessary();
+    this.scheduleAlarm();
+  }
+
+  private void replay(final String[] record) {
+    final String type = record[0];
+    if (QUEUED.equals(type)) {
+      final OutboundMessage message = new OutboundMessage(record[1], record[2], record[3], record[4], new ArrayList<String>(
+          Arrays.asList(record[5].split(","))));
+      this.entries.put(message.id, new Entry(message));
+    } else {
+      final Entry entry = this.entries.get(record[1]);
+      if (entry == null) {
+        return;
+      }
+      if (POSTING.equals(type)) {
+        entry.posting = true;
+      } else if (DEFERRED.equals(type) || SCHEDULED.equals(type)) {
+        entry.deferred = true;
+        entry.scheduled = SCHEDULED.equals(type);
+        entry.nextAttempt = Long.parseLong(record[2]);
+      } else if (RETRY.equals(type)) {
+        entry.posting = false;
+        entry.deferred = false;
+        entry.scheduled = false;
+        entry.attempts = Integer.parseInt(record[2]);
+        entry.nextAttempt = Long.parseLong(record[3]);
+      } else if (DONE.equals(type)) {
+        this.entries.remove(record[1]);
+      }
+    }
+  }
+
+  private static String encode(final String... fields) throws UnsupportedEncodingException {
+    final StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < fields.length; i++) {
+      if (i > 0) {
+        sb.append(' ');
+      }
+      sb.append(URLEncoder.encode(fields[i], CHARSET));
+    }
+    return sb.append('\n').toString();
+  }
+
+  private static String[] decode(final String line) throws UnsupportedEncodingException {
+    final String[] fields = line.split(" ");
+    for (int i = 0; i < fields.length; i++) {
+      fields[i] = URLDecoder.decode(fields[i], CHARSET);
+    }
+    return fields;
+  }
+}
@@ -0,0 +1,280 @@
+package com.fairmichael.fintan.websms.connector.fishtext;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Date;
+import java.util.List;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.http.client.CookieStore;
+import org.apache.http.cookie.Cookie;
+import org.apache.http.impl.client.BasicCookieStore;
+import org.apache.http.impl.cookie.BasicClientCookie;
+
+import android.content.Context;
+import de.ub0r.android.websms.connector.common.Log;
+
+/**
+ * A session's cookies, kept in the app's files so that fishtext's remembered
+ * session survives the process being killed and a send after a cold start
+ * doesn't have to log in again. The file is encrypted with AES, with a key
+ * derived from the account's password, so it is useless without it and a
+ * changed password simply drops the old session.
+ *
+ * The cookies are loaded on first use and written whenever a response changed
+ * them.
+ *
+ * @author Fintan Fairmichael
+ */
+final class PersistentCookieStore implements CookieStore {
+  private static final String CHARSET = "UTF-8";
+  private static final byte FORMAT_VERSION = 1;
+  private static final int SALT_LENGTH = 16;
+  private static final int IV_LENGTH = 16;
+  private static final int KEY_ITERATIONS = 2000;
+  private static final int KEY_LENGTH = 128;
+
+  private static final SecureRandom RANDOM = new SecureRandom();
+
+  private final BasicCookieStore cookies = new BasicCookieStore();
+  private final String fileName;
+  /** Whether the file was loaded, or is to be replaced without loading it. */
+  private boolean loaded = false;
+  /** Whether the cookies changed since they were written. */
+  private boolean dirty = false;
+  /** The secret key was derived from, null if none was. */
+  private String keySecret = null;
+  private byte[] salt = null;
+  private SecretKey key = null;
+
+  /**
+   * @param fileName
+   *          name of the file in the app's files
+   */
+  PersistentCookieStore(final String fileName) {
+    this.fileName = fileName;
+  }
+
+  /**
+   * Load the cookies written by an earlier process, unless that was done
+   * already or they were replaced meanwhile.
+   *
+   * @param context
+   * @param secret
+   *          the account's password
+   * @return when the cookies were written, in ms since the epoch, 0 if none
+   *         were loaded
+   */
+  synchronized long load(final Context context, final String secret) {
+    if (this.loaded) {
+      return 0;
+    }
+    this.loaded = true;
+    final File file = new File(context.getFilesDir(), this.fileName);
+    if (!file.exists() || secret.length() == 0) {
+      return 0;
+    }
+    try {
+      final byte[] data = readFully(file);
+      if (data.length < 1 + SALT_LENGTH + IV_LENGTH || data[0] != FORMAT_VERSION) {
+        throw new GeneralSecurityException("Unknown format");
+      }
+      final byte[] salt = new byte[SALT_LENGTH];
+      System.arraycopy(data, 1, salt, 0, SALT_LENGTH);
+      final SecretKey key = deriveKey(secret, salt);
+      final Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+      cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(data, 1 + SALT_LENGTH, IV_LENGTH));
+      final byte[] plain = cipher.doFinal(data, 1 + SALT_LENGTH + IV_LENGTH, data.length - 1 - SALT_LENGTH - IV_LENGTH);
+      final long savedAt = this.decode(new String(plain, CHARSET));
+      // Keep the key for writing, deriving it is the expensive part
+      this.keySecret = secret;
+      this.salt = salt;
+      this.key = key;
+      Log.d(ConnectorFishtext.TAG, "Restored " + this.cookies.getCookies().size() + " cookies from " + this.fileName);
+      return savedAt;
+    } catch (GeneralSecurityException gse) {
+      // Most likely the password changed, the session is no use then anyway
+      Log.d(ConnectorFishtext.TAG, "Could not decrypt " + this.fileName + ", dropping it. " + gse);
+    } catch (IOException ioe) {
+      Log.w(ConnectorFishtext.TAG, "Could not read " + this.fileName + ". " + ioe);
+    } catch (RuntimeException re) {
+      Log.w(ConnectorFishtext.TAG, "Dropping bad " + this.fileName + ". " + re);
+    }
+    this.cookies.clear();
+    file.delete();
+    return 0;
+  }
+
+  /**
+   * Write the cookies if they changed since they were last written.
+   *
+   * @param context
+   * @param secret
+   *          the account's password
+   */
+  synchronized void saveIfChanged(final Context context, final String secret) {
+    if (!this.dirty) {
+      return;
+    }
+    this.dirty = false;
+    final File file = new File(context.getFilesDir(), this.fileName);
+    final List<Cookie> current = this.cookies.getCookies();
+    if (current.isEmpty() || secret.length() == 0) {
+      file.delete();
+      return;
+    }
+    final File tmp = new File(file.getPath() + ".tmp");
+    try {
+      if (!secret.equals(this.keySecret)) {
+        this.salt = new byte[SALT_LENGTH];
+        RANDOM.nextBytes(this.salt);
+        this.key = deriveKey(secret, this.salt);
+        this.keySecret = secret;
+      }
+      final byte[] iv = new byte[IV_LENGTH];
+      RANDOM.nextBytes(iv);
+      final Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+      cipher.init(Cipher.ENCRYPT_MODE, this.key, new IvParameterSpec(iv));
+      final byte[] encrypted = cipher.doFinal(encode(current, System.currentTimeMillis()).getBytes(CHARSET));
+
+      final FileOutputStream out = new FileOutputStream(tmp);
+      try {
+        out.write(FORMAT_VERSION);
+        out.write(this.salt);
+        out.write(iv);
+        out.write(encrypted);
+        out.getFD().sync();
+      } finally {
+        out.close();
+      }
+      if (!tmp.renameTo(file)) {
+        throw new IOException("Could not rename " + tmp);
+      }
+      Metrics.count("cookies.saved");
+    } catch (GeneralSecurityException gse) {
+      Log.w(ConnectorFishtext.TAG, "Could not encrypt cookies, not keeping them. " + gse);
+      this.keySecret = null;
+      file.delete();
+    } catch (IOException ioe) {
+      Log.w(ConnectorFishtext.TAG, "Could not write " + this.fileName + ". " + ioe);
+      tmp.delete();
+    }
+  }
+
+  public synchronized void addCookie(final Cookie cookie) {
+    this.cookies.addCookie(cookie);
+    this.loaded = true;
+    this.dirty = true;
+  }
+
+  public List<Cookie> getCookies() {
+    return this.cookies.getCookies();
+  }
+
+  public synchronized boolean clearExpired(final Date date) {
+    final boolean cleared = this.cookies.clearExpired(date);
+    this.dirty |= cleared;
+    return cleared;
+  }
+
+  public synchronized void clear() {
+    this.cookies.clear();
+    this.loaded = true;
+    this.dirty = true;
+  }
+
+  /**
+   * Forget the cookies and delete their file, e.g. because they were set by
+   * another server.
+   *
+   * @param context
+   */
+  synchronized void delete(final Context context) {
+    this.cookies.clear();
+    this.loaded = true;
+    this.dirty = false;
+    new File(context.getFilesDir(), this.fileName).delete();
+  }
+
+  private static SecretKey deriveKey(final String secret, final byte[] salt) throws GeneralSecurityException {
+    final long start = System.nanoTime();
+    final SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
+    final byte[] key = factory.generateSecret(new PBEKeySpec(secret.toCharArray(), salt, KEY_ITERATIONS, KEY_LENGTH)).getEncoded();
+    Metrics.time("cookies.derive_key", start);
+    return new SecretKeySpec(key, "AES");
+  }
+
+  /**
+   * One line with the time, then a line of url encoded, tab separated fields
+   * per cookie.
+   */
+  private static String encode(final List<Cookie> cookies, final long savedAt) throws UnsupportedEncodingException {
+    final StringBuilder sb = new StringBuilder();
+    sb.append(savedAt).append('\n');
+    for (Cookie cookie : cookies) {
+      final Date expiry = cookie.getExpiryDate();
+      sb.append(URLEncoder.encode(cookie.getName(), CHARSET)).append('\t');
+      sb.append(URLEncoder.encode(cookie.getValue() == null ? "" : cookie.getValue(), CHARSET)).append('\t');
+      sb.append(URLEncoder.encode(cookie.getDomain() == null ? "" : cookie.getDomain(), CHARSET)).append('\t');
+      sb.append(URLEncoder.encode(cookie.getPath() == null ? "" : cookie.getPath(), CHARSET)).append('\t');
+      sb.append(expiry == null ? -1 : expiry.getTime()).append('\t');
+      sb.append(cookie.isSecure() ? 1 : 0).append('\t');
+      sb.append(cookie.getVersion()).append('\n');
+    }
+    return sb.toString();
+  }
+
+  /**
+   * @return the time the cookies were written
+   */
+  private long decode(final String encoded) throws UnsupportedEncodingException {
+    final String[] lines = encoded.split("\n");
+    final long savedAt = Long.parseLong(lines[0]);
+    final Date now = new Date();
+    for (int i = 1; i < lines.length; i++) {
+      final String[] fields = lines[i].split("\t", -1);
+      final BasicClientCookie cookie = new BasicClientCookie(URLDecoder.decode(fields[0], CHARSET), URLDecoder.decode(fields[1], CHARSET));
+      final String domain = URLDecoder.decode(fields[2], CHARSET);
+      final String path = URLDecoder.decode(fields[3], CHARSET);
+      final long expiry = Long.parseLong(fields[4]);
+      cookie.setDomain(domain.length() == 0 ? null : domain);
+      cookie.setPath(path.length() == 0 ? null : path);
+      cookie.setExpiryDate(expiry < 0 ? null : new Date(expiry));
+      cookie.setSecure("1".equals(fields[5]));
+      cookie.setVersion(Integer.parseInt(fields[6]));
+      if (!cookie.isExpired(now)) {
+        this.cookies.addCookie(cookie);
+      }
+    }
+    return savedAt;
+  }
+
+  private static byte[] readFully(final File file) throws IOException {
+    final FileInputStream in = new FileInputStream(file);
+    try {
+      final ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+      final byte[] buffer = new byte[1024];
+      int n;
+      while ((n = in.read(buffer)) >= 0) {
+        out.write(buffer, 0, n);
+      }
+      return out.toByteArray();
+    } finally {
+      in.close();
+    }
+  }
+}
@@ -0,0 +1,172 @@
+package com.fairmichael.fintan.websms.connector.fishtext;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.scheme.LayeredSocketFactory;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+
+import de.ub0r.android.websms.connector.common.Log;
+
+/**
+ * SSL socket factory that only accepts certificates with a known SHA-1
+ * fingerprint. If the site changes its certificate, the platform's trust store
+ * can be allowed to decide instead, as an explicit opt-in that is logged every
+ * time it is used. One SSLContext is shared by all sockets, so TLS sessions are
+ * resumed across connections. It counts the connections it makes and the time
+ * spent in handshakes.
+ * 
+ * @author Fintan Fairmichael
+ */
+final class PinnedSSLSocketFactory implements LayeredSocketFactory {
+  private final javax.net.ssl.SSLSocketFactory factory;
+  private final PinningTrustManager trustManager;
+
+  final AtomicLong connections = new AtomicLong();
+  final AtomicLong handshakeMillis = new AtomicLong();
+
+  /**
+   * @param knownFingerprints
+   *          SHA-1 fingerprints as colon separated upper case hex
+   * @throws GeneralSecurityException
+   */
+  PinnedSSLSocketFactory(final String[] knownFingerprints) throws GeneralSecurityException {
+    final TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+    tmf.init((KeyStore) null);
+    X509TrustManager platform = null;
+    for (TrustManager tm : tmf.getTrustManagers()) {
+      if (tm instanceof X509TrustManager) {
+        platform = (X509TrustManager) tm;
+      }
+    }
+    this.trustManager = new PinningTrustManager(knownFingerprints, platform);
+    final SSLContext sslContext = SSLContext.getInstance("TLS");
+    sslContext.init(null, new TrustManager[] { this.trustManager }, null);
+    this.factory = sslContext.getSocketFactory();
+  }
+
+  /**
+   * @param platformFallback
+   *          whether to let the platform's trust store accept certificates
+   *          that are not pinned
+   */
+  void setPlatformFallback(final boolean platformFallback) {
+    this.trustManager.platformFallback = platformFallback;
+  }
+
+  public Socket createSocket() throws IOException {
+    return this.factory.createSocket();
+  }
+
+  public Socket connectSocket(final Socket sock, final String host, final int port, final InetAddress localAddress, int localPort,
+      final HttpParams params) throws IOException {
+    final SSLSocket sslSocket = (SSLSocket) (sock != null ? sock : this.createSocket());
+    if (localAddress != null || localPort > 0) {
+      if (localPort < 0) {
+        localPort = 0;
+      }
+      sslSocket.bind(new InetSocketAddress(localAddress, localPort));
+    }
+    try {
+      sslSocket.connect(new InetSocketAddress(host, port), HttpConnectionParams.getConnectionTimeout(params));
+    } catch (SocketTimeoutException ste) {
+      throw new ConnectTimeoutException("Connect to " + host + ":" + port + " timed out");
+    }
+    sslSocket.setSoTimeout(HttpConnectionParams.getSoTimeout(params));
+    this.handshake(sslSocket, host);
+    return sslSocket;
+  }
+
+  public Socket createSocket(final Socket socket, final String host, final int port, final boolean autoClose) throws IOException {
+    final SSLSocket sslSocket = (SSLSocket) this.factory.createSocket(socket, host, port, autoClose);
+    this.handshake(sslSocket, host);
+    return sslSocket;
+  }
+
+  public boolean isSecure(final Socket sock) {
+    return true;
+  }
+
+  private void handshake(final SSLSocket sslSocket, final String host) throws IOException {
+    final long start = System.currentTimeMillis();
+    sslSocket.startHandshake();
+    this.handshakeMillis.addAndGet(System.currentTimeMillis() - start);
+    this.connections.incrementAndGet();
+    SSLSocketFactory.BROWSER_COMPATIBLE_HOSTNAME_VERIFIER.verify(host, sslSocket);
+  }
+
+  private static final class PinningTrustManager implements X509TrustManager {
+    private final Set<String> knownFingerprints;
+    private final X509TrustManager platform;
+    private volatile boolean platformFallback = false;
+
+    PinningTrustManager(final String[] knownFingerprints, final X509TrustManager platform) {
+      this.knownFingerprints = new HashSet<String>(Arrays.asList(knownFingerprints));
+      this.platform = platform;
+    }
+
+    public void checkClientTrusted(final X509Certificate[] chain, final String authType) throws CertificateException {
+      throw new CertificateException("Client certificates not supported");
+    }
+
+    public void checkServerTrusted(final X509Certificate[] chain, final String authType) throws CertificateException {
+      if (chain.length == 0) {
+        throw new CertificateException("No certificate");
+      }
+      final String fingerprint = fingerprint(chain[0]);
+      if (this.knownFingerprints.contains(fingerprint)) {
+        return;
+      }
+      if (!this.platformFallback || this.platform == null) {
+        Log.w(ConnectorFishtext.TAG, "Rejected certificate " + fingerprint + " of " + chain[0].getSubjectDN() + ", it is not pinned");
+        throw new CertificateException("Certificate " + fingerprint + " is not pinned");
+      }
+      this.platform.checkServerTrusted(chain, authType);
+      Log.w(ConnectorFishtext.TAG, "Accepted certificate " + fingerprint + " of " + chain[0].getSubjectDN()
+          + " that is not pinned, as the platform trusts it and that was allowed in the settings");
+      Metrics.count("tls.unpinned");
+    }
+
+    public X509Certificate[] getAcceptedIssuers() {
+      return this.platform == null ? new X509Certificate[0] : this.platform.getAcceptedIssuers();
+    }
+
+    private static String fingerprint(final X509Certificate cert) throws CertificateException {
+      try {
+        final byte[] digest = MessageDigest.getInstance("SHA-1").digest(cert.getEncoded());
+        final StringBuilder sb = new StringBuilder(digest.length * 3);
+        for (byte b : digest) {
+          if (sb.length() > 0) {
+            sb.append(':');
+          }
+          sb.append(Character.toUpperCase(Character.forDigit((b >> 4) & 0xf, 16)));
+          sb.append(Character.toUpperCase(Character.forDigit(b & 0xf, 16)));
+        }
+        return sb.toString();
+      } catch (GeneralSecurityException gse) {
+        throw new CertificateException(gse.toString());
+      }
+    }
+  }
+}
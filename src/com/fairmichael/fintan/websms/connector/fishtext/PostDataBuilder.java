@@ -1,15 +1,11 @@
 package com.fairmichael.fintan.websms.connector.fishtext;
 
-import java.util.ArrayList;
-
-import org.apache.http.message.BasicNameValuePair;
-
 public class PostDataBuilder {
 
-  private final ArrayList<BasicNameValuePair> data;
+  private final FormEncoder data;
 
   public PostDataBuilder() {
-    this.data = new ArrayList<BasicNameValuePair>();
+    this.data = FormEncoder.obtain();
   }
 
   public static PostDataBuilder start() {
@@ -17,11 +13,21 @@ public class PostDataBuilder {
   }
 
   public PostDataBuilder add(final String name, final String value) {
-    this.data.add(new BasicNameValuePair(name, value));
+    this.data.add(name, value);
+    return this;
+  }
+
+  /**
+   * @param field
+   *          from FormEncoder.encodeConstant
+   * @return this
+   */
+  public PostDataBuilder add(final byte[] field) {
+    this.data.add(field);
     return this;
   }
 
-  public ArrayList<BasicNameValuePair> data() {
+  FormEncoder data() {
     return this.data;
   }
 
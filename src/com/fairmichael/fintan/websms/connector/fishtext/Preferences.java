@@ -23,6 +23,8 @@ import android.content.SharedPreferences;
 import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.os.Bundle;
 import android.preference.ListPreference;
+import android.preference.Preference;
+import android.preference.Preference.OnPreferenceClickListener;
 import android.preference.PreferenceActivity;
 import android.preference.PreferenceManager;
 import android.widget.Toast;
@@ -50,6 +52,15 @@ public final class Preferences extends PreferenceActivity implements OnSharedPre
 
     this.sendFreePreference = (ListPreference) this.getPreferenceScreen().findPreference(ConnectorFishtext.SEND_FREE);
     this.updateSendFreePreference(sp);
+
+    this.getPreferenceScreen().findPreference(RecipientNormaliser.PREFS_CLEAR_INVALID_NUMBERS).setOnPreferenceClickListener(
+        new OnPreferenceClickListener() {
+          public boolean onPreferenceClick(final Preference preference) {
+            RecipientNormaliser.clearInvalid(Preferences.this);
+            Toast.makeText(Preferences.this, R.string.clear_invalid_numbers_fishtext_done, Toast.LENGTH_SHORT).show();
+            return true;
+          }
+        });
   }
 
   private static final int MAX_PASSWORD_LENGTH = 12;
@@ -57,10 +68,10 @@ public final class Preferences extends PreferenceActivity implements OnSharedPre
   @Override
   public void onSharedPreferenceChanged(final SharedPreferences sp, final String key) {
 
-    if (key.equals(PREFS_PASSWORD)) {
-      String value = sp.getString(PREFS_PASSWORD, null);
-      if (value.length() > MAX_PASSWORD_LENGTH) {
-        sp.edit().putString(PREFS_PASSWORD, value.substring(0, MAX_PASSWORD_LENGTH)).commit();
+    if (key.equals(PREFS_PASSWORD) || key.startsWith(FishtextAccount.PREFS_PASSWORD)) {
+      String value = sp.getString(key, null);
+      if (value != null && value.length() > MAX_PASSWORD_LENGTH) {
+        sp.edit().putString(key, value.substring(0, MAX_PASSWORD_LENGTH)).commit();
         Context context = this.getApplicationContext();
         Toast.makeText(context, R.string.warn_fishtext_password_length, Toast.LENGTH_LONG).show();
       }
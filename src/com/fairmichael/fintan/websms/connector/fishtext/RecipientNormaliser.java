@@ -0,0 +1,315 @@
+package com.fairmichael.fintan.websms.connector.fishtext;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.content.Context;
+import de.ub0r.android.websms.connector.common.ConnectorCommand;
+import de.ub0r.android.websms.connector.common.Log;
+import de.ub0r.android.websms.connector.common.Utils;
+
+/**
+ * Turns WebSMS recipients into the numbers fishtext expects. Normalised
+ * numbers are cached, equivalent numbers are only sent to once and numbers
+ * fishtext has reported as invalid to the sending account are rejected
+ * locally, for INVALID_NUMBER_TTL after the last report. The learned numbers
+ * are kept on the FishtextAccount, and can be forgotten from the preferences.
+ *
+ * @author Fintan Fairmichael
+ */
+final class RecipientNormaliser {
+  /**
+   * Preference holding the numbers fishtext reported as invalid to an account,
+   * as comma separated number:time pairs. Suffixed per account.
+   */
+  static final String PREFS_INVALID_NUMBERS = "invalid_numbers_fishtext";
+  /** Preference name of the button forgetting the invalid numbers. */
+  static final String PREFS_CLEAR_INVALID_NUMBERS = "clear_invalid_numbers_fishtext";
+
+  /** Number of normalised recipients to remember. */
+  private static final int CACHE_SIZE = 512;
+  /** Number of invalid numbers to remember, the oldest are forgotten first. */
+  private static final int MAX_INVALID_NUMBERS = 256;
+  /**
+   * How long a reported number is rejected locally, in ms. Numbers can be
+   * reassigned or fishtext may have had a passing problem with them.
+   */
+  static final long INVALID_NUMBER_TTL = 30L * 24 * 60 * 60 * 1000;
+
+  /** (default prefix, recipient) to normalised number, least recently used first. */
+  private static final Map<String, String> CACHE = new LinkedHashMap<String, String>(64, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(final Map.Entry<String, String> eldest) {
+      return this.size() > CACHE_SIZE;
+    }
+  };
+
+  private RecipientNormaliser() {
+  }
+
+  /**
+   * Normalise the recipients of a command.
+   *
+   * @param context
+   * @param command
+   * @param account
+   *          the account the command will be sent with
+   * @return the recipients
+   */
+  static Recipients normalise(final Context context, final ConnectorCommand command, final FishtextAccount account) {
+    final String[] recipients = command.getRecipients();
+    final String defPrefix = command.getDefPrefix();
+    final Map<String, Long> invalid = getInvalidNumbers(context, account);
+    final long now = System.currentTimeMillis();
+
+    final NumberIndex index = new NumberIndex(recipients.length);
+    final String[] originals = new String[recipients.length];
+    final List<String> numbers = new ArrayList<String>(recipients.length);
+    final List<String> rejected = new ArrayList<String>();
+    int count = 0;
+    for (int i = 0; i < recipients.length; i++) {
+      final String number = normalise(defPrefix, recipients[i]);
+      if (index.putIfAbsent(number, count) >= 0) {
+        Log.d(ConnectorFishtext.TAG, "Duplicate recipient: " + recipients[i]);
+        continue;
+      }
+      originals[count++] = recipients[i];
+      synchronized (RecipientNormaliser.class) {
+        final Long reported = invalid.get(number);
+        if (reported != null && now - reported < INVALID_NUMBER_TTL) {
+          rejected.add(recipients[i]);
+          continue;
+        }
+      }
+      numbers.add(number);
+    }
+    Log.d(ConnectorFishtext.TAG, "Recipients: " + numbers + ", known invalid: " + rejected);
+    Metrics.count("recipients.duplicate", recipients.length - count);
+    Metrics.count("recipients.rejected", rejected.size());
+    return new Recipients(numbers, rejected.toArray(new String[rejected.size()]), count, index, originals);
+  }
+
+  /**
+   * @param defPrefix
+   *          the default prefix for national numbers
+   * @param recipient
+   *          the WebSMS recipient, e.g. "Name <0871234567>"
+   * @return the international number without the leading '+'
+   */
+  static String normalise(final String defPrefix, final String recipient) {
+    final String key = defPrefix + '\n' + recipient;
+    synchronized (CACHE) {
+      final String cached = CACHE.get(key);
+      if (cached != null) {
+        return cached;
+      }
+    }
+    final String number = Utils.national2international(defPrefix, Utils.getRecipientsNumber(recipient));
+    // Drop the '+' and any formatting so equivalent numbers compare equal
+    final StringBuilder sb = new StringBuilder(number.length());
+    for (int i = 0; i < number.length(); i++) {
+      final char c = number.charAt(i);
+      if (c == '+' && i == 0 || c == ' ' || c == '-' || c == '(' || c == ')' || c == '.' || c == '/') {
+        continue;
+      }
+      sb.append(c);
+    }
+    final String normalised = sb.length() > 0 ? sb.toString() : number;
+    Log.d(ConnectorFishtext.TAG, "Input: " + recipient + ", processed: " + normalised);
+    synchronized (CACHE) {
+      CACHE.put(key, normalised);
+    }
+    return normalised;
+  }
+
+  /**
+   * Remember numbers fishtext reported as invalid to the current account, so
+   * its later sends skip them.
+   *
+   * @param context
+   * @param numbers
+   *          the invalid numbers as reported by fishtext
+   */
+  static void learnInvalid(final Context context, final String[] numbers) {
+    if (numbers.length == 0) {
+      return;
+    }
+    final FishtextAccount account = FishtextAccount.current();
+    final long now = System.currentTimeMillis();
+    synchronized (RecipientNormaliser.class) {
+      final Map<String, Long> invalid = getInvalidNumbers(context, account);
+      for (String number : numbers) {
+        invalid.remove(number);
+        invalid.put(number, now);
+      }
+      final Iterator<Map.Entry<String, Long>> oldest = invalid.entrySet().iterator();
+      while (oldest.hasNext()) {
+        if (invalid.size() <= MAX_INVALID_NUMBERS && now - oldest.next().getValue() < INVALID_NUMBER_TTL) {
+          break;
+        }
+        oldest.remove();
+      }
+      // Written under the lock, so an older set can't overwrite a newer one
+      final StringBuilder sb = new StringBuilder();
+      for (Map.Entry<String, Long> entry : invalid.entrySet()) {
+        if (sb.length() > 0) {
+          sb.append(',');
+        }
+        sb.append(entry.getKey()).append(':').append(entry.getValue());
+      }
+      AtomicPreferences.set(account.getState(context), account.suffix(PREFS_INVALID_NUMBERS), sb.toString());
+    }
+  }
+
+  /**
+   * Forget the invalid numbers of all accounts.
+   *
+   * @param context
+   */
+  static synchronized void clearInvalid(final Context context) {
+    for (int number = 1; number <= FishtextAccount.MAX_ACCOUNTS; number++) {
+      final FishtextAccount account = FishtextAccount.get(number);
+      account.invalidNumbers = null;
+      AtomicPreferences.set(account.getState(context), account.suffix(PREFS_INVALID_NUMBERS), null);
+    }
+    Log.d(ConnectorFishtext.TAG, "Forgot the invalid numbers");
+  }
+
+  /**
+   * @param context
+   * @param account
+   * @return the account's invalid numbers, read from the preferences on first
+   *         use
+   */
+  private static synchronized Map<String, Long> getInvalidNumbers(final Context context, final FishtextAccount account) {
+    Map<String, Long> invalid = account.invalidNumbers;
+    if (invalid == null) {
+      invalid = new LinkedHashMap<String, Long>();
+      final String stored = account.getState(context).getString(account.suffix(PREFS_INVALID_NUMBERS), "");
+      if (stored.length() > 0) {
+        for (String entry : stored.split(",")) {
+          // Entries stored without a time are from before they expired, drop them
+          final int colon = entry.indexOf(':');
+          if (colon > 0) {
+            try {
+              invalid.put(entry.substring(0, colon), Long.parseLong(entry.substring(colon + 1)));
+            } catch (NumberFormatException nfe) {
+              Log.w(ConnectorFishtext.TAG, "Dropping bad invalid number entry " + entry);
+            }
+          }
+        }
+      }
+      account.invalidNumbers = invalid;
+    }
+    return invalid;
+  }
+
+  /**
+   * The normalised recipients of one command.
+   */
+  static final class Recipients {
+    /** Numbers to send to, without duplicates or known invalid numbers. */
+    final List<String> numbers;
+    /** Original recipients skipped because their number is known to be invalid. */
+    final String[] rejected;
+    /** Number of distinct recipients, including the rejected ones. */
+    final int count;
+
+    private final NumberIndex index;
+    private final String[] originals;
+
+    Recipients(final List<String> numbers, final String[] rejected, final int count, final NumberIndex index, final String[] originals) {
+      this.numbers = numbers;
+      this.rejected = rejected;
+      this.count = count;
+      this.index = index;
+      this.originals = originals;
+    }
+
+    /**
+     * @param number
+     *          a number as posted to fishtext
+     * @return the recipient it came from, the number itself if unknown
+     */
+    String original(final String number) {
+      final int i = this.index.get(number);
+      return i < 0 ? number : this.originals[i];
+    }
+
+    /**
+     * @param numbers
+     *          numbers as posted to fishtext
+     * @return the recipients they came from
+     */
+    String[] originals(final String[] numbers) {
+      final String[] result = new String[numbers.length];
+      for (int i = 0; i < numbers.length; i++) {
+        result[i] = this.original(numbers[i]);
+      }
+      return result;
+    }
+  }
+
+  /**
+   * Open addressing map from number to a non-negative index, sized once for
+   * the recipients of a command.
+   */
+  static final class NumberIndex {
+    private final String[] keys;
+    private final int[] values;
+    private final int mask;
+
+    NumberIndex(final int expected) {
+      int capacity = 4;
+      while (capacity < expected * 2) {
+        capacity <<= 1;
+      }
+      this.keys = new String[capacity];
+      this.values = new int[capacity];
+      this.mask = capacity - 1;
+    }
+
+    /**
+     * @param key
+     * @param value
+     * @return the existing value for key, -1 if value was added
+     */
+    int putIfAbsent(final String key, final int value) {
+      int slot = this.slot(key);
+      while (this.keys[slot] != null) {
+        if (this.keys[slot].equals(key)) {
+          return this.values[slot];
+        }
+        slot = (slot + 1) & this.mask;
+      }
+      this.keys[slot] = key;
+      this.values[slot] = value;
+      return -1;
+    }
+
+    /**
+     * @param key
+     * @return the value for key, -1 if absent
+     */
+    int get(final String key) {
+      int slot = this.slot(key);
+      while (this.keys[slot] != null) {
+        if (this.keys[slot].equals(key)) {
+          return this.values[slot];
+        }
+        slot = (slot + 1) & this.mask;
+      }
+      return -1;
+    }
+
+    private int slot(final String key) {
+      final int h = key.hashCode();
+      return (h ^ (h >>> 16)) & this.mask;
+    }
+  }
+}
@@ -0,0 +1,97 @@
+package com.fairmichael.fintan.websms.connector.fishtext;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.MatchResult;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Scans a response line by line for a set of registered patterns and stops as
+ * soon as all of them have been found, so pages only needed for a few markers
+ * do not have to be read completely. Patterns are matched against single lines,
+ * so they must not span line breaks.
+ * 
+ * @author Fintan Fairmichael
+ */
+final class ResponseScanner {
+  private final Map<String, Pattern> patterns = new LinkedHashMap<String, Pattern>();
+  private final Map<String, MatchResult> results = new LinkedHashMap<String, MatchResult>();
+
+  /**
+   * Register a pattern to look for.
+   * 
+   * @param name
+   *          name to get the result by
+   * @param pattern
+   * @return this scanner
+   */
+  ResponseScanner find(final String name, final Pattern pattern) {
+    this.patterns.put(name, pattern);
+    return this;
+  }
+
+  /**
+   * @return a new scanner looking for the same patterns
+   */
+  ResponseScanner copy() {
+    final ResponseScanner copy = new ResponseScanner();
+    copy.patterns.putAll(this.patterns);
+    return copy;
+  }
+
+  /**
+   * Read lines from the stream until every registered pattern has matched or
+   * the stream ends.
+   * 
+   * @param in
+   * @param encoding
+   * @return true if all patterns were found before the end of the stream
+   * @throws IOException
+   */
+  boolean scan(final InputStream in, final String encoding) throws IOException {
+    final BufferedReader reader = new BufferedReader(new InputStreamReader(in, encoding));
+    String line;
+    while ((line = reader.readLine()) != null) {
+      for (Map.Entry<String, Pattern> entry : this.patterns.entrySet()) {
+        if (!this.results.containsKey(entry.getKey())) {
+          final Matcher matcher = entry.getValue().matcher(line);
+          if (matcher.find()) {
+            this.results.put(entry.getKey(), matcher.toMatchResult());
+          }
+        }
+      }
+      if (this.allFound()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  boolean allFound() {
+    return this.results.size() == this.patterns.size();
+  }
+
+  boolean found(final String name) {
+    return this.results.containsKey(name);
+  }
+
+  /**
+   * @param name
+   * @param group
+   * @return the group of the match for the named pattern, null if not found
+   */
+  String group(final String name, final int group) {
+    final MatchResult result = this.results.get(name);
+    return result == null ? null : result.group(group);
+  }
+
+  @Override
+  public String toString() {
+    return this.results.keySet() + " of " + this.patterns.keySet();
+  }
+}
@@ -0,0 +1,147 @@
+package com.fairmichael.fintan.websms.connector.fishtext;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Random;
+
+import javax.net.ssl.SSLException;
+
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.conn.ConnectTimeoutException;
+
+import android.os.SystemClock;
+
+/**
+ * Decides which failed requests are worth another attempt and how long to
+ * wait before it. Requests that may not be repeated (the send) are only
+ * retried when they provably never reached fishtext. All attempts made on
+ * behalf of one command share its latency budget.
+ *
+ * @author Fintan Fairmichael
+ */
+final class RetryPolicy {
+  static final int MAX_ATTEMPTS = 3;
+  /** Time a command may spend on requests and retries, in ms. */
+  static final long COMMAND_BUDGET = 45 * 1000L;
+  /** Budget for requests made outside a command, in ms. */
+  static final long REQUEST_BUDGET = 20 * 1000L;
+
+  private static final long BASE_DELAY = 500;
+  private static final long MAX_DELAY = 4 * 1000L;
+  private static final long MIN_HEDGE_DELAY = 750;
+  private static final long MAX_HEDGE_DELAY = 5 * 1000L;
+
+  private static final Random RANDOM = new Random();
+  /** Deadline of the command running on this thread, 0 if none. */
+  private static final ThreadLocal<Long> DEADLINE = new ThreadLocal<Long>();
+  /** Moving average of GET latencies, in ms. */
+  private static volatile long averageLatency = 1000;
+
+  private RetryPolicy() {
+  }
+
+  /**
+   * Start the budget of a command running on this thread. Must be paired with
+   * endCommand().
+   */
+  static void startCommand() {
+    setDeadline(SystemClock.elapsedRealtime() + COMMAND_BUDGET);
+  }
+
+  static void endCommand() {
+    DEADLINE.remove();
+  }
+
+  /**
+   * @return the deadline of the command on this thread, 0 if none
+   */
+  static long deadline() {
+    final Long deadline = DEADLINE.get();
+    return deadline == null ? 0 : deadline.longValue();
+  }
+
+  /**
+   * Carry a command's deadline over to a thread working on its behalf.
+   *
+   * @param deadline
+   *          from deadline(), 0 for none
+   */
+  static void setDeadline(final long deadline) {
+    if (deadline == 0) {
+      DEADLINE.remove();
+    } else {
+      DEADLINE.set(Long.valueOf(deadline));
+    }
+  }
+
+  /**
+   * @param start
+   *          when the first attempt of a request started
+   * @return the deadline for its retries
+   */
+  static long deadlineFor(final long start) {
+    final long deadline = deadline();
+    return deadline == 0 ? start + REQUEST_BUDGET : deadline;
+  }
+
+  /**
+   * @param e
+   * @param idempotent
+   *          whether repeating the request is harmless
+   * @return true if the request may be tried again
+   */
+  static boolean isRetryable(final IOException e, final boolean idempotent) {
+    if (e instanceof CircuitBreaker.OpenException) {
+      return false;
+    }
+    if (e instanceof UnknownHostException || e instanceof ConnectException || e instanceof ConnectTimeoutException) {
+      // The request never left the device
+      return true;
+    }
+    if (!idempotent || e instanceof SSLException) {
+      return false;
+    }
+    return e instanceof NoHttpResponseException || e instanceof SocketTimeoutException || e instanceof SocketException;
+  }
+
+  /**
+   * @param status
+   * @param idempotent
+   * @return true if a request answered with status may be tried again
+   */
+  static boolean isRetryable(final int status, final boolean idempotent) {
+    return idempotent && (status >= 500 || status == 429);
+  }
+
+  /**
+   * @param attempt
+   *          the attempt that just failed, from 1
+   * @return the time to wait before the next attempt, in ms
+   */
+  static long backoff(final int attempt) {
+    final long cap = Math.min(MAX_DELAY, BASE_DELAY << (attempt - 1));
+    synchronized (RANDOM) {
+      // Randomise half the delay, so clients that failed together don't retry
+      // together
+      return cap / 2 + (long) (RANDOM.nextDouble() * (cap / 2));
+    }
+  }
+
+  /**
+   * @param millis
+   *          latency of a successful GET
+   */
+  static void recordLatency(final long millis) {
+    averageLatency = (averageLatency * 7 + millis) / 8;
+  }
+
+  /**
+   * @return how long to wait for a GET before sending a second one
+   */
+  static long hedgeDelay() {
+    return Math.max(MIN_HEDGE_DELAY, Math.min(MAX_HEDGE_DELAY, averageLatency * 2));
+  }
+}
@@ -0,0 +1,36 @@
+package com.fairmichael.fintan.websms.connector.fishtext;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.UnknownHostException;
+
+import org.apache.http.conn.ConnectTimeoutException;
+
+/**
+ * Thrown when posting a message failed in a way that leaves open whether
+ * fishtext received it, so it must not be sent again automatically.
+ * 
+ * @author Fintan Fairmichael
+ */
+final class SendInDoubtException extends IOException {
+  private static final long serialVersionUID = 1L;
+
+  SendInDoubtException(final IOException cause) {
+    super("Message may have been sent: " + cause);
+    this.initCause(cause);
+  }
+
+  /**
+   * @param ioe
+   *          an IOException from posting a message
+   * @return ioe if it shows the request never reached the server, otherwise a
+   *         SendInDoubtException wrapping it
+   */
+  static IOException wrap(final IOException ioe) {
+    if (ioe instanceof SendInDoubtException || ioe instanceof UnknownHostException || ioe instanceof ConnectException
+        || ioe instanceof ConnectTimeoutException || ioe instanceof CircuitBreaker.OpenException) {
+      return ioe;
+    }
+    return new SendInDoubtException(ioe);
+  }
+}
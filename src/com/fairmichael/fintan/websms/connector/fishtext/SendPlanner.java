@@ -0,0 +1,286 @@
+package com.fairmichael.fintan.websms.connector.fishtext;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Prepares a message text for fishtext before anything goes over the network:
+ * characters ISO-8859-15 can't represent are transliterated where there is an
+ * obvious equivalent and sent as '?' otherwise, texts longer than fishtext
+ * takes in one post are split into at most MAXIMUM_PARTS parts, and the number
+ * of SMS segments and the cost are estimated.
+ *
+ * @author Fintan Fairmichael
+ */
+final class SendPlanner {
+  /** Longest text fishtext takes in one post. */
+  static final int MAXIMUM_MESSAGE_LENGTH = 459;
+  /** Most posts a text is split into. */
+  static final int MAXIMUM_PARTS = 3;
+
+  /** The GSM 03.38 default alphabet. */
+  private static final String GSM_BASIC = "@\u00A3$\u00A5\u00E8\u00E9\u00F9\u00EC\u00F2\u00C7\n\u00D8\u00F8\r\u00C5\u00E5"
+      + "\u0394_\u03A6\u0393\u039B\u03A9\u03A0\u03A8\u03A3\u0398\u039E\u00C6\u00E6\u00DF\u00C9"
+      + " !\"#\u00A4%&'()*+,-./0123456789:;<=>?\u00A1ABCDEFGHIJKLMNOPQRSTUVWXYZ\u00C4\u00D6\u00D1\u00DC\u00A7"
+      + "\u00BFabcdefghijklmnopqrstuvwxyz\u00E4\u00F6\u00F1\u00FC\u00E0";
+  /** Characters of the GSM extension table, which take two septets. */
+  private static final String GSM_EXTENSION = "\f^{}\\[~]|\u20AC";
+
+  private static final int GSM_SINGLE = 160;
+  private static final int GSM_MULTI = 153;
+  private static final int UCS2_SINGLE = 70;
+  private static final int UCS2_MULTI = 67;
+
+  /** Learned price of one segment to one recipient, null until a send showed it. */
+  private static volatile BigDecimal segmentPrice = null;
+
+  /**
+   * A text made ready for posting.
+   */
+  static final class Plan {
+    /** The texts to post, in order. */
+    final String[] parts;
+    /** SMS segments per recipient, over all parts. */
+    final int segments;
+    /** Whether every part fits the GSM alphabet, rather than needing UCS-2. */
+    final boolean gsm;
+    /** Characters that couldn't be represented or transliterated, sent as '?', empty if none. */
+    final String unencodable;
+    /** Whether the text needs more than MAXIMUM_PARTS parts, of which parts has the first. */
+    final boolean tooLong;
+
+    Plan(final String[] parts, final int segments, final boolean gsm, final String unencodable, final boolean tooLong) {
+      this.parts = parts;
+      this.segments = segments;
+      this.gsm = gsm;
+      this.unencodable = unencodable;
+      this.tooLong = tooLong;
+    }
+
+    @Override
+    public String toString() {
+      return this.parts.length + (this.tooLong ? " parts (too long), " : " parts, ") + this.segments + (this.gsm ? " GSM" : " UCS-2")
+          + " segments";
+    }
+  }
+
+  private SendPlanner() {
+  }
+
+  /**
+   * @param text
+   * @return the plan for sending text
+   */
+  static Plan plan(final String text) {
+    final StringBuilder unencodable = new StringBuilder();
+    final String encodable = transliterate(text, unencodable);
+    final List<String> parts = split(encodable, MAXIMUM_PARTS + 1);
+    final boolean tooLong = parts.size() > MAXIMUM_PARTS;
+    if (tooLong) {
+      parts.remove(MAXIMUM_PARTS);
+    }
+    int segments = 0;
+    boolean gsm = true;
+    for (String part : parts) {
+      gsm &= gsmSeptets(part) >= 0;
+      segments += segments(part);
+    }
+    return new Plan(parts.toArray(new String[parts.size()]), segments, gsm, unencodable.toString(), tooLong);
+  }
+
+  /**
+   * @param part
+   *          text of one post
+   * @return the SMS segments it takes
+   */
+  static int segments(final String part) {
+    final int septets = gsmSeptets(part);
+    if (septets < 0) {
+      return part.length() <= UCS2_SINGLE ? 1 : (part.length() + UCS2_MULTI - 1) / UCS2_MULTI;
+    }
+    return septets <= GSM_SINGLE ? 1 : (septets + GSM_MULTI - 1) / GSM_MULTI;
+  }
+
+  /**
+   * @param plan
+   * @param recipients
+   * @return the expected cost, null if no price is known yet
+   */
+  static BigDecimal predictCost(final Plan plan, final int recipients) {
+    final BigDecimal price = segmentPrice;
+    return price == null ? null : price.multiply(BigDecimal.valueOf((long) plan.segments * recipients));
+  }
+
+  /**
+   * Learn the segment price from the cost of a send.
+   *
+   * @param segments
+   *          segments per recipient of what was posted
+   * @param result
+   * @param recipients
+   *          numbers it was posted to
+   */
+  static void learnPrice(final int segments, final SendResult result, final int recipients) {
+    final int charged = recipients - result.invalidNumbers.length - result.failedNumbers.length - result.unknownNumbers.length;
+    if (result.status != SendResult.Status.SENT || segments <= 0 || charged <= 0 || SendResult.COST_FREE.equals(result.cost)
+        || SendResult.COST_UNKNOWN.equals(result.cost)) {
+      return;
+    }
+    segmentPrice = new BigDecimal(result.cost).divide(BigDecimal.valueOf((long) segments * charged), 4, RoundingMode.HALF_UP);
+  }
+
+  /**
+   * @param c
+   * @return true if ENCODING can represent c
+   */
+  static boolean isEncodable(final char c) {
+    return c < 0x80 || FormEncoder.toLatin9(c) != '?';
+  }
+
+  /**
+   * Replace characters ISO-8859-15 can't represent with look-alikes.
+   *
+   * @param text
+   * @param unencodable
+   *          gets the characters without a look-alike, each once
+   * @return text with only encodable characters, the others replaced by '?'
+   */
+  private static String transliterate(final String text, final StringBuilder unencodable) {
+    StringBuilder sb = null;
+    for (int i = 0; i < text.length(); i++) {
+      final char c = text.charAt(i);
+      if (isEncodable(c)) {
+        if (sb != null) {
+          sb.append(c);
+        }
+        continue;
+      }
+      if (sb == null) {
+        sb = new StringBuilder(text.length() + 8);
+        sb.append(text, 0, i);
+      }
+      final String replacement = lookAlike(c);
+      if (replacement != null) {
+        sb.append(replacement);
+      } else {
+        if (Character.isHighSurrogate(c) && i + 1 < text.length()) {
+          // Report the whole character, e.g. an emoji
+          final String pair = text.substring(i, i + 2);
+          if (unencodable.indexOf(pair) < 0) {
+            unencodable.append(pair);
+          }
+          i++;
+        } else if (unencodable.indexOf(String.valueOf(c)) < 0) {
+          unencodable.append(c);
+        }
+        sb.append('?');
+      }
+    }
+    return sb == null ? text : sb.toString();
+  }
+
+  private static String lookAlike(final char c) {
+    switch (c) {
+    case '\u2018':
+    case '\u2019':
+    case '\u201A':
+    case '\u201B':
+    case '\u2032':
+    case '\u00B4':
+      return "'";
+    case '\u201C':
+    case '\u201D':
+    case '\u201E':
+    case '\u2033':
+    case '\u00A8':
+      return "\"";
+    case '\u2010':
+    case '\u2011':
+    case '\u2012':
+    case '\u2013':
+    case '\u2014':
+    case '\u2015':
+    case '\u2212':
+      return "-";
+    case '\u2026':
+      return "...";
+    case '\u2022':
+      return "*";
+    case '\u00A6':
+      return "|";
+    case '\u00B8':
+      return ",";
+    case '\u00BC':
+      return "1/4";
+    case '\u00BD':
+      return "1/2";
+    case '\u00BE':
+      return "3/4";
+    case '\u2122':
+      return "TM";
+    case '\u200B':
+    case '\u200C':
+    case '\u200D':
+    case '\uFEFF':
+      return "";
+    default:
+      if (c >= '\u2000' && c <= '\u200A' || c == '\u202F' || c == '\u205F' || c == '\u3000') {
+        return " ";
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Split text into parts of at most MAXIMUM_MESSAGE_LENGTH, at whitespace
+   * where there is some in the second half of a part.
+   *
+   * @param text
+   * @param maximumParts
+   *          stop after this many parts
+   * @return the parts, without any text beyond the last of maximumParts
+   */
+  static List<String> split(final String text, final int maximumParts) {
+    final List<String> parts = new ArrayList<String>(maximumParts);
+    int start = 0;
+    while (text.length() - start > MAXIMUM_MESSAGE_LENGTH && parts.size() < maximumParts) {
+      int end = start + MAXIMUM_MESSAGE_LENGTH;
+      for (int i = end; i > start + MAXIMUM_MESSAGE_LENGTH / 2; i--) {
+        if (Character.isWhitespace(text.charAt(i))) {
+          end = i;
+          break;
+        }
+      }
+      parts.add(text.substring(start, end));
+      start = end;
+      while (start < text.length() && Character.isWhitespace(text.charAt(start))) {
+        start++;
+      }
+    }
+    if (parts.isEmpty() || start < text.length() && parts.size() < maximumParts) {
+      parts.add(text.substring(start));
+    }
+    return parts;
+  }
+
+  /**
+   * @param text
+   * @return the septets text takes in the GSM alphabet, -1 if it doesn't fit
+   */
+  private static int gsmSeptets(final String text) {
+    int septets = 0;
+    for (int i = 0; i < text.length(); i++) {
+      final char c = text.charAt(i);
+      if (GSM_BASIC.indexOf(c) >= 0) {
+        septets++;
+      } else if (GSM_EXTENSION.indexOf(c) >= 0) {
+        septets += 2;
+      } else {
+        return -1;
+      }
+    }
+    return septets;
+  }
+}
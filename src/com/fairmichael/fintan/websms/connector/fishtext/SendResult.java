@@ -0,0 +1,266 @@
+package com.fairmichael.fintan.websms.connector.fishtext;
+
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The outcome of a send, as parsed from the SendSMS response.
+ * 
+ * @author Fintan Fairmichael
+ */
+final class SendResult {
+  enum Status {
+    /** "Message sent", to some or all recipients. */
+    SENT,
+    /** "Send failed". */
+    FAILED,
+    /**
+     * No result, but the send form was shown again. Fishtext does that when the
+     * message field posted is not the one it expects.
+     */
+    FORM,
+    /** Neither marker was found. */
+    UNKNOWN
+  }
+
+  static final String COST_FREE = "free";
+  static final String COST_UNKNOWN = "unknown";
+
+  /**
+   * Literal markers of the values of interest. They are all found in one pass
+   * over the response by an Aho-Corasick automaton, values are then read
+   * straight after their marker.
+   */
+  private static final String[] MARKERS = { "Message sent", "Send failed", "successfully sent to all recipients", "sent free",
+      ", free.", "at a cost of ", "invalid number(s) ", "<textarea class=\"messagelargeinput\"" };
+  /** Bits of the MARKERS, in the same order. */
+  private static final int MARKER_SENT = 1;
+  private static final int MARKER_FAILED = 1 << 1;
+  private static final int MARKER_SENT_TO_ALL = 1 << 2;
+  private static final int MARKER_FREE = 1 << 3 | 1 << 4;
+  private static final int MARKER_COST = 1 << 5;
+  private static final int MARKER_INVALIDS = 1 << 6;
+  private static final int MARKER_FORM = 1 << 7;
+
+  /** Character class of each ASCII char, 0 for chars in no marker. */
+  private static final byte[] CLASSES = new byte[128];
+  /** The automaton's transitions, by state and character class. */
+  private static final int[][] NEXT;
+  /** Bits of the markers that end at each state. */
+  private static final int[] ENDS;
+
+  static {
+    int classes = 1, states = 1;
+    for (String marker : MARKERS) {
+      states += marker.length();
+      for (int i = 0; i < marker.length(); i++) {
+        if (CLASSES[marker.charAt(i)] == 0) {
+          CLASSES[marker.charAt(i)] = (byte) classes++;
+        }
+      }
+    }
+    final int[][] next = new int[states][classes];
+    final int[] ends = new int[states];
+    final int[] fail = new int[states];
+    for (int[] row : next) {
+      Arrays.fill(row, -1);
+    }
+    // The trie of the markers
+    int count = 1;
+    for (int m = 0; m < MARKERS.length; m++) {
+      int state = 0;
+      for (int i = 0; i < MARKERS[m].length(); i++) {
+        final int c = CLASSES[MARKERS[m].charAt(i)];
+        if (next[state][c] < 0) {
+          next[state][c] = count++;
+        }
+        state = next[state][c];
+      }
+      ends[state] |= 1 << m;
+    }
+    // Breadth first, turn the failure links into transitions
+    final int[] queue = new int[count];
+    int head = 0, tail = 0;
+    for (int c = 0; c < classes; c++) {
+      if (next[0][c] < 0) {
+        next[0][c] = 0;
+      } else {
+        queue[tail++] = next[0][c];
+      }
+    }
+    while (head < tail) {
+      final int state = queue[head++];
+      ends[state] |= ends[fail[state]];
+      for (int c = 0; c < classes; c++) {
+        final int target = next[state][c];
+        if (target < 0) {
+          next[state][c] = next[fail[state]][c];
+        } else {
+          fail[target] = next[fail[state]][c];
+          queue[tail++] = target;
+        }
+      }
+    }
+    NEXT = new int[count][];
+    System.arraycopy(next, 0, NEXT, 0, count);
+    ENDS = new int[count];
+    System.arraycopy(ends, 0, ENDS, 0, count);
+  }
+
+  /** Only looked for once a send is known to have failed. */
+  private static final Pattern SEND_FAILED_MESSAGE_PATTERN = Pattern.compile("<p>(.*)</p>");
+
+  final Status status;
+  final boolean sentToAll;
+  /** The cost, or COST_FREE or COST_UNKNOWN. */
+  final String cost;
+  /** Currency symbol of the cost, empty if not known. */
+  final String currency;
+  /** Numbers fishtext reported as invalid, as it printed them. Never null. */
+  final String[] invalidNumbers;
+  /**
+   * Numbers whose post failed, when the message was sent as several posts.
+   * Never null.
+   */
+  final String[] failedNumbers;
+  /**
+   * Numbers whose post may or may not have reached fishtext, when the message
+   * was sent as several posts. They must not be sent to again. Never null.
+   */
+  final String[] unknownNumbers;
+  /** Message of a failed send, empty if none. */
+  final String failureMessage;
+
+  SendResult(final Status status, final boolean sentToAll, final String cost, final String currency, final String[] invalidNumbers,
+      final String[] failedNumbers, final String[] unknownNumbers, final String failureMessage) {
+    this.status = status;
+    this.sentToAll = sentToAll;
+    this.cost = cost;
+    this.currency = currency;
+    this.invalidNumbers = invalidNumbers;
+    this.failedNumbers = failedNumbers;
+    this.unknownNumbers = unknownNumbers;
+    this.failureMessage = failureMessage;
+  }
+
+  /**
+   * Parse a send response.
+   * 
+   * @param response
+   * @return the result
+   */
+  static SendResult parse(final String response) {
+    boolean sent = false, failed = false, sentToAll = false, free = false, form = false;
+    String cost = null, currency = "", invalids = null;
+
+    final int length = response.length();
+    int state = 0;
+    for (int i = 0; i < length; i++) {
+      final char c = response.charAt(i);
+      state = NEXT[state][c < 128 ? CLASSES[c] : 0];
+      final int found = ENDS[state];
+      if (found == 0) {
+        continue;
+      }
+      sent |= (found & MARKER_SENT) != 0;
+      failed |= (found & MARKER_FAILED) != 0;
+      sentToAll |= (found & MARKER_SENT_TO_ALL) != 0;
+      free |= (found & MARKER_FREE) != 0;
+      form |= (found & MARKER_FORM) != 0;
+      if ((found & MARKER_COST) != 0 && cost == null) {
+        // The currency runs up to the first decimal number on the line
+        final int number = findDecimal(response, i + 1);
+        if (number >= 0) {
+          currency = FishtextUtil.currencyFix(response.substring(i + 1, number));
+          cost = response.substring(number, endOfDecimal(response, number));
+        }
+      } else if ((found & MARKER_INVALIDS) != 0 && invalids == null) {
+        final int skipped = response.indexOf(" skipped", i + 1);
+        if (skipped >= 0 && lineEnd(response, i + 1) >= skipped) {
+          invalids = response.substring(i + 1, skipped);
+        }
+      }
+    }
+
+    if (cost == null) {
+      cost = free ? COST_FREE : COST_UNKNOWN;
+    }
+    String[] invalidNumbers = new String[0];
+    if (invalids != null) {
+      invalidNumbers = invalids.split(",");
+      for (int i = 0; i < invalidNumbers.length; i++) {
+        invalidNumbers[i] = invalidNumbers[i].trim();
+      }
+    }
+
+    final Status status;
+    String failureMessage = "";
+    if (sent) {
+      status = Status.SENT;
+    } else if (failed) {
+      status = Status.FAILED;
+      final Matcher failedMatcher = SEND_FAILED_MESSAGE_PATTERN.matcher(response);
+      if (failedMatcher.find()) {
+        failureMessage = HtmlEntities.decode(failedMatcher.group(1));
+      }
+    } else if (form) {
+      status = Status.FORM;
+    } else {
+      status = Status.UNKNOWN;
+    }
+    return new SendResult(status, sentToAll, cost, currency, invalidNumbers, new String[0], new String[0], failureMessage);
+  }
+
+  /**
+   * @return the start of the first digits.digits on the line from start, -1 if
+   *         there is none
+   */
+  private static int findDecimal(final String s, final int start) {
+    final int end = lineEnd(s, start);
+    int i = start;
+    while (i < end) {
+      if (!isDigit(s.charAt(i))) {
+        i++;
+        continue;
+      }
+      final int digits = endOfDigits(s, i);
+      if (digits + 1 < end && s.charAt(digits) == '.' && isDigit(s.charAt(digits + 1))) {
+        return i;
+      }
+      i = digits;
+    }
+    return -1;
+  }
+
+  private static int endOfDecimal(final String s, final int start) {
+    return endOfDigits(s, endOfDigits(s, start) + 1);
+  }
+
+  private static int endOfDigits(final String s, final int start) {
+    int i = start;
+    while (i < s.length() && isDigit(s.charAt(i))) {
+      i++;
+    }
+    return i;
+  }
+
+  private static int lineEnd(final String s, final int start) {
+    int i = start;
+    while (i < s.length() && s.charAt(i) != '\n' && s.charAt(i) != '\r') {
+      i++;
+    }
+    return i;
+  }
+
+  private static boolean isDigit(final char c) {
+    return c >= '0' && c <= '9';
+  }
+
+  @Override
+  public String toString() {
+    return this.status + (this.sentToAll ? " to all" : "") + ", cost " + this.currency + this.cost + ", invalid "
+        + FishtextUtil.appendWithSeparator(this.invalidNumbers, ",") + ", failed " + FishtextUtil.appendWithSeparator(this.failedNumbers, ",")
+        + ", unknown " + FishtextUtil.appendWithSeparator(this.unknownNumbers, ",");
+  }
+}
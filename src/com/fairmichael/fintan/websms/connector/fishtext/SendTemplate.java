@@ -0,0 +1,88 @@
+package com.fairmichael.fintan.websms.connector.fishtext;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A text prepared for sending, as the same text often goes to one recipient
+ * list after another. It holds the text's SendPlanner plan and, for each
+ * account, the send form encoded up to the recipients: the constant fields,
+ * ST and the message under the account's session's message field. A post then
+ * only adds RN. Recently used texts are kept in a bounded LRU.
+ *
+ * @author Fintan Fairmichael
+ */
+final class SendTemplate {
+  private static final int MAXIMUM_TEMPLATES = 32;
+
+  /** Templates by text, least recently used first. */
+  private static final Map<String, SendTemplate> CACHE = new LinkedHashMap<String, SendTemplate>(MAXIMUM_TEMPLATES, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(final Map.Entry<String, SendTemplate> eldest) {
+      return this.size() > MAXIMUM_TEMPLATES;
+    }
+  };
+
+  private final String text;
+  private SendPlanner.Plan plan = null;
+  /** By account number - 1, the message field name and ST its form was encoded for, null if not yet. */
+  private final String[] messageFields = new String[FishtextAccount.MAX_ACCOUNTS];
+  private final String[] sendTypes = new String[FishtextAccount.MAX_ACCOUNTS];
+  private final byte[][] forms = new byte[FishtextAccount.MAX_ACCOUNTS][];
+
+  private SendTemplate(final String text) {
+    this.text = text;
+  }
+
+  /**
+   * @param text
+   * @return the template for text
+   */
+  static SendTemplate get(final String text) {
+    synchronized (CACHE) {
+      SendTemplate template = CACHE.get(text);
+      if (template == null) {
+        Metrics.count("template.misses");
+        template = new SendTemplate(text);
+        CACHE.put(text, template);
+      } else {
+        Metrics.count("template.hits");
+      }
+      return template;
+    }
+  }
+
+  /**
+   * @return the plan for sending the text
+   */
+  synchronized SendPlanner.Plan plan() {
+    if (this.plan == null) {
+      this.plan = SendPlanner.plan(this.text);
+    }
+    return this.plan;
+  }
+
+  /**
+   * The send form with the text as the message, but no recipients. The text
+   * must be one part of a plan.
+   *
+   * @param account
+   *          the account posting it
+   * @param messageField
+   *          the name of the message field in the account's session
+   * @param sendType
+   *          the ST parameter
+   * @return the encoded form, for FormEncoder.add(byte[])
+   */
+  synchronized byte[] form(final FishtextAccount account, final String messageField, final String sendType) {
+    final int i = account.number - 1;
+    if (this.forms[i] == null || !messageField.equals(this.messageFields[i]) || !sendType.equals(this.sendTypes[i])) {
+      this.forms[i] = FormEncoder.encodeConstant("action", "Send", "SA", "0", "DR", "1", "ST", sendType, messageField, this.text);
+      this.messageFields[i] = messageField;
+      this.sendTypes[i] = sendType;
+    }
+    return this.forms[i];
+  }
+}
@@ -0,0 +1,287 @@
+package com.fairmichael.fintan.websms.connector.fishtext;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import android.content.Context;
+import de.ub0r.android.websms.connector.common.Log;
+
+/**
+ * Keeps the account settings on fishtext.com (send type, sender, name and
+ * email address) in line with the connector's preferences. The relevant part of the settings form is kept as a versioned
+ * snapshot in the preferences, and settings.cgi is only loaded when there is
+ * no snapshot, e.g. after a failed update. The form is only posted when the
+ * desired settings differ from the snapshot.
+ * 
+ * The snapshot belongs to the FishtextSession and records the login it was
+ * taken for. It is dropped whenever the session logs in with the password,
+ * and a snapshot of another login is ignored, so the form is never posted
+ * back on the strength of settings another account or client may have
+ * changed. Concurrent syncs don't wait for each other: at worst both post the
+ * same settings, and the snapshot is only replaced if nobody else replaced it
+ * in the meantime.
+ * 
+ * @author Fintan Fairmichael
+ */
+final class SettingsSync {
+  /** Preference name for the snapshot of the settings form. */
+  static final String PREFS_SNAPSHOT = "settings_snapshot_fishtext";
+  /** Preference name for what messages are sent from. */
+  static final String PREFS_SEND_FROM = "send_from_fishtext";
+  /** Preference names for the name and email address fishtext has. */
+  static final String PREFS_FIRST_NAME = "first_name_fishtext";
+  static final String PREFS_LAST_NAME = "last_name_fishtext";
+  static final String PREFS_EMAIL_ADDRESS = "email_address_fishtext";
+
+  /** Send from whatever is set on fishtext.com. */
+  static final String SEND_FROM_NOT_SET = "-1";
+  /** Send from the mobile number of the sending account. */
+  static final String SEND_FROM_NUMBER = "number";
+  /** Send from fishtext, the value of its option in the sendFrom select. */
+  static final String SEND_FROM_FISHTEXT = "fishtext";
+
+  private static final Pattern INPUT_PATTERN = Pattern.compile("\\<input .*?value=\"(.*?)\".*?name=\"(.*?)\"");
+  private static final Pattern SEND_TYPE_SELECT_PATTERN = Pattern.compile("<select class=\"selectSettings\" id=\"sendType\"(.*?)<\\/select>",
+      Pattern.DOTALL);
+  private static final Pattern SELECTED_OPTION_PATTERN = Pattern.compile("<option value=\"([^\"]*?)\" selected");
+  private static final Pattern OPTION_PATTERN = Pattern.compile("<option value=\"([^\"]*?)\"");
+  private static final Pattern SEND_FROM_SELECT_PATTERN = Pattern.compile("<select class=\"selectSettings\" id=\"sendFrom\"(.*?)<\\/select>",
+      Pattern.DOTALL);
+
+  /** The fields that have to be posted back when saving the settings. */
+  private static final String[] REQUIRED_SETTINGS = new String[] { "sendFrom", "sendType", "firstName", "lastName", "emailAddress" };
+
+  private static final String CHARSET = "UTF-8";
+
+  private static final byte[] SAVE_SETTINGS_ACTION = FormEncoder.encodeConstant("action", "saveSettings");
+  private static final byte[] ERROR_JS_OFF = FormEncoder.encodeConstant("_sp_errorJS", "0");
+  private static final byte[] TOOLTIP_INIT_OFF = FormEncoder.encodeConstant("_sp_tooltip_init", "0");
+
+  /**
+   * The values of the REQUIRED_SETTINGS on fishtext.com as far as we know.
+   */
+  static final class Snapshot {
+    /** Incremented every time the snapshot changes. */
+    final int version;
+    /** The login whose settings these are. */
+    final String login;
+    final Map<String, String> values;
+
+    Snapshot(final int version, final String login, final Map<String, String> values) {
+      this.version = version;
+      this.login = login;
+      this.values = Collections.unmodifiableMap(values);
+    }
+
+    /**
+     * @param desired
+     * @return the desired settings that differ from the snapshot
+     */
+    Map<String, String> diff(final Map<String, String> desired) {
+      final Map<String, String> changes = new HashMap<String, String>();
+      for (Map.Entry<String, String> entry : desired.entrySet()) {
+        if (!entry.getValue().equals(this.values.get(entry.getKey()))) {
+          changes.put(entry.getKey(), entry.getValue());
+        }
+      }
+      return changes;
+    }
+
+    /**
+     * @param changes
+     * @return the next version of the snapshot with changes applied
+     */
+    Snapshot with(final Map<String, String> changes) {
+      final Map<String, String> updated = new LinkedHashMap<String, String>(this.values);
+      updated.putAll(changes);
+      return new Snapshot(this.version + 1, this.login, updated);
+    }
+
+    String encode() {
+      final StringBuilder sb = new StringBuilder();
+      sb.append(this.version);
+      try {
+        sb.append(':').append(URLEncoder.encode(this.login, CHARSET));
+        for (Map.Entry<String, String> entry : this.values.entrySet()) {
+          sb.append('&').append(URLEncoder.encode(entry.getKey(), CHARSET)).append('=');
+          sb.append(URLEncoder.encode(entry.getValue(), CHARSET));
+        }
+      } catch (UnsupportedEncodingException uee) {
+        throw new IllegalStateException(uee);
+      }
+      return sb.toString();
+    }
+
+    static Snapshot decode(final String encoded) throws UnsupportedEncodingException {
+      final String[] parts = encoded.split("&");
+      final Map<String, String> values = new LinkedHashMap<String, String>();
+      for (int i = 1; i < parts.length; i++) {
+        final int eq = parts[i].indexOf('=');
+        values.put(URLDecoder.decode(parts[i].substring(0, eq), CHARSET), URLDecoder.decode(parts[i].substring(eq + 1), CHARSET));
+      }
+      // Snapshots written before they recorded their login get an empty one
+      final int colon = parts[0].indexOf(':');
+      if (colon < 0) {
+        return new Snapshot(Integer.parseInt(parts[0]), "", values);
+      }
+      return new Snapshot(Integer.parseInt(parts[0].substring(0, colon)), URLDecoder.decode(parts[0].substring(colon + 1), CHARSET),
+          values);
+    }
+
+    @Override
+    public String toString() {
+      return "v" + this.version + " of " + this.login + " " + this.values;
+    }
+  }
+
+  private SettingsSync() {
+  }
+
+  /**
+   * @param config
+   * @param login
+   *          of the account whose settings these are
+   * @return the settings the preferences ask for, only those that are set
+   */
+  static Map<String, String> desiredSettings(final ConnectorConfig config, final String login) {
+    final Map<String, String> desired = new HashMap<String, String>();
+    if (!config.sendFree.equals(ConnectorFishtext.SEND_FREE_NOT_SET)) {
+      desired.put("sendType", config.sendFree);
+    }
+    if (config.sendFrom.equals(SEND_FROM_NUMBER)) {
+      // fishtext lists the account's number without the '+'
+      desired.put("sendFrom", login.startsWith("+") ? login.substring(1) : login);
+    } else if (config.sendFrom.equals(SEND_FROM_FISHTEXT)) {
+      desired.put("sendFrom", SEND_FROM_FISHTEXT);
+    }
+    putIfSet(desired, "firstName", config.firstName);
+    putIfSet(desired, "lastName", config.lastName);
+    putIfSet(desired, "emailAddress", config.emailAddress);
+    return desired;
+  }
+
+  private static void putIfSet(final Map<String, String> desired, final String name, final String value) {
+    if (value.length() > 0) {
+      desired.put(name, value);
+    }
+  }
+
+  /**
+   * Update the settings on fishtext.com if they differ from the preferences.
+   * Failures are logged and the update is tried again with the next send.
+   * 
+   * @param context
+   * @param login
+   *          of the current account
+   */
+  static void sync(final Context context, final String login) {
+    final FishtextSession session = FishtextSession.get();
+    final Map<String, String> desired = desiredSettings(ConnectorConfig.get(context), login);
+    Log.d(ConnectorFishtext.TAG, "Desired settings: " + desired);
+    if (desired.isEmpty()) {
+      return;
+    }
+
+    final Snapshot known = session.getSettings(context);
+    Snapshot current = known;
+    if (current != null && !current.login.equals(login)) {
+      Log.d(ConnectorFishtext.TAG, "Settings snapshot is of " + current.login + ", not " + login + ". Ignoring it.");
+      current = null;
+    }
+    if (current != null && current.diff(desired).isEmpty()) {
+      Log.d(ConnectorFishtext.TAG, "Settings already as desired (" + current + "). No action required.");
+      return;
+    }
+
+    final FishtextUrls urls = FishtextUrls.get(context);
+    try {
+      if (current == null) {
+        // Post to settings url, no/empty postdata
+        final String settingsPage = FishtextUtil.http(context, urls.settings, FormEncoder.obtain());
+        final long parseStart = System.nanoTime();
+        final Map<String, String> formMap = parseSettingsForm(settingsPage);
+        Metrics.time("parse.settings", parseStart);
+        Log.d(ConnectorFishtext.TAG, "Got the following from the settings page: " + formMap);
+        final Map<String, String> values = new LinkedHashMap<String, String>();
+        for (String requiredSetting : REQUIRED_SETTINGS) {
+          final String value = formMap.get(requiredSetting);
+          values.put(requiredSetting, value == null ? "" : value);
+        }
+        current = new Snapshot(0, login, values);
+        if (!session.compareAndSetSettings(context, known, current)) {
+          Log.d(ConnectorFishtext.TAG, "Settings snapshot changed meanwhile, leaving it to the other sync");
+          return;
+        }
+      }
+
+      final Map<String, String> changes = current.diff(desired);
+      if (changes.isEmpty()) {
+        Log.d(ConnectorFishtext.TAG, "Settings already as desired (" + current + ")");
+        return;
+      }
+
+      final Snapshot updated = current.with(changes);
+      Log.d(ConnectorFishtext.TAG, "Updating settings " + changes);
+      final FormEncoder postData = FormEncoder.obtain().addAll(updated.values).add(SAVE_SETTINGS_ACTION).add(ERROR_JS_OFF)
+          .add(TOOLTIP_INIT_OFF);
+
+      final String sentSettingsPage = FishtextUtil.http(context, urls.settings, postData);
+      if (sentSettingsPage.contains("Your details have been updated")) {
+        Log.d(ConnectorFishtext.TAG, "Successfully updated the settings. Yay!");
+        session.compareAndSetSettings(context, current, updated);
+      } else {
+        Log.d(ConnectorFishtext.TAG, "Received settings update response, but no confirmation contained within");
+        session.compareAndSetSettings(context, current, null);
+      }
+    } catch (IOException ioe) {
+      Log.d(ConnectorFishtext.TAG, "IOException during get/set settings. Settings not updated");
+      session.compareAndSetSettings(context, current, null);
+    }
+  }
+
+  /**
+   * Extract the current values of the settings form: every input, plus the
+   * selected options of the sendType and sendFrom selects.
+   * 
+   * @param settingsPage
+   * @return map from field name to value
+   */
+  static Map<String, String> parseSettingsForm(final String settingsPage) {
+    // Extract the inputs
+    final Matcher inputMatcher = INPUT_PATTERN.matcher(settingsPage);
+    final Map<String, String> formMap = new HashMap<String, String>();
+    while (inputMatcher.find()) {
+      formMap.put(inputMatcher.group(2), inputMatcher.group(1));
+    }
+
+    parseSelect(settingsPage, SEND_TYPE_SELECT_PATTERN, "sendType", formMap);
+    parseSelect(settingsPage, SEND_FROM_SELECT_PATTERN, "sendFrom", formMap);
+    return formMap;
+  }
+
+  private static void parseSelect(final String settingsPage, final Pattern selectPattern, final String name, final Map<String, String> formMap) {
+    final Matcher selectMatcher = selectPattern.matcher(settingsPage);
+    if (selectMatcher.find()) {
+      String selectText = selectMatcher.group();
+      final Matcher selectedMatcher = SELECTED_OPTION_PATTERN.matcher(selectText);
+      if (selectedMatcher.find()) {
+        Log.d(ConnectorFishtext.TAG, "Found the " + name + " as " + selectedMatcher.group(1));
+        formMap.put(name, selectedMatcher.group(1));
+      } else {
+        Log.d(ConnectorFishtext.TAG, "Nothing selected, using the first option");
+        Matcher optionMatcher = OPTION_PATTERN.matcher(selectText);
+        if (optionMatcher.find()) {
+          formMap.put(name, optionMatcher.group(1));
+        }
+      }
+    }
+  }
+}
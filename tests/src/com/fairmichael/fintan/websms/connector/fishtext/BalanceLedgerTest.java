@@ -0,0 +1,84 @@
+package com.fairmichael.fintan.websms.connector.fishtext;
+
+import java.math.BigDecimal;
+
+import junit.framework.TestCase;
+
+/**
+ * @author Fintan Fairmichael
+ */
+public class BalanceLedgerTest extends TestCase {
+  private BalanceLedger ledger;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    this.ledger = new BalanceLedger();
+    this.ledger.seed("\u00A312.34");
+  }
+
+  private static SendResult sent(final String cost, final String currency) {
+    return new SendResult(SendResult.Status.SENT, true, cost, currency, new String[0], new String[0], new String[0], "");
+  }
+
+  public void testNothingKnownUntilSeeded() {
+    final BalanceLedger empty = new BalanceLedger();
+    assertNull(empty.display());
+    assertNull(empty.amount());
+    assertTrue(empty.needsReconcile());
+  }
+
+  public void testSeed() {
+    assertEquals("\u00A312.34", this.ledger.display());
+    assertEquals(new BigDecimal("12.34"), this.ledger.amount());
+    assertFalse(this.ledger.needsReconcile());
+    assertEquals("\u00A312.34", this.ledger.display(BalanceLedger.RECONCILE_INTERVAL));
+  }
+
+  public void testCharge() {
+    assertEquals("\u00A312.18", this.ledger.charge(sent("0.16", "\u00A3")));
+    assertEquals("\u00A312.10", this.ledger.charge(sent("0.08", "\u00A3")));
+    assertFalse(this.ledger.needsReconcile());
+  }
+
+  public void testFreeAndFailedSendsCostNothing() {
+    assertEquals("\u00A312.34", this.ledger.charge(sent(SendResult.COST_FREE, "")));
+    assertEquals("\u00A312.34", this.ledger.charge(new SendResult(SendResult.Status.FAILED, false, "0.16", "\u00A3",
+        new String[0], new String[0], new String[0], "No credit")));
+    assertFalse(this.ledger.needsReconcile());
+  }
+
+  public void testUnknownCostMakesItStale() {
+    assertNull(this.ledger.charge(sent(SendResult.COST_UNKNOWN, "")));
+    assertNull(this.ledger.display());
+    assertNull(this.ledger.amount());
+    assertTrue(this.ledger.needsReconcile());
+  }
+
+  public void testOtherCurrencyMakesItStale() {
+    assertNull(this.ledger.charge(sent("0.16", "\u20AC")));
+    assertTrue(this.ledger.needsReconcile());
+  }
+
+  public void testMissingCurrencyMakesItStale() {
+    assertNull(this.ledger.charge(sent("0.16", "")));
+    assertTrue(this.ledger.needsReconcile());
+    assertNull(this.ledger.display());
+  }
+
+  public void testNegativeBalanceMakesItStale() {
+    this.ledger.seed("\u00A30.10");
+    assertNull(this.ledger.charge(sent("0.16", "\u00A3")));
+    assertTrue(this.ledger.needsReconcile());
+    this.ledger.seed("\u00A35.00");
+    assertEquals("\u00A35.00", this.ledger.display());
+  }
+
+  public void testReset() {
+    this.ledger.reset();
+    assertNull(this.ledger.display());
+    assertTrue(this.ledger.needsReconcile());
+    this.ledger.seed("not a balance");
+    assertNull(this.ledger.display());
+  }
+}
@@ -0,0 +1,25 @@
+package com.fairmichael.fintan.websms.connector.fishtext;
+
+import android.test.InstrumentationTestCase;
+
+/**
+ * @author Fintan Fairmichael
+ */
+public class BalanceTest extends InstrumentationTestCase {
+  private String page(final String fixture) throws Exception {
+    return Fixtures.page(getInstrumentation().getContext().getAssets(), fixture);
+  }
+
+  public void testParseBalance() throws Exception {
+    assertEquals("\u00A312.34", ConnectorFishtext.parseBalance(page("balance.html")));
+  }
+
+  public void testParseBalanceWhenLoggedOut() throws Exception {
+    assertNull(ConnectorFishtext.parseBalance(page("balance_logged_out.html")));
+  }
+
+  public void testParseBalanceCurrencies() {
+    assertEquals("0.08", ConnectorFishtext.parseBalance("0.08"));
+    assertEquals("\u20AC3.50", ConnectorFishtext.parseBalance("&euro;3.50"));
+  }
+}
@@ -0,0 +1,174 @@
+package com.fairmichael.fintan.websms.connector.fishtext;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * @author Fintan Fairmichael
+ */
+public class BatchSenderTest extends TestCase {
+  /** Three chunks: 0 to 49, 50 to 99 and 100 to 119. */
+  private static final int RECIPIENTS = 2 * BatchSender.CHUNK_SIZE + 20;
+
+  private final List<String> numbers = new ArrayList<String>();
+
+  @Override
+  protected void setUp() {
+    for (int i = 0; i < RECIPIENTS; i++) {
+      this.numbers.add("3538600" + (10000 + i));
+    }
+  }
+
+  private static SendResult sent(final String cost) {
+    return new SendResult(SendResult.Status.SENT, true, cost, "\u00A3", new String[0], new String[0], new String[0], "");
+  }
+
+  private static SendResult failed() {
+    return new SendResult(SendResult.Status.FAILED, false, SendResult.COST_UNKNOWN, "", new String[0], new String[0], new String[0],
+        "No credit");
+  }
+
+  /**
+   * Answers each chunk, by its first number, with the next of its outcomes,
+   * a SendResult or an IOException, and counts the posts.
+   */
+  private final class ScriptedPoster implements BatchSender.ChunkPoster {
+    private final Map<String, List<Object>> outcomes = new ConcurrentHashMap<String, List<Object>>();
+    final AtomicInteger posts = new AtomicInteger();
+
+    ScriptedPoster answer(final int chunk, final Object... chunkOutcomes) {
+      this.outcomes.put(BatchSenderTest.this.numbers.get(chunk * BatchSender.CHUNK_SIZE), new ArrayList<Object>(
+          Arrays.asList(chunkOutcomes)));
+      return this;
+    }
+
+    public SendResult post(final List<String> chunk) throws IOException {
+      this.posts.incrementAndGet();
+      final List<Object> script = this.outcomes.get(chunk.get(0));
+      final Object outcome = script.size() > 1 ? script.remove(0) : script.get(0);
+      if (outcome instanceof IOException) {
+        throw (IOException) outcome;
+      }
+      return (SendResult) outcome;
+    }
+  }
+
+  public void testChunk() {
+    final List<List<String>> chunks = BatchSender.chunk(this.numbers, BatchSender.CHUNK_SIZE);
+    assertEquals(3, chunks.size());
+    assertEquals(BatchSender.CHUNK_SIZE, chunks.get(0).size());
+    assertEquals(20, chunks.get(2).size());
+    assertEquals(this.numbers.get(RECIPIENTS - 1), chunks.get(2).get(19));
+  }
+
+  public void testCostsAreAdded() throws IOException {
+    final ScriptedPoster poster = new ScriptedPoster().answer(0, sent("0.80")).answer(1, sent("0.80")).answer(2, sent("0.32"));
+    final SendResult result = BatchSender.send(this.numbers, poster);
+    assertEquals(SendResult.Status.SENT, result.status);
+    assertTrue(result.sentToAll);
+    assertEquals("1.92", result.cost);
+    assertEquals("\u00A3", result.currency);
+    assertEquals(0, result.failedNumbers.length);
+    assertEquals(3, poster.posts.get());
+  }
+
+  public void testFreeOnlyIfAllFree() throws IOException {
+    assertEquals(SendResult.COST_FREE, BatchSender.send(this.numbers,
+        new ScriptedPoster().answer(0, sent(SendResult.COST_FREE)).answer(1, sent(SendResult.COST_FREE)).answer(2,
+            sent(SendResult.COST_FREE))).cost);
+    assertEquals(SendResult.COST_UNKNOWN, BatchSender.send(this.numbers,
+        new ScriptedPoster().answer(0, sent(SendResult.COST_FREE)).answer(1, sent(SendResult.COST_UNKNOWN)).answer(2, sent("0.32"))).cost);
+  }
+
+  public void testChunkNeverSentIsRetried() throws IOException {
+    final ScriptedPoster poster = new ScriptedPoster().answer(0, sent("0.80")).answer(1, new UnknownHostException("offline"),
+        sent("0.80")).answer(2, sent("0.32"));
+    final SendResult result = BatchSender.send(this.numbers, poster);
+    assertTrue(result.sentToAll);
+    assertEquals(4, poster.posts.get());
+  }
+
+  public void testChunkStillNotSentIsReportedAsFailedNumbers() throws IOException {
+    final ScriptedPoster poster = new ScriptedPoster().answer(0, sent("0.80")).answer(1, sent("0.80")).answer(2,
+        new UnknownHostException("offline"));
+    final SendResult result = BatchSender.send(this.numbers, poster);
+    assertEquals(SendResult.Status.SENT, result.status);
+    assertFalse(result.sentToAll);
+    assertEquals("1.60", result.cost);
+    assertEquals(this.numbers.subList(2 * BatchSender.CHUNK_SIZE, RECIPIENTS), Arrays.asList(result.failedNumbers));
+    assertEquals(4, poster.posts.get());
+  }
+
+  public void testFailedChunkIsNotRetried() throws IOException {
+    final ScriptedPoster poster = new ScriptedPoster().answer(0, sent("0.80")).answer(1, failed()).answer(2, sent("0.32"));
+    final SendResult result = BatchSender.send(this.numbers, poster);
+    assertEquals(SendResult.Status.SENT, result.status);
+    assertEquals(BatchSender.CHUNK_SIZE, result.failedNumbers.length);
+    assertEquals(3, poster.posts.get());
+  }
+
+  public void testAllFailedIsFailed() throws IOException {
+    final SendResult result = BatchSender.send(this.numbers, new ScriptedPoster().answer(0, failed()).answer(1, failed()).answer(2,
+        failed()));
+    assertEquals(SendResult.Status.FAILED, result.status);
+    assertEquals("No credit", result.failureMessage);
+  }
+
+  public void testNothingSentThrows() {
+    final ScriptedPoster poster = new ScriptedPoster().answer(0, new UnknownHostException("offline"));
+    poster.answer(1, new UnknownHostException("offline")).answer(2, new UnknownHostException("offline"));
+    try {
+      BatchSender.send(this.numbers, poster);
+      fail();
+    } catch (IOException ioe) {
+      assertFalse(ioe instanceof SendInDoubtException);
+    }
+    assertEquals(6, poster.posts.get());
+  }
+
+  public void testChunkInDoubtIsNotRetriedAndReportedAsUnknown() throws IOException {
+    final ScriptedPoster poster = new ScriptedPoster().answer(0, sent("0.80")).answer(1,
+        new SendInDoubtException(new SocketTimeoutException())).answer(2, new UnknownHostException("offline"), sent("0.32"));
+    final SendResult result = BatchSender.send(this.numbers, poster);
+    assertEquals(SendResult.Status.SENT, result.status);
+    assertFalse(result.sentToAll);
+    assertEquals("Whatever the chunk in doubt cost isn't known", SendResult.COST_UNKNOWN, result.cost);
+    assertEquals(0, result.failedNumbers.length);
+    assertEquals(this.numbers.subList(BatchSender.CHUNK_SIZE, 2 * BatchSender.CHUNK_SIZE), Arrays.asList(result.unknownNumbers));
+    assertEquals(4, poster.posts.get());
+  }
+
+  public void testOnlyChunksInDoubtPutAllInDoubt() throws IOException {
+    final ScriptedPoster poster = new ScriptedPoster().answer(0, failed()).answer(1,
+        new SendInDoubtException(new SocketTimeoutException())).answer(2, new UnknownHostException("offline"));
+    try {
+      BatchSender.send(this.numbers, poster);
+      fail();
+    } catch (SendInDoubtException side) {
+      // Expected, so that none of the message is queued to be sent again
+    }
+    assertEquals(4, poster.posts.get());
+  }
+
+  public void testUnrecognisedResponseIsInDoubt() throws IOException {
+    final SendResult unknown = new SendResult(SendResult.Status.UNKNOWN, false, SendResult.COST_UNKNOWN, "", new String[0],
+        new String[0], new String[0], "");
+    final ScriptedPoster poster = new ScriptedPoster().answer(0, failed()).answer(1, unknown).answer(2, failed());
+    try {
+      BatchSender.send(this.numbers, poster);
+      fail();
+    } catch (SendInDoubtException side) {
+      // Expected
+    }
+    assertEquals(3, poster.posts.get());
+  }
+}
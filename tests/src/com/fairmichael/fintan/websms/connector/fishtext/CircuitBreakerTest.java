@@ -0,0 +1,74 @@
+package com.fairmichael.fintan.websms.connector.fishtext;
+
+import junit.framework.TestCase;
+
+/**
+ * @author Fintan Fairmichael
+ */
+public class CircuitBreakerTest extends TestCase {
+  private static final long OPEN_MILLIS = 100;
+
+  private final CircuitBreaker breaker = new CircuitBreaker(OPEN_MILLIS);
+
+  private void failures(final int times) {
+    for (int i = 0; i < times; i++) {
+      this.breaker.failure();
+    }
+  }
+
+  private void assertRejected() {
+    try {
+      this.breaker.acquire();
+      fail("Breaker should reject requests");
+    } catch (CircuitBreaker.OpenException oe) {
+      // Expected
+    }
+  }
+
+  public void testOpensAfterConsecutiveFailures() throws Exception {
+    failures(2);
+    this.breaker.acquire();
+    assertEquals(CircuitBreaker.State.CLOSED, this.breaker.getState());
+    failures(1);
+    assertEquals(CircuitBreaker.State.OPEN, this.breaker.getState());
+    assertRejected();
+  }
+
+  public void testSuccessResetsFailures() throws Exception {
+    failures(2);
+    this.breaker.success();
+    failures(2);
+    assertEquals(CircuitBreaker.State.CLOSED, this.breaker.getState());
+    this.breaker.acquire();
+  }
+
+  public void testOneTrialAfterPause() throws Exception {
+    failures(3);
+    Thread.sleep(OPEN_MILLIS + 20);
+    this.breaker.acquire();
+    assertEquals(CircuitBreaker.State.HALF_OPEN, this.breaker.getState());
+    assertRejected();
+    this.breaker.success();
+    assertEquals(CircuitBreaker.State.CLOSED, this.breaker.getState());
+    this.breaker.acquire();
+  }
+
+  public void testFailedTrialDoublesPause() throws Exception {
+    failures(3);
+    Thread.sleep(OPEN_MILLIS + 20);
+    this.breaker.acquire();
+    this.breaker.failure();
+    assertEquals(CircuitBreaker.State.OPEN, this.breaker.getState());
+    Thread.sleep(OPEN_MILLIS + 20);
+    assertRejected();
+    Thread.sleep(OPEN_MILLIS);
+    this.breaker.acquire();
+    assertEquals(CircuitBreaker.State.HALF_OPEN, this.breaker.getState());
+
+    // A success goes back to the shortest pause
+    this.breaker.success();
+    failures(3);
+    Thread.sleep(OPEN_MILLIS + 20);
+    this.breaker.acquire();
+  }
+}
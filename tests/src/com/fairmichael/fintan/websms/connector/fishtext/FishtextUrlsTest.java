@@ -0,0 +1,36 @@
+package com.fairmichael.fintan.websms.connector.fishtext;
+
+import android.preference.PreferenceManager;
+
+/**
+ * @author Fintan Fairmichael
+ */
+public class FishtextUrlsTest extends StandInTestCase {
+  public void testForBase() {
+    assertEquals(FishtextUrls.DEFAULT_BASE_URL, FishtextUrls.forBase("", false).base);
+    assertEquals("https://example.com", FishtextUrls.forBase("https://example.com/", false).base);
+    assertFalse(FishtextUrls.forBase("https://example.com", false).cleartext);
+    assertEquals("http://10.0.2.2:8080", FishtextUrls.forBase("http://10.0.2.2:8080", true).base);
+    assertTrue(FishtextUrls.forBase("http://10.0.2.2:8080", true).cleartext);
+  }
+
+  public void testCleartextOnlyWhenDebuggable() {
+    assertEquals(FishtextUrls.DEFAULT_BASE_URL, FishtextUrls.forBase("http://10.0.2.2:8080", false).base);
+    assertEquals(FishtextUrls.DEFAULT_BASE_URL, FishtextUrls.forBase("ftp://example.com", true).base);
+  }
+
+  public void testChangingBaseResetsSessions() throws Exception {
+    ConnectorFishtext.checkLogin(this.context, null, StandInServer.LOGIN, false);
+    final FishtextSession session = FishtextSession.get();
+    assertTrue(session.isFresh());
+    assertFalse(session.getCookies(this.context).getCookies().isEmpty());
+
+    // The same stand-in under another name
+    final String base = ConnectorConfig.get(this.context).urls.base;
+    commit(PreferenceManager.getDefaultSharedPreferences(this.context).edit().putString(FishtextUrls.PREFS_BASE_URL,
+        base.replace("127.0.0.1", "localhost")));
+    assertFalse(session.isFresh());
+    assertNull(session.getMessageId());
+    assertTrue(session.getCookies(this.context).getCookies().isEmpty());
+  }
+}
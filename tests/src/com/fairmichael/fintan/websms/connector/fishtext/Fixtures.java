@@ -0,0 +1,58 @@
+package com.fairmichael.fintan.websms.connector.fishtext;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.content.res.AssetManager;
+
+/**
+ * The recorded fishtext.com pages in fixtures/, which are the test package's
+ * assets.
+ *
+ * @author Fintan Fairmichael
+ */
+final class Fixtures {
+  private Fixtures() {
+  }
+
+  /**
+   * @param assets
+   *          of the test package
+   * @return every page by file name
+   * @throws IOException
+   */
+  static Map<String, String> pages(final AssetManager assets) throws IOException {
+    final Map<String, String> pages = new HashMap<String, String>();
+    for (String name : assets.list("")) {
+      if (name.endsWith(".html")) {
+        pages.put(name, page(assets, name));
+      }
+    }
+    return pages;
+  }
+
+  /**
+   * @param assets
+   *          of the test package
+   * @param name
+   * @return the page, decoded like the connector decodes responses
+   * @throws IOException
+   */
+  static String page(final AssetManager assets, final String name) throws IOException {
+    final InputStream in = assets.open(name);
+    try {
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+      final byte[] buffer = new byte[4096];
+      int read;
+      while ((read = in.read(buffer)) > 0) {
+        out.write(buffer, 0, read);
+      }
+      return out.toString(ConnectorFishtext.ENCODING);
+    } finally {
+      in.close();
+    }
+  }
+}
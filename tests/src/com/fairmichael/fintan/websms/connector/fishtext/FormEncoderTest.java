@@ -0,0 +1,71 @@
+package com.fairmichael.fintan.websms.connector.fishtext;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.URLEncoder;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * @author Fintan Fairmichael
+ */
+public class FormEncoderTest extends TestCase {
+  private static final String[] VALUES = { "", "Plain_text-1.0*", "Hi there & bye = 100%", "a+b/c?d#e~f'g\"h",
+      "\u00A312.34 or \u20AC3.50", "Caf\u00E9 \u0160\u0161\u017D\u017E\u0152\u0153\u0178", "\u00A4\u00BD no longer there",
+      "Not latin: \u2013 \u263A" };
+
+  public void testMatchesURLEncoder() throws Exception {
+    for (String value : VALUES) {
+      assertEquals(value, "f=" + URLEncoder.encode(value, ConnectorFishtext.ENCODING), FormEncoder.obtain().add("f", value)
+          .toString());
+    }
+  }
+
+  public void testToLatin9() {
+    assertEquals(0xA4, FormEncoder.toLatin9('\u20AC'));
+    assertEquals(0xE9, FormEncoder.toLatin9('\u00E9'));
+    assertEquals('?', FormEncoder.toLatin9('\u00A4'));
+    assertEquals('?', FormEncoder.toLatin9('\u2013'));
+  }
+
+  public void testFields() throws Exception {
+    final byte[] constant = FormEncoder.encodeConstant("action", "send message");
+    final Map<String, String> fields = new LinkedHashMap<String, String>();
+    fields.put("to", "353861234568");
+    fields.put("from", null);
+    final FormEncoder encoder = FormEncoder.obtain().add(constant).addAll(fields).add("message", "\u20AC5");
+    final String expected = "action=send+message&to=353861234568&from=&message=%A45";
+    assertEquals(expected, encoder.toString());
+    assertEquals(expected.length(), encoder.getContentLength());
+    assertEquals(expected, read(encoder.getContent()));
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    encoder.writeTo(out);
+    assertEquals(expected, out.toString("ISO-8859-1"));
+  }
+
+  public void testObtainEmptiesTheEncoder() {
+    FormEncoder.obtain().add("a", "1");
+    assertEquals(0, FormEncoder.obtain().getContentLength());
+  }
+
+  public void testGrows() {
+    final StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      sb.append('\u20AC');
+    }
+    final FormEncoder encoder = FormEncoder.obtain().add("message", sb.toString());
+    assertEquals("message=".length() + 3000, encoder.getContentLength());
+    assertTrue(encoder.toString().endsWith("%A4%A4"));
+  }
+
+  private static String read(final InputStream in) throws Exception {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    int b;
+    while ((b = in.read()) >= 0) {
+      out.write(b);
+    }
+    return out.toString("ISO-8859-1");
+  }
+}
@@ -0,0 +1,49 @@
+package com.fairmichael.fintan.websms.connector.fishtext;
+
+import junit.framework.TestCase;
+
+/**
+ * @author Fintan Fairmichael
+ */
+public class HtmlEntitiesTest extends TestCase {
+  public void testNothingToDecodeIsReturnedAsIs() {
+    final String s = "12.34";
+    assertSame(s, HtmlEntities.decode(s));
+    final String unknown = "Tom &jerry; & co";
+    assertSame(unknown, HtmlEntities.decode(unknown));
+  }
+
+  public void testCurrencies() {
+    assertEquals("\u00A312.34", HtmlEntities.decode("&pound;12.34"));
+    assertEquals("\u20AC3.50", HtmlEntities.decode("&euro;3.50"));
+    assertEquals("\u00A312.34", FishtextUtil.currencyFix("&pound;12.34"));
+  }
+
+  public void testNamedReferences() {
+    assertEquals("<p>\"Caf\u00E9\" & co \u2013 it\u2019s</p>", HtmlEntities.decode(
+        "&lt;p&gt;&quot;Caf&eacute;&quot; &amp; co &ndash; it&rsquo;s&lt;/p&gt;"));
+    assertEquals("&amp;", HtmlEntities.decode("&amp;amp;"));
+  }
+
+  public void testNumericReferences() {
+    assertEquals("don't", HtmlEntities.decode("don&#39;t"));
+    assertEquals("don't", HtmlEntities.decode("don&#x27;t"));
+    assertEquals("\u00A3", HtmlEntities.decode("&#163;"));
+    assertEquals(new String(Character.toChars(0x1F600)), HtmlEntities.decode("&#x1F600;"));
+  }
+
+  public void testMalformedReferencesAreLeftAlone() {
+    assertEquals("&#;", HtmlEntities.decode("&#;"));
+    assertEquals("&#0;", HtmlEntities.decode("&#0;"));
+    assertEquals("&#x110000;", HtmlEntities.decode("&#x110000;"));
+    assertEquals("&#12a;", HtmlEntities.decode("&#12a;"));
+    assertEquals("&pound", HtmlEntities.decode("&pound"));
+    assertEquals("a & b \u00A3", HtmlEntities.decode("a & b &pound;"));
+    assertEquals("&\u00E9clair;", HtmlEntities.decode("&\u00E9clair;"));
+  }
+
+  public void testSendFailureMessage() {
+    assertEquals("You don't have enough credit to send this message. Please top up & try again.", HtmlEntities.decode(
+        "You don&#39;t have enough credit to send this message. Please top up &amp; try again."));
+  }
+}
@@ -0,0 +1,87 @@
+package com.fairmichael.fintan.websms.connector.fishtext;
+
+import java.util.Arrays;
+
+import android.preference.PreferenceManager;
+import de.ub0r.android.websms.connector.common.ConnectorCommand;
+
+/**
+ * @author Fintan Fairmichael
+ */
+public class RecipientNormaliserTest extends StandInTestCase {
+  private static final String VALID = "+353861234568";
+  private static final String INVALID = "+353800000001";
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    RecipientNormaliser.clearInvalid(this.context);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FishtextAccount.setCurrent(null);
+    RecipientNormaliser.clearInvalid(this.context);
+    super.tearDown();
+  }
+
+  private RecipientNormaliser.Recipients normalise(final FishtextAccount account, final String... recipients) {
+    return RecipientNormaliser.normalise(this.context, ConnectorCommand.send(FishtextAccount.SUBCONNECTOR_AUTO, "+353", null,
+        recipients, "Test", false), account);
+  }
+
+  public void testNumberIndex() {
+    final RecipientNormaliser.NumberIndex index = new RecipientNormaliser.NumberIndex(100);
+    for (int i = 0; i < 100; i++) {
+      assertEquals(-1, index.putIfAbsent("3538612" + (34000 + i), i));
+    }
+    for (int i = 0; i < 100; i++) {
+      assertEquals(i, index.putIfAbsent("3538612" + (34000 + i), 1000));
+      assertEquals(i, index.get("3538612" + (34000 + i)));
+    }
+    assertEquals(-1, index.get("353861299999"));
+  }
+
+  public void testEquivalentNumbersAreSentToOnce() {
+    final RecipientNormaliser.Recipients recipients = normalise(FishtextAccount.get(1), "Fintan <086 123-4568>", VALID,
+        "00353861234568");
+    assertEquals(Arrays.asList("353861234568"), recipients.numbers);
+    assertEquals(1, recipients.count);
+    assertEquals("Fintan <086 123-4568>", recipients.original("353861234568"));
+  }
+
+  public void testInvalidNumbersAreRejected() {
+    RecipientNormaliser.learnInvalid(this.context, new String[] { "353800000001" });
+    final RecipientNormaliser.Recipients recipients = normalise(FishtextAccount.get(1), VALID, INVALID);
+    assertEquals(Arrays.asList("353861234568"), recipients.numbers);
+    assertEquals(Arrays.asList(INVALID), Arrays.asList(recipients.rejected));
+    assertEquals(2, recipients.count);
+  }
+
+  public void testInvalidNumbersArePerAccount() {
+    FishtextAccount.setCurrent(FishtextAccount.get(2));
+    RecipientNormaliser.learnInvalid(this.context, new String[] { "353800000001" });
+    assertEquals(1, normalise(FishtextAccount.get(2), INVALID).rejected.length);
+    assertEquals(0, normalise(FishtextAccount.get(1), INVALID).rejected.length);
+  }
+
+  public void testInvalidNumbersExpire() {
+    final long now = System.currentTimeMillis();
+    // Not part of the connector's configuration, so no need to wait for it
+    PreferenceManager.getDefaultSharedPreferences(this.context).edit().putString(RecipientNormaliser.PREFS_INVALID_NUMBERS,
+        "353800000001:" + (now - RecipientNormaliser.INVALID_NUMBER_TTL - 1) + ",353800000002:" + now + ",353800000003").commit();
+    final RecipientNormaliser.Recipients recipients = normalise(FishtextAccount.get(1), INVALID, "+353800000002", "+353800000003");
+    assertEquals("Only the recent entry with a time should be rejected", Arrays.asList("+353800000002"), Arrays
+        .asList(recipients.rejected));
+  }
+
+  public void testClearInvalid() {
+    RecipientNormaliser.learnInvalid(this.context, new String[] { "353800000001" });
+    assertNotNull(PreferenceManager.getDefaultSharedPreferences(this.context).getString(RecipientNormaliser.PREFS_INVALID_NUMBERS,
+        null));
+    RecipientNormaliser.clearInvalid(this.context);
+    assertNull(PreferenceManager.getDefaultSharedPreferences(this.context).getString(RecipientNormaliser.PREFS_INVALID_NUMBERS,
+        null));
+    assertEquals(0, normalise(FishtextAccount.get(1), INVALID).rejected.length);
+  }
+}
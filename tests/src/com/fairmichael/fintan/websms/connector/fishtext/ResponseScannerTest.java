@@ -0,0 +1,67 @@
+package com.fairmichael.fintan.websms.connector.fishtext;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.regex.Pattern;
+
+import android.test.InstrumentationTestCase;
+
+/**
+ * @author Fintan Fairmichael
+ */
+public class ResponseScannerTest extends InstrumentationTestCase {
+  private static final Pattern TITLE = Pattern.compile("<title>(.*)</title>");
+
+  public void testFindsMessageId() throws Exception {
+    final ResponseScanner scanner = new ResponseScanner().find("messageId", ConnectorFishtext.MESSAGE_ID);
+    final InputStream in = getInstrumentation().getContext().getAssets().open("send_message_page.html");
+    try {
+      assertTrue(scanner.scan(in, ConnectorFishtext.ENCODING));
+    } finally {
+      in.close();
+    }
+    assertTrue(scanner.allFound());
+    assertTrue(scanner.found("messageId"));
+    assertEquals("msg4f2a9c", scanner.group("messageId", 1));
+  }
+
+  public void testMissingPattern() throws Exception {
+    final ResponseScanner scanner = new ResponseScanner().find("title", TITLE).find("messageId", ConnectorFishtext.MESSAGE_ID);
+    assertFalse(scanner.scan(stream("<title>Log in</title>\n<p>Please log in</p>\n"), ConnectorFishtext.ENCODING));
+    assertFalse(scanner.allFound());
+    assertTrue(scanner.found("title"));
+    assertEquals("Log in", scanner.group("title", 1));
+    assertFalse(scanner.found("messageId"));
+    assertNull(scanner.group("messageId", 1));
+  }
+
+  public void testStopsOnceAllFound() throws Exception {
+    final ResponseScanner scanner = new ResponseScanner().find("title", TITLE);
+    final ByteArrayInputStream in = stream("<title>First</title>\n" + repeat("<p>padding</p>\n", 2000) + "<title>Second</title>\n");
+    assertTrue(scanner.scan(in, ConnectorFishtext.ENCODING));
+    assertEquals("First", scanner.group("title", 1));
+    assertTrue("The rest of the page should not have been read", in.available() > 0);
+  }
+
+  public void testCopyHasNoResults() throws Exception {
+    final ResponseScanner scanner = new ResponseScanner().find("title", TITLE);
+    assertTrue(scanner.scan(stream("<title>First</title>\n"), ConnectorFishtext.ENCODING));
+    final ResponseScanner copy = scanner.copy();
+    assertFalse(copy.found("title"));
+    assertTrue(copy.scan(stream("<title>Second</title>\n"), ConnectorFishtext.ENCODING));
+    assertEquals("Second", copy.group("title", 1));
+    assertEquals("First", scanner.group("title", 1));
+  }
+
+  private static ByteArrayInputStream stream(final String s) throws Exception {
+    return new ByteArrayInputStream(s.getBytes(ConnectorFishtext.ENCODING));
+  }
+
+  private static String repeat(final String s, final int times) {
+    final StringBuilder sb = new StringBuilder(s.length() * times);
+    for (int i = 0; i < times; i++) {
+      sb.append(s);
+    }
+    return sb.toString();
+  }
+}
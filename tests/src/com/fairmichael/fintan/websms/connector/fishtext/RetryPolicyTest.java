@@ -0,0 +1,105 @@
+package com.fairmichael.fintan.websms.connector.fishtext;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+
+import javax.net.ssl.SSLHandshakeException;
+
+import junit.framework.TestCase;
+
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.conn.ConnectTimeoutException;
+
+import android.os.SystemClock;
+
+/**
+ * @author Fintan Fairmichael
+ */
+public class RetryPolicyTest extends TestCase {
+  @Override
+  protected void tearDown() {
+    RetryPolicy.endCommand();
+  }
+
+  public void testNeverSentIsAlwaysRetryable() {
+    for (IOException e : new IOException[] { new UnknownHostException(), new ConnectException(), new ConnectTimeoutException() }) {
+      assertTrue(e.toString(), RetryPolicy.isRetryable(e, true));
+      assertTrue(e.toString(), RetryPolicy.isRetryable(e, false));
+    }
+  }
+
+  public void testMaybeSentIsOnlyRetryableIfIdempotent() {
+    for (IOException e : new IOException[] { new NoHttpResponseException("none"), new SocketTimeoutException(),
+        new SocketException() }) {
+      assertTrue(e.toString(), RetryPolicy.isRetryable(e, true));
+      assertFalse(e.toString(), RetryPolicy.isRetryable(e, false));
+    }
+  }
+
+  public void testNotRetryable() {
+    assertFalse(RetryPolicy.isRetryable(new SSLHandshakeException("pin"), true));
+    assertFalse(RetryPolicy.isRetryable(new CircuitBreaker.OpenException(1000), true));
+    assertFalse(RetryPolicy.isRetryable(new IOException(), true));
+  }
+
+  public void testStatus() {
+    assertTrue(RetryPolicy.isRetryable(503, true));
+    assertTrue(RetryPolicy.isRetryable(429, true));
+    assertFalse(RetryPolicy.isRetryable(503, false));
+    assertFalse(RetryPolicy.isRetryable(404, true));
+    assertFalse(RetryPolicy.isRetryable(200, true));
+  }
+
+  public void testBackoffIsJitteredAndCapped() {
+    for (int i = 0; i < 100; i++) {
+      final long first = RetryPolicy.backoff(1);
+      assertTrue(first + "ms", first >= 250 && first <= 500);
+      final long second = RetryPolicy.backoff(2);
+      assertTrue(second + "ms", second >= 500 && second <= 1000);
+      final long late = RetryPolicy.backoff(10);
+      assertTrue(late + "ms", late >= 2000 && late <= 4000);
+    }
+  }
+
+  public void testCommandDeadlineIsPerThread() throws InterruptedException {
+    assertEquals(0, RetryPolicy.deadline());
+    final long start = SystemClock.elapsedRealtime();
+    assertEquals(start + RetryPolicy.REQUEST_BUDGET, RetryPolicy.deadlineFor(start));
+
+    RetryPolicy.startCommand();
+    final long deadline = RetryPolicy.deadline();
+    assertTrue(deadline >= start + RetryPolicy.COMMAND_BUDGET);
+    assertEquals(deadline, RetryPolicy.deadlineFor(start + 1000));
+
+    final long[] other = new long[1];
+    final Thread thread = new Thread() {
+      @Override
+      public void run() {
+        other[0] = RetryPolicy.deadline();
+      }
+    };
+    thread.start();
+    thread.join();
+    assertEquals(0, other[0]);
+
+    RetryPolicy.endCommand();
+    assertEquals(0, RetryPolicy.deadline());
+  }
+
+  public void testHedgeDelayFollowsLatency() {
+    for (int i = 0; i < 100; i++) {
+      RetryPolicy.recordLatency(100000);
+    }
+    assertEquals(5000, RetryPolicy.hedgeDelay());
+    for (int i = 0; i < 100; i++) {
+      RetryPolicy.recordLatency(10);
+    }
+    assertEquals(750, RetryPolicy.hedgeDelay());
+    for (int i = 0; i < 100; i++) {
+      RetryPolicy.recordLatency(1000);
+    }
+  }
+}
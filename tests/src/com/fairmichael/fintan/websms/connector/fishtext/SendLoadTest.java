@@ -0,0 +1,111 @@
+package com.fairmichael.fintan.websms.connector.fishtext;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import android.util.Log;
+
+/**
+ * End-to-end sends against the stand-in, from the login check to the parsed
+ * result. The latencies and throughput are logged under the fishtext.load
+ * tag.
+ *
+ * @author Fintan Fairmichael
+ */
+public class SendLoadTest extends StandInTestCase {
+  private static final String TAG = "fishtext.load";
+  private static final int SENDS = 50;
+  private static final int THREADS = 8;
+
+  private static OutboundMessage message(final String... numbers) {
+    return new OutboundMessage(StandInServer.LOGIN, ConnectorFishtext.SEND_FREE_FALSE, "Load test", Arrays.asList(numbers));
+  }
+
+  public void testSendLatency() throws Exception {
+    measure("no latency");
+    assertEquals(SENDS, this.server.getSends());
+    assertEquals("Session should be shared by all sends", 1, this.server.getLogins());
+  }
+
+  public void testSendLatencyWithSlowServer() throws Exception {
+    this.server.setLatency(50);
+    measure("50ms latency");
+    assertEquals(SENDS, this.server.getSends());
+  }
+
+  public void testConcurrentSends() throws Exception {
+    this.server.setLatency(20);
+    final ExecutorService threads = Executors.newFixedThreadPool(THREADS);
+    try {
+      final List<Future<SendResult>> results = new ArrayList<Future<SendResult>>();
+      final long start = System.nanoTime();
+      for (int i = 0; i < SENDS; i++) {
+        final OutboundMessage message = message("3538612" + (40000 + i));
+        results.add(threads.submit(new Callable<SendResult>() {
+          public SendResult call() throws Exception {
+            return ConnectorFishtext.send(SendLoadTest.this.context, null, message);
+          }
+        }));
+      }
+      for (Future<SendResult> result : results) {
+        assertEquals(SendResult.Status.SENT, result.get().status);
+      }
+      Log.i(TAG, "concurrent: " + SENDS + " sends on " + THREADS + " threads in " + (System.nanoTime() - start) / 1000000 + "ms, "
+          + this.server.getRequests() + " requests, client " + FishtextHttpClient.get().getStats());
+    } finally {
+      threads.shutdown();
+    }
+    assertEquals(SENDS, this.server.getSends());
+    assertEquals(SENDS, this.server.getRecipients());
+    assertEquals("Concurrent sends should share one login", 1, this.server.getLogins());
+  }
+
+  public void testInvalidNumbers() throws Exception {
+    this.server.setInvalidNumbers(true);
+    final SendResult result = ConnectorFishtext.send(this.context, null, message("353800000001", "353800000002", "353861234568"));
+    assertEquals(SendResult.Status.SENT, result.status);
+    assertFalse(result.sentToAll);
+    assertEquals(Arrays.asList("353800000001", "353800000002"), Arrays.asList(result.invalidNumbers));
+    assertEquals(3, this.server.getRecipients());
+  }
+
+  public void testFailedSend() throws Exception {
+    this.server.setSendPage("send_failed.html");
+    final SendResult result = ConnectorFishtext.send(this.context, null, message("353861234568"));
+    assertEquals(SendResult.Status.FAILED, result.status);
+    assertEquals("You don't have enough credit to send this message. Please top up & try again.", result.failureMessage);
+  }
+
+  public void testErrorResponsesAreRetried() throws Exception {
+    // The login check and message page can be retried, the send itself cannot
+    this.server.setErrorEvery(3);
+    ConnectorFishtext.checkLogin(this.context, null, StandInServer.LOGIN, true);
+    assertTrue(this.server.getErrors() > 0);
+    assertEquals(1, this.server.getLogins());
+  }
+
+  /**
+   * Send SENDS messages one after the other and log their latencies.
+   */
+  private void measure(final String label) throws Exception {
+    final Long[] latencies = new Long[SENDS];
+    final long start = System.nanoTime();
+    for (int i = 0; i < SENDS; i++) {
+      final long sendStart = System.nanoTime();
+      final SendResult result = ConnectorFishtext.send(this.context, null, message("353861234568"));
+      latencies[i] = (System.nanoTime() - sendStart) / 1000;
+      assertEquals(SendResult.Status.SENT, result.status);
+    }
+    final long elapsed = System.nanoTime() - start;
+    Arrays.sort(latencies, Collections.reverseOrder());
+    Log.i(TAG, label + ": " + SENDS + " sends, " + (SENDS * 1000000000L / elapsed) + "/s, median "
+        + latencies[SENDS / 2] + "us, 90th percentile " + latencies[SENDS / 10] + "us, max " + latencies[0] + "us, "
+        + this.server.getRequests() + " requests, client " + FishtextHttpClient.get().getStats());
+  }
+}
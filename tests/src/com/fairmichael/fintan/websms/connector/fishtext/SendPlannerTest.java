@@ -0,0 +1,108 @@
+package com.fairmichael.fintan.websms.connector.fishtext;
+
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * @author Fintan Fairmichael
+ */
+public class SendPlannerTest extends TestCase {
+  private static String repeat(final String s, final int times) {
+    final StringBuilder sb = new StringBuilder(s.length() * times);
+    for (int i = 0; i < times; i++) {
+      sb.append(s);
+    }
+    return sb.toString();
+  }
+
+  public void testGsmSegments() {
+    assertEquals(1, SendPlanner.segments(""));
+    assertEquals(1, SendPlanner.segments(repeat("a", 160)));
+    assertEquals(2, SendPlanner.segments(repeat("a", 161)));
+    assertEquals(2, SendPlanner.segments(repeat("a", 306)));
+    assertEquals(3, SendPlanner.segments(repeat("a", 307)));
+    // The euro sign takes two septets
+    assertEquals(1, SendPlanner.segments(repeat("\u20AC", 80)));
+    assertEquals(2, SendPlanner.segments(repeat("\u20AC", 81)));
+  }
+
+  public void testUcs2Segments() {
+    // Latin-9 has the \u0160 but GSM doesn't, so the whole part is UCS-2
+    assertEquals(1, SendPlanner.segments("\u0160" + repeat("a", 69)));
+    assertEquals(2, SendPlanner.segments("\u0160" + repeat("a", 70)));
+    assertEquals(3, SendPlanner.segments("\u0160" + repeat("a", 134)));
+  }
+
+  public void testShortTextIsOnePart() {
+    final SendPlanner.Plan plan = SendPlanner.plan("Running late, be there in 10 minutes.");
+    assertEquals(1, plan.parts.length);
+    assertEquals(1, plan.segments);
+    assertTrue(plan.gsm);
+    assertEquals("", plan.unencodable);
+    assertFalse(plan.tooLong);
+  }
+
+  public void testSplitAtWhitespace() {
+    final String word = "abcdefghi ";
+    final String text = repeat(word, 60);
+    final List<String> parts = SendPlanner.split(text, SendPlanner.MAXIMUM_PARTS);
+    assertEquals(2, parts.size());
+    for (String part : parts) {
+      assertTrue(part.length() <= SendPlanner.MAXIMUM_MESSAGE_LENGTH);
+      assertFalse(part.startsWith(" "));
+    }
+    assertEquals(text.trim(), parts.get(0) + " " + parts.get(1).trim());
+  }
+
+  public void testSplitWithoutWhitespace() {
+    final String text = repeat("a", SendPlanner.MAXIMUM_MESSAGE_LENGTH * 2 + 1);
+    final List<String> parts = SendPlanner.split(text, SendPlanner.MAXIMUM_PARTS);
+    assertEquals(Arrays.asList(repeat("a", SendPlanner.MAXIMUM_MESSAGE_LENGTH), repeat("a", SendPlanner.MAXIMUM_MESSAGE_LENGTH), "a"),
+        parts);
+  }
+
+  public void testSplitStopsAtMaximumParts() {
+    final List<String> parts = SendPlanner.split(repeat("a", SendPlanner.MAXIMUM_MESSAGE_LENGTH * 5), 2);
+    assertEquals(2, parts.size());
+  }
+
+  public void testTooLongIsCapped() {
+    final SendPlanner.Plan fits = SendPlanner.plan(repeat("a", SendPlanner.MAXIMUM_MESSAGE_LENGTH * SendPlanner.MAXIMUM_PARTS));
+    assertEquals(SendPlanner.MAXIMUM_PARTS, fits.parts.length);
+    assertFalse(fits.tooLong);
+
+    // Transliteration can make a text that fit WebSMS's limit longer
+    final SendPlanner.Plan plan = SendPlanner.plan(repeat("\u2026", SendPlanner.MAXIMUM_MESSAGE_LENGTH * SendPlanner.MAXIMUM_PARTS));
+    assertTrue(plan.tooLong);
+    assertEquals(SendPlanner.MAXIMUM_PARTS, plan.parts.length);
+  }
+
+  public void testLookAlikes() {
+    final SendPlanner.Plan plan = SendPlanner.plan("It\u2019s \u201Cfine\u201D \u2013 really\u2026");
+    assertEquals("It's \"fine\" - really...", plan.parts[0]);
+    assertEquals("", plan.unencodable);
+  }
+
+  public void testUnencodableIsSentAsQuestionMark() {
+    final String smiley = new String(Character.toChars(0x1F600));
+    final SendPlanner.Plan plan = SendPlanner.plan("Hi " + smiley + " \u4F60" + smiley);
+    assertEquals("Hi ? ??", plan.parts[0]);
+    assertEquals(smiley + "\u4F60", plan.unencodable);
+  }
+
+  public void testCombineParts() {
+    final SendResult first = new SendResult(SendResult.Status.SENT, false, "0.16", "\u00A3", new String[] { "353800000001" },
+        new String[0], new String[0], "");
+    final SendResult second = new SendResult(SendResult.Status.SENT, false, "0.08", "\u00A3", new String[] { "353800000001" },
+        new String[0], new String[0], "");
+    final SendResult combined = ConnectorFishtext.combine(Arrays.asList(first, second));
+    assertEquals(SendResult.Status.SENT, combined.status);
+    assertFalse(combined.sentToAll);
+    assertEquals("0.24", combined.cost);
+    assertEquals("\u00A3", combined.currency);
+    assertEquals(Arrays.asList("353800000001"), Arrays.asList(combined.invalidNumbers));
+    assertSame(first, ConnectorFishtext.combine(Arrays.asList(first)));
+  }
+}
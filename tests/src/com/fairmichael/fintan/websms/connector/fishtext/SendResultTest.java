@@ -0,0 +1,59 @@
+package com.fairmichael.fintan.websms.connector.fishtext;
+
+import java.util.Arrays;
+
+import android.test.InstrumentationTestCase;
+
+/**
+ * @author Fintan Fairmichael
+ */
+public class SendResultTest extends InstrumentationTestCase {
+  private SendResult parse(final String fixture) throws Exception {
+    return SendResult.parse(Fixtures.page(getInstrumentation().getContext().getAssets(), fixture));
+  }
+
+  public void testSentToAll() throws Exception {
+    final SendResult result = parse("send_sent_all.html");
+    assertEquals(SendResult.Status.SENT, result.status);
+    assertTrue(result.sentToAll);
+    assertEquals("0.16", result.cost);
+    assertEquals("\u00A3", result.currency);
+    assertEquals(0, result.invalidNumbers.length);
+  }
+
+  public void testSentToSome() throws Exception {
+    final SendResult result = parse("send_sent_some.html");
+    assertEquals(SendResult.Status.SENT, result.status);
+    assertFalse(result.sentToAll);
+    assertEquals("0.08", result.cost);
+    assertEquals(Arrays.asList("353800000001", "353800000002"), Arrays.asList(result.invalidNumbers));
+  }
+
+  public void testSentFree() throws Exception {
+    final SendResult result = parse("send_sent_free.html");
+    assertEquals(SendResult.Status.SENT, result.status);
+    assertTrue(result.sentToAll);
+    assertEquals(SendResult.COST_FREE, result.cost);
+  }
+
+  public void testFailed() throws Exception {
+    final SendResult result = parse("send_failed.html");
+    assertEquals(SendResult.Status.FAILED, result.status);
+    assertEquals("You don't have enough credit to send this message. Please top up & try again.", result.failureMessage);
+  }
+
+  public void testFormShownAgain() throws Exception {
+    assertEquals(SendResult.Status.FORM, parse("send_message_page.html").status);
+  }
+
+  public void testUnknown() throws Exception {
+    assertEquals(SendResult.Status.UNKNOWN, parse("balance_logged_out.html").status);
+    assertEquals(SendResult.Status.UNKNOWN, SendResult.parse("").status);
+  }
+
+  public void testCostWithoutMarkerIsUnknown() {
+    final SendResult result = SendResult.parse("<h1>Message sent</h1><p>Your message was successfully sent to all recipients.</p>");
+    assertEquals(SendResult.Status.SENT, result.status);
+    assertEquals(SendResult.COST_UNKNOWN, result.cost);
+  }
+}
@@ -0,0 +1,27 @@
+package com.fairmichael.fintan.websms.connector.fishtext;
+
+import junit.framework.TestCase;
+
+/**
+ * @author Fintan Fairmichael
+ */
+public class SendTemplateTest extends TestCase {
+  public void testFormIsEncodedPerAccount() throws Exception {
+    final SendTemplate template = SendTemplate.get("Running late");
+    assertSame(template, SendTemplate.get("Running late"));
+
+    final byte[] first = template.form(FishtextAccount.get(1), "msg4f2a9c", ConnectorFishtext.SEND_FREE_FALSE);
+    assertSame(first, template.form(FishtextAccount.get(1), "msg4f2a9c", ConnectorFishtext.SEND_FREE_FALSE));
+    final String form = new String(first, "ISO-8859-1");
+    assertTrue(form, form.contains("ST=0"));
+    assertTrue(form, form.contains("msg4f2a9c=Running+late"));
+
+    // Another account has its own form, which doesn't replace the first
+    final byte[] second = template.form(FishtextAccount.get(2), "msg77e01b", ConnectorFishtext.SEND_FREE_TRUE);
+    assertTrue(new String(second, "ISO-8859-1").contains("msg77e01b=Running+late"));
+    assertTrue(new String(second, "ISO-8859-1").contains("ST=1"));
+    assertSame(first, template.form(FishtextAccount.get(1), "msg4f2a9c", ConnectorFishtext.SEND_FREE_FALSE));
+
+    assertNotSame(first, template.form(FishtextAccount.get(1), "msg4f2a9c", ConnectorFishtext.SEND_FREE_TRUE));
+  }
+}
@@ -0,0 +1,111 @@
+package com.fairmichael.fintan.websms.connector.fishtext;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.preference.PreferenceManager;
+
+/**
+ * @author Fintan Fairmichael
+ */
+public class SettingsSyncTest extends StandInTestCase {
+  private static final String OTHER_LOGIN = "447700900123";
+
+  public void testParseSettingsForm() throws Exception {
+    final Map<String, String> form = SettingsSync.parseSettingsForm(Fixtures.page(getInstrumentation().getContext().getAssets(),
+        "settings_form.html"));
+    assertEquals("Fintan", form.get("firstName"));
+    assertEquals("Fairmichael", form.get("lastName"));
+    assertEquals("fintan@example.com", form.get("emailAddress"));
+    assertEquals("353861234567", form.get("sendFrom"));
+    assertEquals("0", form.get("sendType"));
+    assertEquals("saveSettings", form.get("action"));
+  }
+
+  public void testSnapshotRoundTrip() throws Exception {
+    final Map<String, String> values = new LinkedHashMap<String, String>();
+    values.put("sendType", "1");
+    values.put("lastName", "O'Brien & Sons=");
+    final SettingsSync.Snapshot snapshot = new SettingsSync.Snapshot(3, "+353861234567", values);
+    final SettingsSync.Snapshot decoded = SettingsSync.Snapshot.decode(snapshot.encode());
+    assertEquals(3, decoded.version);
+    assertEquals("+353861234567", decoded.login);
+    assertEquals(values, decoded.values);
+  }
+
+  public void testSnapshotWithoutLogin() throws Exception {
+    final SettingsSync.Snapshot decoded = SettingsSync.Snapshot.decode("2&sendType=1");
+    assertEquals(2, decoded.version);
+    assertEquals("", decoded.login);
+    assertEquals(Collections.singletonMap("sendType", "1"), decoded.values);
+  }
+
+  public void testDiffAndWith() {
+    final SettingsSync.Snapshot snapshot = new SettingsSync.Snapshot(0, StandInServer.LOGIN, Collections.singletonMap("sendType", "0"));
+    assertTrue(snapshot.diff(Collections.singletonMap("sendType", "0")).isEmpty());
+    final Map<String, String> changes = snapshot.diff(Collections.singletonMap("sendType", "1"));
+    assertEquals(Collections.singletonMap("sendType", "1"), changes);
+    final SettingsSync.Snapshot updated = snapshot.with(changes);
+    assertEquals(1, updated.version);
+    assertEquals(StandInServer.LOGIN, updated.login);
+    assertTrue(updated.diff(Collections.singletonMap("sendType", "1")).isEmpty());
+  }
+
+  public void testDesiredSettings() throws Exception {
+    assertTrue(SettingsSync.desiredSettings(ConnectorConfig.get(this.context), "+353861234567").isEmpty());
+    commit(PreferenceManager.getDefaultSharedPreferences(this.context).edit().putString(ConnectorFishtext.SEND_FREE,
+        ConnectorFishtext.SEND_FREE_TRUE).putString(SettingsSync.PREFS_SEND_FROM, SettingsSync.SEND_FROM_NUMBER).putString(
+        SettingsSync.PREFS_FIRST_NAME, " Fintan ").putString(SettingsSync.PREFS_EMAIL_ADDRESS, "fintan@example.com"));
+    final Map<String, String> desired = SettingsSync.desiredSettings(ConnectorConfig.get(this.context), "+353861234567");
+    assertEquals("1", desired.get("sendType"));
+    assertEquals("353861234567", desired.get("sendFrom"));
+    assertEquals("Fintan", desired.get("firstName"));
+    assertEquals("fintan@example.com", desired.get("emailAddress"));
+    assertFalse("Unset settings are left as they are on fishtext.com", desired.containsKey("lastName"));
+  }
+
+  public void testNameChangeIsSynced() throws Exception {
+    sendForFree();
+    ConnectorFishtext.checkLogin(this.context, null, StandInServer.LOGIN, false);
+    SettingsSync.sync(this.context, StandInServer.LOGIN);
+    assertEquals(1, this.server.getSettingsUpdates());
+    commit(PreferenceManager.getDefaultSharedPreferences(this.context).edit().putString(SettingsSync.PREFS_LAST_NAME, "O'Brien"));
+    SettingsSync.sync(this.context, StandInServer.LOGIN);
+    assertEquals(2, this.server.getSettingsUpdates());
+    SettingsSync.sync(this.context, StandInServer.LOGIN);
+    assertEquals(2, this.server.getSettingsUpdates());
+  }
+
+  public void testSnapshotSkipsUpdateUntilNextLogin() throws Exception {
+    sendForFree();
+    ConnectorFishtext.checkLogin(this.context, null, StandInServer.LOGIN, false);
+    SettingsSync.sync(this.context, StandInServer.LOGIN);
+    assertEquals(1, this.server.getSettingsUpdates());
+
+    final int requests = this.server.getRequests();
+    SettingsSync.sync(this.context, StandInServer.LOGIN);
+    assertEquals("Snapshot should show the settings are as desired", requests, this.server.getRequests());
+
+    // The settings may have been changed elsewhere while logged out
+    FishtextSession.get().clearCookies();
+    FishtextSession.get().invalidate();
+    ConnectorFishtext.checkLogin(this.context, null, StandInServer.LOGIN, false);
+    assertEquals(2, this.server.getLogins());
+    SettingsSync.sync(this.context, StandInServer.LOGIN);
+    assertEquals(2, this.server.getSettingsUpdates());
+  }
+
+  public void testSnapshotOfAnotherLoginIsIgnored() throws Exception {
+    sendForFree();
+    ConnectorFishtext.checkLogin(this.context, null, StandInServer.LOGIN, false);
+    SettingsSync.sync(this.context, StandInServer.LOGIN);
+    SettingsSync.sync(this.context, OTHER_LOGIN);
+    assertEquals(2, this.server.getSettingsUpdates());
+  }
+
+  private void sendForFree() throws InterruptedException {
+    commit(PreferenceManager.getDefaultSharedPreferences(this.context).edit().putString(ConnectorFishtext.SEND_FREE,
+        ConnectorFishtext.SEND_FREE_TRUE));
+  }
+}
@@ -0,0 +1,285 @@
+package com.fairmichael.fintan.websms.connector.fishtext;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.ConnectionClosedException;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.DefaultConnectionReuseStrategy;
+import org.apache.http.impl.DefaultHttpResponseFactory;
+import org.apache.http.impl.DefaultHttpServerConnection;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.BasicHttpProcessor;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.apache.http.protocol.HttpRequestHandlerRegistry;
+import org.apache.http.protocol.HttpService;
+import org.apache.http.protocol.ResponseConnControl;
+import org.apache.http.protocol.ResponseContent;
+import org.apache.http.protocol.ResponseDate;
+import org.apache.http.util.EntityUtils;
+
+import android.util.Log;
+
+/**
+ * A stand-in for fishtext.com on a local port, replaying recorded pages. It
+ * knows one account, keeps its session in a cookie like the real site, and
+ * counts what it is asked to do. Latency, error responses and sends with
+ * invalid numbers can be injected to see how the connector copes.
+ *
+ * @author Fintan Fairmichael
+ */
+final class StandInServer {
+  static final String LOGIN = "353861234567";
+  static final String PASSWORD = "stand-in";
+
+  private static final String TAG = "fishtext.standin";
+  private static final String SESSION_COOKIE = "session=standin";
+
+  /** The recorded pages by file name, as in the fixtures directory. */
+  private final Map<String, String> pages;
+  private final ExecutorService connections = Executors.newCachedThreadPool();
+  private ServerSocket serverSocket = null;
+  private Thread acceptor = null;
+
+  private volatile long latency = 0;
+  private volatile int errorEvery = 0;
+  private volatile boolean invalidNumbers = false;
+  private volatile String sendPage = "send_sent_all.html";
+
+  private final AtomicInteger requests = new AtomicInteger();
+  private final AtomicInteger logins = new AtomicInteger();
+  private final AtomicInteger sends = new AtomicInteger();
+  private final AtomicInteger recipients = new AtomicInteger();
+  private final AtomicInteger settingsUpdates = new AtomicInteger();
+  private final AtomicInteger errors = new AtomicInteger();
+
+  StandInServer(final Map<String, String> pages) {
+    this.pages = pages;
+  }
+
+  /**
+   * Start listening on a free port of the loopback interface.
+   *
+   * @return the base url to point the connector at
+   * @throws IOException
+   */
+  String start() throws IOException {
+    this.serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+    final HttpParams params = new BasicHttpParams();
+    final BasicHttpProcessor processor = new BasicHttpProcessor();
+    processor.addInterceptor(new ResponseDate());
+    processor.addInterceptor(new ResponseContent());
+    processor.addInterceptor(new ResponseConnControl());
+    final HttpRequestHandlerRegistry handlers = new HttpRequestHandlerRegistry();
+    handlers.register("*", new HttpRequestHandler() {
+      public void handle(final HttpRequest request, final HttpResponse response, final HttpContext context) throws HttpException,
+          IOException {
+        StandInServer.this.handle(request, response);
+      }
+    });
+    final HttpService service = new HttpService(processor, new DefaultConnectionReuseStrategy(), new DefaultHttpResponseFactory());
+    service.setParams(params);
+    service.setHandlerResolver(handlers);
+
+    this.acceptor = new Thread("StandInServer") {
+      @Override
+      public void run() {
+        while (!StandInServer.this.serverSocket.isClosed()) {
+          try {
+            final Socket socket = StandInServer.this.serverSocket.accept();
+            StandInServer.this.connections.execute(new Runnable() {
+              public void run() {
+                serve(service, params, socket);
+              }
+            });
+          } catch (IOException ioe) {
+            // Closed by stop()
+          }
+        }
+      }
+    };
+    this.acceptor.start();
+    return "http://127.0.0.1:" + this.serverSocket.getLocalPort();
+  }
+
+  void stop() throws IOException, InterruptedException {
+    this.serverSocket.close();
+    this.acceptor.join();
+    this.connections.shutdownNow();
+    this.connections.awaitTermination(5, TimeUnit.SECONDS);
+  }
+
+  /** Serve the requests of one keep-alive connection. */
+  private static void serve(final HttpService service, final HttpParams params, final Socket socket) {
+    final DefaultHttpServerConnection connection = new DefaultHttpServerConnection();
+    try {
+      connection.bind(socket, params);
+      while (connection.isOpen()) {
+        service.handleRequest(connection, new BasicHttpContext());
+      }
+    } catch (ConnectionClosedException cce) {
+      // The client closed the connection
+    } catch (IOException ioe) {
+      Log.d(TAG, "Connection failed: " + ioe);
+    } catch (HttpException he) {
+      Log.d(TAG, "Bad request: " + he);
+    } finally {
+      try {
+        connection.shutdown();
+      } catch (IOException ignore) {
+      }
+    }
+  }
+
+  private void handle(final HttpRequest request, final HttpResponse response) throws IOException {
+    final int count = this.requests.incrementAndGet();
+    if (this.latency > 0) {
+      try {
+        Thread.sleep(this.latency);
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted");
+      }
+    }
+    final int every = this.errorEvery;
+    if (every > 0 && count % every == 0) {
+      this.errors.incrementAndGet();
+      response.setStatusCode(503);
+      return;
+    }
+
+    String path = request.getRequestLine().getUri();
+    final int query = path.indexOf('?');
+    if (query >= 0) {
+      path = path.substring(0, query);
+    }
+    final String body = request instanceof HttpEntityEnclosingRequest ? EntityUtils.toString(
+        ((HttpEntityEnclosingRequest) request).getEntity(), "ISO-8859-1") : "";
+    final boolean loggedIn = request.containsHeader("Cookie") && request.getFirstHeader("Cookie").getValue().contains(SESSION_COOKIE);
+
+    final String page;
+    if (path.equals("/cgi-bin/mobi/account")) {
+      this.logins.incrementAndGet();
+      if (body.contains("mobile=" + LOGIN) && body.contains("password=" + PASSWORD)) {
+        response.addHeader("Set-Cookie", SESSION_COOKIE + "; Path=/");
+        page = "login_welcome.html";
+      } else {
+        page = "login_failed.html";
+      }
+    } else if (!loggedIn) {
+      page = "balance_logged_out.html";
+    } else if (path.equals("/cgi-bin/mobi/getBalance.cgi")) {
+      page = "balance.html";
+    } else if (path.equals("/cgi-bin/mobi/sendMessage.cgi")) {
+      page = "send_message_page.html";
+    } else if (path.equals("/SendSMS/SendSMS")) {
+      this.sends.incrementAndGet();
+      this.recipients.addAndGet(recipientsOf(body));
+      page = this.invalidNumbers ? "send_sent_some.html" : this.sendPage;
+    } else if (path.equals("/cgi-bin/ajax/settings.cgi")) {
+      if (body.contains("action=saveSettings")) {
+        this.settingsUpdates.incrementAndGet();
+        page = "settings_updated.html";
+      } else {
+        page = "settings_form.html";
+      }
+    } else {
+      response.setStatusCode(404);
+      return;
+    }
+    final ByteArrayEntity entity = new ByteArrayEntity(this.pages.get(page).getBytes(ConnectorFishtext.ENCODING));
+    entity.setContentType("text/html; charset=" + ConnectorFishtext.ENCODING);
+    response.setEntity(entity);
+  }
+
+  /**
+   * @param body
+   *          of a send
+   * @return the number of recipients in its RN parameter
+   */
+  private static int recipientsOf(final String body) {
+    final int start = body.indexOf("RN=");
+    if (start < 0) {
+      return 0;
+    }
+    int end = body.indexOf('&', start);
+    if (end < 0) {
+      end = body.length();
+    }
+    int count = 1;
+    for (int i = body.indexOf("%2C", start); i >= 0 && i < end; i = body.indexOf("%2C", i + 1)) {
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * @param latency
+   *          added to every response, in ms
+   */
+  void setLatency(final long latency) {
+    this.latency = latency;
+  }
+
+  /**
+   * @param every
+   *          answer every this many requests with a 503, 0 for none
+   */
+  void setErrorEvery(final int every) {
+    this.errorEvery = every;
+  }
+
+  /**
+   * @param invalidNumbers
+   *          whether sends report two of their numbers as invalid
+   */
+  void setInvalidNumbers(final boolean invalidNumbers) {
+    this.invalidNumbers = invalidNumbers;
+  }
+
+  /**
+   * @param sendPage
+   *          the page sends are answered with, e.g. send_failed.html
+   */
+  void setSendPage(final String sendPage) {
+    this.sendPage = sendPage;
+  }
+
+  int getRequests() {
+    return this.requests.get();
+  }
+
+  int getLogins() {
+    return this.logins.get();
+  }
+
+  int getSends() {
+    return this.sends.get();
+  }
+
+  int getRecipients() {
+    return this.recipients.get();
+  }
+
+  int getSettingsUpdates() {
+    return this.settingsUpdates.get();
+  }
+
+  int getErrors() {
+    return this.errors.get();
+  }
+}
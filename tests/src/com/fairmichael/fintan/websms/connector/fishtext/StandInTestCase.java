@@ -0,0 +1,80 @@
+package com.fairmichael.fintan.websms.connector.fishtext;
+
+import java.util.Map;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.test.InstrumentationTestCase;
+
+/**
+ * Points the connector at a StandInServer replaying the recorded pages, which
+ * are the test package's assets, with the stand-in's account configured.
+ *
+ * @author Fintan Fairmichael
+ */
+public abstract class StandInTestCase extends InstrumentationTestCase {
+  /** How long to wait for a preference change to reach ConnectorConfig, in ms. */
+  private static final long CONFIG_TIMEOUT = 5000;
+
+  protected StandInServer server;
+  /** The connector's context. */
+  protected Context context;
+  private Map<String, ?> savedPreferences;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    this.context = getInstrumentation().getTargetContext();
+    this.server = new StandInServer(Fixtures.pages(getInstrumentation().getContext().getAssets()));
+    final String base = this.server.start();
+
+    final SharedPreferences p = PreferenceManager.getDefaultSharedPreferences(this.context);
+    this.savedPreferences = p.getAll();
+    commit(p.edit().clear().putBoolean(Preferences.PREFS_ENABLED, true).putString(Preferences.PREFS_PASSWORD, StandInServer.PASSWORD)
+        .putString(FishtextUrls.PREFS_BASE_URL, base).putBoolean(OutboundQueue.PREFS_QUEUE_FAILED_SENDS, false));
+    FishtextSession.get().clearCookies();
+    FishtextSession.get().invalidate();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    this.server.stop();
+    final SharedPreferences.Editor editor = PreferenceManager.getDefaultSharedPreferences(this.context).edit().clear();
+    for (Map.Entry<String, ?> entry : this.savedPreferences.entrySet()) {
+      final Object value = entry.getValue();
+      if (value instanceof Boolean) {
+        editor.putBoolean(entry.getKey(), (Boolean) value);
+      } else if (value instanceof Long) {
+        editor.putLong(entry.getKey(), (Long) value);
+      } else if (value instanceof Integer) {
+        editor.putInt(entry.getKey(), (Integer) value);
+      } else if (value != null) {
+        editor.putString(entry.getKey(), value.toString());
+      }
+    }
+    editor.commit();
+    FishtextSession.get().clearCookies();
+    FishtextSession.get().invalidate();
+    super.tearDown();
+  }
+
+  /**
+   * Commit preference changes and wait for ConnectorConfig to pick them up.
+   * Preference listeners are called on the main thread, so the new snapshot
+   * may not be there yet when commit() returns.
+   * 
+   * @param editor
+   *          with changes to at least one preference
+   */
+  protected void commit(final SharedPreferences.Editor editor) throws InterruptedException {
+    final ConnectorConfig before = ConnectorConfig.get(this.context);
+    editor.commit();
+    final long until = SystemClock.elapsedRealtime() + CONFIG_TIMEOUT;
+    while (ConnectorConfig.get(this.context) == before) {
+      assertTrue("Connector did not pick up the preferences", SystemClock.elapsedRealtime() < until);
+      Thread.sleep(10);
+    }
+  }
+}